@@ -0,0 +1,20 @@
+package se.kth.spork.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmark jar. Accepts the same options as the standard JMH runner, but always
+ * enables the GC profiler such that allocation rates are reported for every benchmark.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cliOptions = new CommandLineOptions(args);
+        new Runner(new OptionsBuilder().parent(cliOptions).addProfiler(GCProfiler.class).build())
+                .run();
+    }
+}
@@ -0,0 +1,109 @@
+package se.kth.spork.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of how the resolution and interpretation of a merge scale with the amount of
+ * structural conflicts. The scenario is a generated class in which both revisions insert a
+ * different statement at the same place in every method, so that every method contains one
+ * insert/insert conflict. If a phase scales linearly, the time per method stays constant as the
+ * amount of methods grows. Preparing the input of a phase is expensive for large scenarios, so each
+ * invocation is measured as a single shot.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ConflictScalingBenchmarks {
+
+    @Benchmark
+    public void resolve(BeforeResolve state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void interpret(BeforeInterpret state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    /**
+     * State holding a pipeline for a generated scenario, where all phases before the measured one
+     * are run.
+     */
+    @State(Scope.Thread)
+    public abstract static class ConflictState {
+        @Param({"10", "100", "1000"})
+        public int methods;
+
+        private Scenario scenario;
+        private MergePipeline pipeline;
+
+        abstract MergePipeline.Phase phase();
+
+        @Setup(Level.Trial)
+        public void generateScenario() throws IOException {
+            scenario =
+                    Scenario.write(
+                            Files.createTempDirectory("spork-conflict-scaling"),
+                            generateClass(methods, i -> ""),
+                            generateClass(methods, i -> "x += " + i + ";"),
+                            generateClass(methods, i -> "x -= " + i + ";"));
+        }
+
+        @Setup(Level.Invocation)
+        public void prepare() {
+            pipeline = new MergePipeline(scenario).runUntil(phase());
+        }
+
+        void run(Blackhole bh) {
+            bh.consume(pipeline.run(phase()));
+        }
+    }
+
+    public static class BeforeResolve extends ConflictState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.RESOLVE;
+        }
+    }
+
+    public static class BeforeInterpret extends ConflictState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.INTERPRET;
+        }
+    }
+
+    private static String generateClass(int methods, IntFunction<String> insertedStatement) {
+        StringBuilder sb = new StringBuilder("public class Generated {\n");
+        for (int i = 0; i < methods; i++) {
+            sb.append("    public int method")
+                    .append(i)
+                    .append("(int a) {\n")
+                    .append("        int x = a;\n")
+                    .append("        ")
+                    .append(insertedStatement.apply(i))
+                    .append("\n")
+                    .append("        return x;\n")
+                    .append("    }\n\n");
+        }
+        return sb.append("}\n").toString();
+    }
+}
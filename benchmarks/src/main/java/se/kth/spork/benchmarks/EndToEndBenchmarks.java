@@ -0,0 +1,47 @@
+package se.kth.spork.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import se.kth.spork.cli.Cli;
+
+/**
+ * End-to-end benchmark of {@link Cli#merge}, from parsing the input files to pretty-printing the
+ * merge, on every scenario of a corpus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EndToEndBenchmarks {
+    @Param({"clean", "conflict"})
+    public String corpus;
+
+    private List<Scenario> scenarios;
+
+    @Setup(Level.Trial)
+    public void loadScenarios() {
+        scenarios = Scenario.load(corpus);
+    }
+
+    @Benchmark
+    public void merge(Blackhole bh) {
+        for (Scenario scenario : scenarios) {
+            bh.consume(Cli.merge(scenario.base, scenario.left, scenario.right, false));
+        }
+    }
+}
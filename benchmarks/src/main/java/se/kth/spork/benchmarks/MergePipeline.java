@@ -0,0 +1,246 @@
+package se.kth.spork.benchmarks;
+
+import com.github.gumtreediff.matchers.Matcher;
+import com.github.gumtreediff.tree.ITree;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import kotlin.Pair;
+import kotlin.Triple;
+import kotlin.Unit;
+import se.kth.spork.base3dm.ChangeSet;
+import se.kth.spork.base3dm.Pcs;
+import se.kth.spork.base3dm.Revision;
+import se.kth.spork.base3dm.TdmMergeKt;
+import se.kth.spork.cli.Cli;
+import se.kth.spork.spoon.ContentResolverKt;
+import se.kth.spork.spoon.MergeBudget;
+import se.kth.spork.spoon.MergeReport;
+import se.kth.spork.spoon.Parser;
+import se.kth.spork.spoon.PcsBuilder;
+import se.kth.spork.spoon.Spoon3dmMerge;
+import se.kth.spork.spoon.conflict.CommentContentHandler;
+import se.kth.spork.spoon.conflict.ContentConflictHandler;
+import se.kth.spork.spoon.conflict.IsImplicitHandler;
+import se.kth.spork.spoon.conflict.IsUpperHandler;
+import se.kth.spork.spoon.conflict.MethodOrderingConflictHandler;
+import se.kth.spork.spoon.conflict.ModifierHandler;
+import se.kth.spork.spoon.conflict.OptimisticInsertInsertHandler;
+import se.kth.spork.spoon.conflict.StructuralConflictHandler;
+import se.kth.spork.spoon.matching.ClassRepresentativesKt;
+import se.kth.spork.spoon.matching.LeftRightMatchingKt;
+import se.kth.spork.spoon.matching.MatcherPolicy;
+import se.kth.spork.spoon.matching.SpoonMapping;
+import se.kth.spork.spoon.matching.UnchangedMembersKt;
+import se.kth.spork.spoon.pcsinterpreter.PcsInterpreterKt;
+import se.kth.spork.spoon.wrappers.NodeTable;
+import se.kth.spork.spoon.wrappers.RoledValues;
+import se.kth.spork.spoon.wrappers.SpoonNode;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtModule;
+import spoon.reflect.declaration.CtTypeMember;
+
+/**
+ * Runs the phases of a structured merge one at a time, in the same order as {@link
+ * Spoon3dmMerge#merge(CtElement, CtElement, CtElement)}. This makes it possible to prepare the
+ * input of a single phase, and then measure only that phase. All phases are run sequentially on the
+ * calling thread, such that the measured cost of a phase is not skewed by the amount of available
+ * cores.
+ *
+ * <p>Phases mutate the trees of the scenario (e.g. by attaching metadata), so each pipeline must
+ * only be run once.
+ */
+final class MergePipeline {
+    /** The phases of a merge, in the order in which they are run. */
+    enum Phase {
+        PARSE,
+        MEMBER_PRUNING,
+        GUMTREE_CONVERSION,
+        PCS_BUILDING,
+        MATCHING,
+        MAPPING_CONVERSION,
+        LEFT_RIGHT_MATCHING,
+        CLASS_REPRESENTATIVES,
+        CHANGE_SET_CONSTRUCTION,
+        RESOLVE,
+        INTERPRET,
+        PRETTY_PRINT,
+    }
+
+    private static final List<StructuralConflictHandler> STRUCTURAL_CONFLICT_HANDLERS =
+            Arrays.asList(new MethodOrderingConflictHandler(), new OptimisticInsertInsertHandler());
+    private static final List<ContentConflictHandler> CONTENT_CONFLICT_HANDLERS =
+            Arrays.asList(
+                    new IsImplicitHandler(),
+                    new ModifierHandler(),
+                    new IsUpperHandler(),
+                    new CommentContentHandler());
+
+    private final Scenario scenario;
+    private final NodeTable nodes = new NodeTable();
+
+    CtModule base;
+    CtModule left;
+    CtModule right;
+    List<Triple<CtTypeMember, CtTypeMember, CtTypeMember>> unchangedMembers;
+    ITree baseGumtree;
+    ITree leftGumtree;
+    ITree rightGumtree;
+    Set<Pcs<SpoonNode>> t0;
+    Set<Pcs<SpoonNode>> t1;
+    Set<Pcs<SpoonNode>> t2;
+    Matcher baseLeftMatch;
+    Matcher baseRightMatch;
+    SpoonMapping baseLeft;
+    SpoonMapping baseRight;
+    SpoonMapping leftRight;
+    Map<SpoonNode, SpoonNode> classRepMap;
+    ChangeSet<SpoonNode, RoledValues> t0Star;
+    ChangeSet<SpoonNode, RoledValues> delta;
+    CtModule mergeTree;
+
+    MergePipeline(Scenario scenario) {
+        this.scenario = scenario;
+    }
+
+    /**
+     * Run all phases that precede the given phase.
+     *
+     * @param phase A phase.
+     * @return This pipeline.
+     */
+    MergePipeline runUntil(Phase phase) {
+        for (Phase preceding : Phase.values()) {
+            if (preceding == phase) {
+                break;
+            }
+            run(preceding);
+        }
+        return this;
+    }
+
+    /**
+     * Run a single phase. All preceding phases must already have been run.
+     *
+     * @param phase A phase.
+     * @return The output of the phase.
+     */
+    Object run(Phase phase) {
+        // the phases share the node wrappers, so all of them must run with the same node table
+        return nodes.use(() -> runPhase(phase));
+    }
+
+    private Object runPhase(Phase phase) {
+        switch (phase) {
+            case PARSE:
+                base = Parser.INSTANCE.parse(scenario.base);
+                left = Parser.INSTANCE.parse(scenario.left);
+                right = Parser.INSTANCE.parse(scenario.right);
+                return right;
+            case MEMBER_PRUNING:
+                unchangedMembers = UnchangedMembersKt.markUnchangedMembers(base, left, right);
+                return unchangedMembers;
+            case GUMTREE_CONVERSION:
+                baseGumtree =
+                        UnchangedMembersKt.buildPrunedGumTree(
+                                base, membersOf(unchangedMembers, Triple::getFirst));
+                leftGumtree =
+                        UnchangedMembersKt.buildPrunedGumTree(
+                                left, membersOf(unchangedMembers, Triple::getSecond));
+                rightGumtree =
+                        UnchangedMembersKt.buildPrunedGumTree(
+                                right, membersOf(unchangedMembers, Triple::getThird));
+                return rightGumtree;
+            case PCS_BUILDING:
+                t0 = PcsBuilder.fromSpoon(base, Revision.BASE);
+                t1 = PcsBuilder.fromSpoon(left, Revision.LEFT);
+                t2 = PcsBuilder.fromSpoon(right, Revision.RIGHT);
+                return t2;
+            case MATCHING:
+                baseLeftMatch =
+                        MatcherPolicy.ADAPTIVE
+                                .select(baseGumtree, leftGumtree, true)
+                                .match(baseGumtree, leftGumtree);
+                baseRightMatch =
+                        MatcherPolicy.ADAPTIVE
+                                .select(baseGumtree, rightGumtree, true)
+                                .match(baseGumtree, rightGumtree);
+                return baseRightMatch;
+            case MAPPING_CONVERSION:
+                baseLeft = SpoonMapping.Companion.fromGumTreeMapping(baseLeftMatch.getMappings());
+                baseRight = SpoonMapping.Companion.fromGumTreeMapping(baseRightMatch.getMappings());
+                UnchangedMembersKt.matchUnchangedMembers(
+                        pairsOf(unchangedMembers, Triple::getFirst, Triple::getSecond), baseLeft);
+                UnchangedMembersKt.matchUnchangedMembers(
+                        pairsOf(unchangedMembers, Triple::getFirst, Triple::getThird), baseRight);
+                return baseRight;
+            case LEFT_RIGHT_MATCHING:
+                leftRight =
+                        LeftRightMatchingKt.matchLeftRight(
+                                        leftGumtree,
+                                        rightGumtree,
+                                        baseLeft,
+                                        baseRight,
+                                        MatcherPolicy.ADAPTIVE,
+                                        MergeBudget.UNLIMITED)
+                                .getFirst();
+                UnchangedMembersKt.matchUnchangedMembers(
+                        pairsOf(unchangedMembers, Triple::getSecond, Triple::getThird), leftRight);
+                return leftRight;
+            case CLASS_REPRESENTATIVES:
+                classRepMap =
+                        ClassRepresentativesKt.createClassRepresentativesMapping(
+                                base, left, right, baseLeft, baseRight, leftRight);
+                return classRepMap;
+            case CHANGE_SET_CONSTRUCTION:
+                delta = new ChangeSet<>(classRepMap, ContentResolverKt::getContent, t0, t1, t2);
+                t0Star = new ChangeSet<>(classRepMap, ContentResolverKt::getContent, t0);
+                return delta;
+            case RESOLVE:
+                TdmMergeKt.resolveRawMerge(t0Star, delta, () -> Unit.INSTANCE, Runnable::run);
+                return delta;
+            case INTERPRET:
+                Pair<CtElement, Integer> merge =
+                        PcsInterpreterKt.fromMergedPcs(
+                                delta,
+                                baseLeft,
+                                baseRight,
+                                STRUCTURAL_CONFLICT_HANDLERS,
+                                CONTENT_CONFLICT_HANDLERS,
+                                new MergeReport(),
+                                Runnable::run);
+                mergeTree = (CtModule) merge.getFirst();
+
+                // the pretty-printer requires the metadata elements, but merging them is not
+                // part of any measured phase, so the base revision's are used as is
+                mergeTree.putMetadata(
+                        Parser.IMPORT_STATEMENTS, base.getMetadata(Parser.IMPORT_STATEMENTS));
+                mergeTree.putMetadata(
+                        Parser.COMPILATION_UNIT_COMMENT,
+                        base.getMetadata(Parser.COMPILATION_UNIT_COMMENT));
+                return mergeTree;
+            case PRETTY_PRINT:
+                return Cli.prettyPrint(mergeTree);
+            default:
+                throw new IllegalArgumentException("unknown phase " + phase);
+        }
+    }
+
+    private static List<Pair<CtTypeMember, CtTypeMember>> pairsOf(
+            List<Triple<CtTypeMember, CtTypeMember, CtTypeMember>> unchangedMembers,
+            Function<Triple<CtTypeMember, CtTypeMember, CtTypeMember>, CtTypeMember> src,
+            Function<Triple<CtTypeMember, CtTypeMember, CtTypeMember>, CtTypeMember> dst) {
+        return unchangedMembers.stream()
+                .map(members -> new Pair<>(src.apply(members), dst.apply(members)))
+                .collect(Collectors.toList());
+    }
+
+    private static List<CtTypeMember> membersOf(
+            List<Triple<CtTypeMember, CtTypeMember, CtTypeMember>> unchangedMembers,
+            Function<Triple<CtTypeMember, CtTypeMember, CtTypeMember>, CtTypeMember> revision) {
+        return unchangedMembers.stream().map(revision).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,208 @@
+package se.kth.spork.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for each individual phase of a structured merge. Each benchmark runs a single phase on
+ * every scenario of a corpus. The input to the phase is recomputed from scratch before each
+ * invocation, as the phases mutate the trees they operate on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class PhaseBenchmarks {
+
+    @Benchmark
+    public void parse(BeforeParse state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void memberPruning(BeforeMemberPruning state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void gumTreeConversion(BeforeGumTreeConversion state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void pcsBuilding(BeforePcsBuilding state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void matching(BeforeMatching state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void mappingConversion(BeforeMappingConversion state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void leftRightMatching(BeforeLeftRightMatching state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void classRepresentatives(BeforeClassRepresentatives state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void changeSetConstruction(BeforeChangeSetConstruction state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void resolve(BeforeResolve state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void interpret(BeforeInterpret state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    @Benchmark
+    public void prettyPrint(BeforePrettyPrint state, Blackhole bh) {
+        state.run(bh);
+    }
+
+    /**
+     * State holding one pipeline per scenario, where all phases before the measured one are run.
+     */
+    @State(Scope.Thread)
+    public abstract static class PipelineState {
+        @Param({"clean", "conflict"})
+        public String corpus;
+
+        private List<Scenario> scenarios;
+        private List<MergePipeline> pipelines;
+
+        abstract MergePipeline.Phase phase();
+
+        @Setup(Level.Trial)
+        public void loadScenarios() {
+            scenarios = Scenario.load(corpus);
+        }
+
+        @Setup(Level.Invocation)
+        public void prepare() {
+            pipelines =
+                    scenarios.stream()
+                            .map(scenario -> new MergePipeline(scenario).runUntil(phase()))
+                            .collect(Collectors.toList());
+        }
+
+        void run(Blackhole bh) {
+            for (MergePipeline pipeline : pipelines) {
+                bh.consume(pipeline.run(phase()));
+            }
+        }
+    }
+
+    public static class BeforeParse extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.PARSE;
+        }
+    }
+
+    public static class BeforeMemberPruning extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.MEMBER_PRUNING;
+        }
+    }
+
+    public static class BeforeGumTreeConversion extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.GUMTREE_CONVERSION;
+        }
+    }
+
+    public static class BeforePcsBuilding extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.PCS_BUILDING;
+        }
+    }
+
+    public static class BeforeMatching extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.MATCHING;
+        }
+    }
+
+    public static class BeforeMappingConversion extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.MAPPING_CONVERSION;
+        }
+    }
+
+    public static class BeforeLeftRightMatching extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.LEFT_RIGHT_MATCHING;
+        }
+    }
+
+    public static class BeforeClassRepresentatives extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.CLASS_REPRESENTATIVES;
+        }
+    }
+
+    public static class BeforeChangeSetConstruction extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.CHANGE_SET_CONSTRUCTION;
+        }
+    }
+
+    public static class BeforeResolve extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.RESOLVE;
+        }
+    }
+
+    public static class BeforeInterpret extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.INTERPRET;
+        }
+    }
+
+    public static class BeforePrettyPrint extends PipelineState {
+        @Override
+        MergePipeline.Phase phase() {
+            return MergePipeline.Phase.PRETTY_PRINT;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package se.kth.spork.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import kotlin.Pair;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import picocli.CommandLine;
+import se.kth.spork.cli.Cli;
+import se.kth.spork.spoon.printer.SporkPrettyPrinter;
+
+/**
+ * Replays the file merges of the merge commits in a local Git repository with {@link
+ * Cli#merge(String, String, String, boolean)}, and writes one CSV row per file merge with the same
+ * schema as the file merge results in the replication directory. Only Java files that were modified
+ * in both parents of a merge commit with a single merge base are replayed, as the merge is
+ * otherwise trivial.
+ *
+ * <p>The columns are an unnamed row index, the project, the merge directory (the merge commit and
+ * the file name, suffixed with the SHA-1 of the file's path), the merge commit, the blobs of the
+ * base, left, right, expected (committed) and replayed revisions, the merge command, the outcome
+ * ({@code success}, {@code conflict} or {@code fail}), the amount of lines that differ between the
+ * expected and replayed revisions, the amount of conflicts, the amount of lines in conflicts and
+ * the runtime in seconds. A failed merge has no replayed blob and a diff size of -1.
+ *
+ * <p>Files are merged sequentially, so that each runtime is measured without interference from
+ * other merges.
+ */
+@CommandLine.Command(
+        name = "replay-merge-commits",
+        mixinStandardHelpOptions = true,
+        description =
+                "Replay the Java file merges of the merge commits in a repository and write the"
+                        + " results as CSV.")
+public class ReplayMergeCommits implements Callable<Integer> {
+    private static final List<String> COLUMNS =
+            List.of(
+                    "",
+                    "project",
+                    "merge_dir",
+                    "merge_commit",
+                    "base_blob",
+                    "left_blob",
+                    "right_blob",
+                    "expected_blob",
+                    "replayed_blob",
+                    "merge_cmd",
+                    "outcome",
+                    "git_diff_size",
+                    "num_conflicts",
+                    "conflict_size",
+                    "runtime");
+
+    private static final String MERGE_CMD = "spork";
+
+    @CommandLine.Parameters(
+            index = "0",
+            paramLabel = "REPO",
+            description = "Path to the Git repository")
+    File repo;
+
+    @CommandLine.Option(
+            names = {"-o", "--output"},
+            paramLabel = "FILE",
+            description = "Path to the CSV file to write. Defaults to stdout.")
+    File output;
+
+    @CommandLine.Option(
+            names = {"--project"},
+            paramLabel = "NAME",
+            description = "Value of the project column. Defaults to the name of the repository.")
+    String project;
+
+    @CommandLine.Option(
+            names = {"--revision"},
+            paramLabel = "REV",
+            description =
+                    "Only replay merge commits reachable from this revision. Defaults to HEAD.")
+    String revision = Constants.HEAD;
+
+    @CommandLine.Option(
+            names = {"--max-merge-commits"},
+            paramLabel = "N",
+            description =
+                    "Only replay this many of the most recent merge commits. Defaults to all.")
+    int maxMergeCommits = Integer.MAX_VALUE;
+
+    @CommandLine.Option(
+            names = {"-e", "--exit-on-error"},
+            description =
+                    "Disable line-based fallback if the structured merge encounters an error.")
+    boolean exitOnError;
+
+    public static void main(String[] args) {
+        System.exit(new CommandLine(new ReplayMergeCommits()).execute(args));
+    }
+
+    @Override
+    public Integer call() throws IOException {
+        File repoDir = repo.getCanonicalFile();
+        String projectName = project != null ? project : repoDir.getName();
+        Map<String, Integer> outcomes = new TreeMap<>();
+        double totalRuntime = 0;
+        int row = 0;
+
+        try (Repository repository = Git.open(repoDir).getRepository();
+                PrintWriter out =
+                        new PrintWriter(
+                                output == null
+                                        ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+                                        : Files.newBufferedWriter(output.toPath()))) {
+            out.println(String.join(",", COLUMNS));
+            for (RevCommit mergeCommit : mergeCommits(repository)) {
+                for (FileMerge fileMerge : fileMerges(repository, mergeCommit)) {
+                    Result result = replay(repository, fileMerge);
+                    out.println(
+                            csvRow(
+                                    String.valueOf(row++),
+                                    projectName,
+                                    fileMerge.mergeDir(),
+                                    mergeCommit.name(),
+                                    fileMerge.base.name(),
+                                    fileMerge.left.name(),
+                                    fileMerge.right.name(),
+                                    fileMerge.expected.name(),
+                                    result.replayed == null ? "" : result.replayed.name(),
+                                    MERGE_CMD,
+                                    result.outcome,
+                                    String.valueOf(result.gitDiffSize),
+                                    String.valueOf(result.numConflicts),
+                                    String.valueOf(result.conflictSize),
+                                    String.valueOf(result.runtime)));
+                    out.flush();
+                    outcomes.merge(result.outcome, 1, Integer::sum);
+                    totalRuntime += result.runtime;
+                }
+            }
+        }
+
+        System.err.println(
+                "Replayed " + row + " file merges in " + totalRuntime + " seconds: " + outcomes);
+        return 0;
+    }
+
+    /**
+     * @return The merge commits reachable from the revision, most recent first.
+     */
+    private List<RevCommit> mergeCommits(Repository repository) throws IOException {
+        ObjectId start = repository.resolve(revision);
+        if (start == null) {
+            throw new IllegalArgumentException("Unknown revision " + revision);
+        }
+
+        List<RevCommit> mergeCommits = new ArrayList<>();
+        try (RevWalk walk = new RevWalk(repository)) {
+            walk.sort(RevSort.COMMIT_TIME_DESC);
+            walk.markStart(walk.parseCommit(start));
+            for (RevCommit commit : walk) {
+                if (mergeCommits.size() >= maxMergeCommits) {
+                    break;
+                } else if (commit.getParentCount() == 2) {
+                    mergeCommits.add(commit);
+                }
+            }
+        }
+        return mergeCommits;
+    }
+
+    /**
+     * @return The Java files that were modified in both parents of the merge commit, or an empty
+     *     list if the parents don't have exactly one merge base.
+     */
+    private static List<FileMerge> fileMerges(Repository repository, RevCommit mergeCommit)
+            throws IOException {
+        try (RevWalk walk = new RevWalk(repository)) {
+            RevCommit left = walk.parseCommit(mergeCommit.getParent(0));
+            RevCommit right = walk.parseCommit(mergeCommit.getParent(1));
+            walk.setRevFilter(RevFilter.MERGE_BASE);
+            walk.markStart(left);
+            walk.markStart(right);
+            RevCommit base = walk.next();
+            if (base == null || walk.next() != null) {
+                return Collections.emptyList();
+            }
+
+            List<FileMerge> fileMerges = new ArrayList<>();
+            try (TreeWalk treeWalk = new TreeWalk(repository)) {
+                treeWalk.addTree(walk.parseCommit(base).getTree());
+                treeWalk.addTree(left.getTree());
+                treeWalk.addTree(right.getTree());
+                treeWalk.addTree(walk.parseCommit(mergeCommit).getTree());
+                treeWalk.setRecursive(true);
+                treeWalk.setFilter(
+                        AndTreeFilter.create(
+                                PathSuffixFilter.create(".java"), TreeFilter.ANY_DIFF));
+                while (treeWalk.next()) {
+                    if (!isFile(treeWalk, 0)
+                            || !isFile(treeWalk, 1)
+                            || !isFile(treeWalk, 2)
+                            || !isFile(treeWalk, 3)) {
+                        continue;
+                    }
+                    ObjectId baseId = treeWalk.getObjectId(0);
+                    ObjectId leftId = treeWalk.getObjectId(1);
+                    ObjectId rightId = treeWalk.getObjectId(2);
+                    if (!leftId.equals(baseId)
+                            && !rightId.equals(baseId)
+                            && !leftId.equals(rightId)) {
+                        fileMerges.add(
+                                new FileMerge(
+                                        mergeCommit,
+                                        treeWalk.getPathString(),
+                                        baseId,
+                                        leftId,
+                                        rightId,
+                                        treeWalk.getObjectId(3)));
+                    }
+                }
+            }
+            return fileMerges;
+        }
+    }
+
+    private static boolean isFile(TreeWalk treeWalk, int nth) {
+        FileMode mode = treeWalk.getFileMode(nth);
+        return mode == FileMode.REGULAR_FILE || mode == FileMode.EXECUTABLE_FILE;
+    }
+
+    private Result replay(Repository repository, FileMerge fileMerge) throws IOException {
+        String base = readBlob(repository, fileMerge.base);
+        String left = readBlob(repository, fileMerge.left);
+        String right = readBlob(repository, fileMerge.right);
+        byte[] expected = repository.open(fileMerge.expected).getBytes();
+
+        long start = System.nanoTime();
+        Pair<String, Integer> merged;
+        try {
+            merged = Cli.merge(base, left, right, exitOnError);
+        } catch (Exception e) {
+            double runtime = (System.nanoTime() - start) / 1e9;
+            System.err.println("Failed to merge " + fileMerge.mergeDir() + ": " + e.getMessage());
+            return new Result("fail", null, -1, 0, 0, runtime);
+        }
+        double runtime = (System.nanoTime() - start) / 1e9;
+
+        byte[] replayed = merged.getFirst().getBytes(StandardCharsets.UTF_8);
+        ObjectId replayedId;
+        try (ObjectInserter.Formatter formatter = new ObjectInserter.Formatter()) {
+            replayedId = formatter.idFor(Constants.OBJ_BLOB, replayed);
+        }
+        int numConflicts = merged.getSecond();
+        return new Result(
+                numConflicts == 0 ? "success" : "conflict",
+                replayedId,
+                diffSize(expected, replayed),
+                numConflicts,
+                conflictSize(merged.getFirst()),
+                runtime);
+    }
+
+    private static String readBlob(Repository repository, ObjectId id) throws IOException {
+        return new String(repository.open(id).getBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The amount of added and removed lines in a diff of the two revisions.
+     */
+    private static int diffSize(byte[] expected, byte[] replayed) {
+        int size = 0;
+        for (Edit edit :
+                DiffAlgorithm.getAlgorithm(DiffAlgorithm.SupportedAlgorithm.HISTOGRAM)
+                        .diff(
+                                RawTextComparator.DEFAULT,
+                                new RawText(expected),
+                                new RawText(replayed))) {
+            size += edit.getLengthA() + edit.getLengthB();
+        }
+        return size;
+    }
+
+    /**
+     * @return The amount of lines between conflict markers in a merge, excluding the markers.
+     */
+    private static int conflictSize(String merge) {
+        int size = 0;
+        boolean inConflict = false;
+        for (String line : merge.split("\n", -1)) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith(SporkPrettyPrinter.START_CONFLICT)) {
+                inConflict = true;
+            } else if (trimmed.startsWith(SporkPrettyPrinter.END_CONFLICT)) {
+                inConflict = false;
+            } else if (inConflict && !trimmed.startsWith(SporkPrettyPrinter.MID_CONFLICT)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private static String csvRow(String... values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            String value = values[i];
+            if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+                value = "\"" + value.replace("\"", "\"\"") + "\"";
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    /** A file that was modified in both parents of a merge commit. */
+    private static final class FileMerge {
+        final RevCommit mergeCommit;
+        final String path;
+        final ObjectId base;
+        final ObjectId left;
+        final ObjectId right;
+        final ObjectId expected;
+
+        FileMerge(
+                RevCommit mergeCommit,
+                String path,
+                ObjectId base,
+                ObjectId left,
+                ObjectId right,
+                ObjectId expected) {
+            this.mergeCommit = mergeCommit;
+            this.path = path;
+            this.base = base;
+            this.left = left;
+            this.right = right;
+            this.expected = expected;
+        }
+
+        /**
+         * @return The merge commit and the file name, suffixed with the SHA-1 of the path.
+         */
+        String mergeDir() {
+            String fileName = path.substring(path.lastIndexOf('/') + 1);
+            return mergeCommit.name() + "/" + fileName + "_" + sha1(path);
+        }
+
+        private static String sha1(String s) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                return ObjectId.fromRaw(digest.digest(s.getBytes(StandardCharsets.UTF_8))).name();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /** The result of replaying a single file merge. */
+    private static final class Result {
+        final String outcome;
+        final ObjectId replayed;
+        final int gitDiffSize;
+        final int numConflicts;
+        final int conflictSize;
+        final double runtime;
+
+        Result(
+                String outcome,
+                ObjectId replayed,
+                int gitDiffSize,
+                int numConflicts,
+                int conflictSize,
+                double runtime) {
+            this.outcome = outcome;
+            this.replayed = replayed;
+            this.gitDiffSize = gitDiffSize;
+            this.numConflicts = numConflicts;
+            this.conflictSize = conflictSize;
+            this.runtime = runtime;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package se.kth.spork.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** A merge scenario from the test resources, consisting of a base, left and right revision. */
+final class Scenario {
+    /** System property for the directory containing the test resources. */
+    static final String RESOURCES_PROPERTY = "spork.resources";
+
+    private static final String DEFAULT_RESOURCES = "src/test/resources";
+
+    final Path base;
+    final Path left;
+    final Path right;
+
+    private Scenario(Path dir) {
+        base = dir.resolve("Base.java");
+        left = dir.resolve("Left.java");
+        right = dir.resolve("Right.java");
+    }
+
+    /**
+     * Write a scenario to a directory.
+     *
+     * @param dir The directory to write the scenario to.
+     * @param base The source code of the base revision.
+     * @param left The source code of the left revision.
+     * @param right The source code of the right revision.
+     * @return The written scenario.
+     */
+    static Scenario write(Path dir, String base, String left, String right) {
+        Scenario scenario = new Scenario(dir);
+        try {
+            Files.write(scenario.base, base.getBytes(StandardCharsets.UTF_8));
+            Files.write(scenario.left, left.getBytes(StandardCharsets.UTF_8));
+            Files.write(scenario.right, right.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write scenario to " + dir, e);
+        }
+        return scenario;
+    }
+
+    /**
+     * Load all scenarios in a corpus, which is a directory relative to the test resources. The test
+     * resources default to src/test/resources, which means that the benchmarks should be run from
+     * the root of the repository, but can be set with the spork.resources system property.
+     *
+     * @param corpus A directory of scenarios, e.g. "clean" or "conflict".
+     * @return All scenarios found in the corpus, in a deterministic order.
+     */
+    static List<Scenario> load(String corpus) {
+        Path corpusDir =
+                Paths.get(System.getProperty(RESOURCES_PROPERTY, DEFAULT_RESOURCES))
+                        .resolve(corpus);
+        try (Stream<Path> paths = Files.walk(corpusDir)) {
+            return paths.filter(dir -> Files.isRegularFile(dir.resolve("Base.java")))
+                    .sorted()
+                    .map(Scenario::new)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load scenarios from " + corpusDir, e);
+        }
+    }
+}
@@ -9,18 +9,38 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import kotlin.Pair;
+import kotlin.Triple;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
+import se.kth.spork.exception.BudgetExceededException;
 import se.kth.spork.exception.MergeException;
+import se.kth.spork.git.SporkMerger;
+import se.kth.spork.spoon.HybridMerge;
+import se.kth.spork.spoon.MergeBudget;
+import se.kth.spork.spoon.MergeReport;
+import se.kth.spork.spoon.ParseCache;
 import se.kth.spork.spoon.Parser;
 import se.kth.spork.spoon.Spoon3dmMerge;
+import se.kth.spork.spoon.matching.MatcherPolicy;
 import se.kth.spork.spoon.printer.PrinterPreprocessor;
 import se.kth.spork.util.LazyLogger;
 import se.kth.spork.util.LineBasedMergeKt;
+import se.kth.spork.util.TrivialMergeKt;
 import spoon.reflect.declaration.*;
 
 /**
@@ -98,22 +118,35 @@ public class Cli {
             name = "spork",
             mixinStandardHelpOptions = true,
             description = "The Spork command line app.",
-            versionProvider = SporkVersionProvider.class)
+            versionProvider = SporkVersionProvider.class,
+            subcommands = {Server.class, MergeCommits.class},
+            customSynopsis = {
+                "spork [OPTIONS] LEFT BASE RIGHT",
+                "   or: spork COMMAND [OPTIONS] [PARAMETERS]"
+            })
     static class Merge implements Callable<Integer> {
+        @CommandLine.Spec CommandLine.Model.CommandSpec spec;
+
         @CommandLine.Parameters(
                 index = "0",
+                arity = "0..1",
+                hideParamSyntax = true,
                 paramLabel = "LEFT",
                 description = "Path to the left revision")
         File left;
 
         @CommandLine.Parameters(
                 index = "1",
+                arity = "0..1",
+                hideParamSyntax = true,
                 paramLabel = "BASE",
                 description = "Path to the base revision")
         File base;
 
         @CommandLine.Parameters(
                 index = "2",
+                arity = "0..1",
+                hideParamSyntax = true,
                 paramLabel = "RIGHT",
                 description = "Path to the right revision")
         File right;
@@ -129,6 +162,54 @@ public class Cli {
                         "Disable line-based fallback if the structured merge encounters an error.")
         boolean exitOnError;
 
+        @CommandLine.Option(
+                names = {"-b", "--ignore-space-change"},
+                description =
+                        "Treat revisions that only differ in the amount of whitespace as equal when"
+                                + " checking if the merge is trivial.")
+        boolean ignoreSpaceChange;
+
+        @CommandLine.Option(
+                names = {"--strategy"},
+                paramLabel = "STRATEGY",
+                description =
+                        "The merge strategy. Valid values: ${COMPLETION-CANDIDATES}. `structured`"
+                                + " merges the whole file structurally, while `hybrid` merges"
+                                + " line-based and only merges the type members that contain"
+                                + " conflicting hunks structurally. Defaults to ${DEFAULT-VALUE}.")
+        Strategy strategy = Strategy.structured;
+
+        @CommandLine.Option(
+                names = {"--matcher"},
+                paramLabel = "MATCHER",
+                description =
+                        "How to select the tree matching algorithms. Valid values:"
+                                + " ${COMPLETION-CANDIDATES}. `classic` uses the same"
+                                + " matchers regardless of tree size, `adaptive` uses cheaper"
+                                + " matchers for very large or deep trees, and `topdown` always"
+                                + " uses the cheapest matcher. Defaults to ${DEFAULT-VALUE}.")
+        MatcherSelection matcher = MatcherSelection.adaptive;
+
+        @CommandLine.Option(
+                names = {"--timeout"},
+                paramLabel = "SECONDS",
+                description =
+                        "Abort the structured merge of the file if it takes longer than this, and"
+                                + " instead merge only the type members that contain conflicting"
+                                + " hunks structurally, each with the same timeout. Members that"
+                                + " exceed it are merged line-based.")
+        Double timeout;
+
+        @CommandLine.Option(
+                names = {"--max-nodes"},
+                paramLabel = "NODES",
+                description =
+                        "Abort the structured merge of the file if any revision has more nodes than"
+                                + " this, and degrade in the same way as for --timeout.")
+        Integer maxNodes;
+
+        @CommandLine.Mixin ParseCacheOption parseCache;
+
         @CommandLine.Option(
                 names = {"-g", "--git-mode"},
                 description =
@@ -140,11 +221,35 @@ public class Cli {
                 description = "Enable logging output")
         boolean logging;
 
+        @CommandLine.Option(
+                names = {"-s", "--socket"},
+                paramLabel = "SOCKET",
+                description =
+                        "Delegate the merge to a Spork server listening on this Unix domain socket"
+                                + " (start one with `spork server -s SOCKET`). Falls back to"
+                                + " merging in-process if the server is unreachable.")
+        File socket;
+
+        @CommandLine.Option(
+                names = {"--stats"},
+                paramLabel = "FORMAT",
+                description =
+                        "Print statistics about the merge to stderr. Valid values: ${COMPLETION-CANDIDATES}."
+                                + " Not available for merges delegated to a server.")
+        StatsFormat stats;
+
         @Override
         public Integer call() throws IOException {
+            // the revisions are optional to picocli, as they must not be required when a subcommand
+            // is given
+            if (left == null || base == null || right == null) {
+                throw new CommandLine.ParameterException(
+                        spec.commandLine(), "Missing required parameters: 'LEFT', 'BASE', 'RIGHT'");
+            }
             if (logging) {
                 setLogLevel("DEBUG");
             }
+            parseCache.enable();
 
             long start = System.nanoTime();
 
@@ -162,7 +267,24 @@ public class Cli {
                 rightPath.toFile().deleteOnExit();
             }
 
-            Pair<String, Integer> merged = merge(basePath, leftPath, rightPath, exitOnError);
+            MergeReport report = new MergeReport();
+            MergeBudget budget =
+                    new MergeBudget(
+                            timeout == null ? null : Duration.ofMillis(Math.round(timeout * 1000)),
+                            maxNodes);
+            Pair<String, Integer> merged =
+                    socket == null
+                            ? merge(
+                                    basePath,
+                                    leftPath,
+                                    rightPath,
+                                    exitOnError,
+                                    ignoreSpaceChange,
+                                    strategy,
+                                    matcher,
+                                    budget,
+                                    report)
+                            : mergeOnServer(basePath, leftPath, rightPath, budget, report);
             String pretty = merged.getFirst();
             int numConflicts = merged.getSecond();
 
@@ -178,6 +300,14 @@ public class Cli {
                 System.out.println(pretty);
             }
 
+            if (stats == StatsFormat.json) {
+                if (socket != null && report.getTotalDuration() == 0) {
+                    LOGGER.warn(() -> "No statistics available for a merge delegated to a server");
+                } else {
+                    System.err.println(report.toJson());
+                }
+            }
+
             LOGGER.info(
                     () ->
                             "Total time elapsed: "
@@ -185,6 +315,268 @@ public class Cli {
                                     + " seconds");
             return numConflicts % 127;
         }
+
+        private Pair<String, Integer> mergeOnServer(
+                Path base, Path left, Path right, MergeBudget budget, MergeReport report) {
+            if (!SocketRuntime.isSupported()) {
+                LOGGER.warn(() -> SocketRuntime.unsupportedMessage() + ", merging in-process");
+                return merge(
+                        base,
+                        left,
+                        right,
+                        exitOnError,
+                        ignoreSpaceChange,
+                        strategy,
+                        matcher,
+                        budget,
+                        report);
+            }
+            try {
+                return MergeClient.merge(
+                        socket.toPath(),
+                        base,
+                        left,
+                        right,
+                        exitOnError,
+                        ignoreSpaceChange,
+                        strategy,
+                        matcher,
+                        budget);
+            } catch (IOException e) {
+                LOGGER.warn(
+                        () ->
+                                "Could not reach merge server at "
+                                        + socket
+                                        + ", merging in-process: "
+                                        + e.getMessage());
+                return merge(
+                        base,
+                        left,
+                        right,
+                        exitOnError,
+                        ignoreSpaceChange,
+                        strategy,
+                        matcher,
+                        budget,
+                        report);
+            }
+        }
+    }
+
+    /** The option to cache parsed revisions, which is shared by all commands. */
+    static class ParseCacheOption {
+        @CommandLine.Option(
+                names = {"--parse-cache"},
+                paramLabel = "DIR",
+                description =
+                        "Cache parsed revisions in memory and in this directory, keyed by their"
+                                + " contents and the Spork build.")
+        File directory;
+
+        /** Enable the parse cache, if a directory is given. */
+        void enable() {
+            if (directory != null) {
+                Parser.setCache(
+                        new ParseCache(
+                                SporkVersionProvider.getVersionFromPomProperties(),
+                                directory.toPath()));
+            }
+        }
+    }
+
+    /** Output formats for merge statistics. */
+    enum StatsFormat {
+        json
+    }
+
+    /** Strategies for merging a file. */
+    enum Strategy {
+        /** Merge the whole file with structured merge. */
+        structured,
+        /**
+         * Merge line-based, and use structured merge only for the type members that contain
+         * conflicting hunks.
+         */
+        hybrid
+    }
+
+    /** Ways of selecting the tree matching algorithms of a merge. */
+    enum MatcherSelection {
+        /** Use the same matchers regardless of tree size. */
+        classic(MatcherPolicy.CLASSIC),
+        /** Use cheaper matchers for very large or deep trees. */
+        adaptive(MatcherPolicy.ADAPTIVE),
+        /** Always use the cheapest matcher. */
+        topdown(MatcherPolicy.TOP_DOWN);
+
+        final MatcherPolicy policy;
+
+        MatcherSelection(MatcherPolicy policy) {
+            this.policy = policy;
+        }
+    }
+
+    @CommandLine.Command(
+            name = "server",
+            mixinStandardHelpOptions = true,
+            description =
+                    "Run a persistent merge server, to avoid paying for JVM startup on every merge.",
+            versionProvider = SporkVersionProvider.class)
+    static class Server implements Callable<Integer> {
+        @CommandLine.Spec CommandLine.Model.CommandSpec spec;
+
+        @CommandLine.Option(
+                names = {"-s", "--socket"},
+                paramLabel = "SOCKET",
+                required = true,
+                description = "Path to the Unix domain socket to listen on.")
+        File socket;
+
+        @CommandLine.Mixin ParseCacheOption parseCache;
+
+        @CommandLine.Option(
+                names = {"-l", "--logging"},
+                description = "Enable logging output")
+        boolean logging;
+
+        @Override
+        public Integer call() throws IOException {
+            if (logging) {
+                setLogLevel("DEBUG");
+            }
+            if (!SocketRuntime.isSupported()) {
+                spec.commandLine().getErr().println(SocketRuntime.unsupportedMessage());
+                return 1;
+            }
+            parseCache.enable();
+            serve();
+            return 0;
+        }
+
+        private void serve() throws IOException {
+            MergeServer server = new MergeServer(socket.toPath());
+            Runtime.getRuntime()
+                    .addShutdownHook(
+                            new Thread(
+                                    () -> {
+                                        try {
+                                            server.close();
+                                        } catch (IOException e) {
+                                            LOGGER.warn(() -> "Failed to close merge server");
+                                        }
+                                    }));
+            server.serve();
+        }
+    }
+
+    @CommandLine.Command(
+            name = "merge-commits",
+            mixinStandardHelpOptions = true,
+            description =
+                    "Merge two commits in memory and print the resulting tree, along with the"
+                            + " stages of any conflicting files.",
+            versionProvider = SporkVersionProvider.class)
+    static class MergeCommits implements Callable<Integer> {
+        @CommandLine.Parameters(
+                index = "0",
+                paramLabel = "REPO",
+                description = "Path to the Git repository")
+        File repo;
+
+        @CommandLine.Parameters(
+                index = "1",
+                paramLabel = "OURS",
+                description = "The commit to merge into")
+        String ours;
+
+        @CommandLine.Parameters(
+                index = "2",
+                paramLabel = "THEIRS",
+                description = "The commit to merge")
+        String theirs;
+
+        @CommandLine.Option(
+                names = {"-e", "--exit-on-error"},
+                description =
+                        "Disable line-based fallback if the structured merge encounters an error.")
+        boolean exitOnError;
+
+        @CommandLine.Option(
+                names = {"-j", "--jobs"},
+                description =
+                        "Amount of files to merge in parallel. Defaults to the amount of cores.")
+        int jobs = Runtime.getRuntime().availableProcessors();
+
+        @CommandLine.Option(
+                names = {"--write-index"},
+                description =
+                        "Replace the repository's index with the merged index, including the stages of"
+                                + " conflicting files. The working tree is not updated.")
+        boolean writeIndex;
+
+        @CommandLine.Mixin ParseCacheOption parseCache;
+
+        @CommandLine.Option(
+                names = {"-l", "--logging"},
+                description = "Enable logging output")
+        boolean logging;
+
+        @Override
+        public Integer call() throws IOException {
+            if (logging) {
+                setLogLevel("DEBUG");
+            }
+            parseCache.enable();
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, jobs));
+            try (Repository repository = Git.open(repo).getRepository()) {
+                ObjectId oursId = resolve(repository, ours);
+                ObjectId theirsId = resolve(repository, theirs);
+                SporkMerger merger = new SporkMerger(repository, executor, exitOnError);
+                boolean clean = merger.merge(oursId, theirsId);
+
+                System.out.println(merger.getResultTreeId().name());
+                DirCache index = merger.getIndex();
+                for (int i = 0; i < index.getEntryCount(); i++) {
+                    DirCacheEntry entry = index.getEntry(i);
+                    if (entry.getStage() != DirCacheEntry.STAGE_0) {
+                        System.out.println(
+                                entry.getFileMode()
+                                        + " "
+                                        + entry.getObjectId().name()
+                                        + " "
+                                        + entry.getStage()
+                                        + "\t"
+                                        + entry.getPathString());
+                    }
+                }
+
+                if (writeIndex) {
+                    LOGGER.info(() -> "Writing merged index");
+                    DirCache repositoryIndex = repository.lockDirCache();
+                    try {
+                        DirCacheBuilder builder = repositoryIndex.builder();
+                        for (int i = 0; i < index.getEntryCount(); i++) {
+                            builder.add(index.getEntry(i));
+                        }
+                        builder.commit();
+                    } finally {
+                        repositoryIndex.unlock();
+                    }
+                }
+                return clean ? 0 : 1;
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        private static ObjectId resolve(Repository repository, String revision) throws IOException {
+            ObjectId id = repository.resolve(revision);
+            if (id == null) {
+                throw new IllegalArgumentException("Unknown revision " + revision);
+            }
+            return id;
+        }
     }
 
     /**
@@ -199,21 +591,252 @@ public class Cli {
      */
     public static Pair<String, Integer> merge(
             Path base, Path left, Path right, boolean exitOnError) {
+        return merge(
+                base, left, right, exitOnError, /* ignoreSpaceChange= */ false, new MergeReport());
+    }
+
+    /**
+     * Merge the three paths, that must point to Java files, using AST-based merge, and record
+     * statistics about the merge in the given report.
+     *
+     * @param base Path to base revision.
+     * @param left Path to left revision.
+     * @param right Path to right revision.
+     * @param exitOnError Disallow the use of line-based fallback if the structured merge encounters
+     *     an error.
+     * @param ignoreSpaceChange Consider revisions that only differ in whitespace to be equal when
+     *     checking for a trivial merge.
+     * @param report A report to record statistics about the merge in.
+     * @return A pair on the form (prettyPrint, numConflicts)
+     */
+    public static Pair<String, Integer> merge(
+            Path base,
+            Path left,
+            Path right,
+            boolean exitOnError,
+            boolean ignoreSpaceChange,
+            MergeReport report) {
+        return merge(
+                base,
+                left,
+                right,
+                exitOnError,
+                ignoreSpaceChange,
+                Strategy.structured,
+                MatcherSelection.adaptive,
+                report);
+    }
+
+    /**
+     * Merge the three paths, that must point to Java files, with the given merge strategy, and
+     * record statistics about the merge in the given report.
+     *
+     * @param base Path to base revision.
+     * @param left Path to left revision.
+     * @param right Path to right revision.
+     * @param exitOnError Disallow the use of line-based fallback if the structured merge encounters
+     *     an error.
+     * @param ignoreSpaceChange Consider revisions that only differ in whitespace to be equal when
+     *     checking for a trivial merge.
+     * @param strategy The merge strategy.
+     * @param matcher How to select the tree matching algorithms.
+     * @param report A report to record statistics about the merge in.
+     * @return A pair on the form (prettyPrint, numConflicts)
+     */
+    static Pair<String, Integer> merge(
+            Path base,
+            Path left,
+            Path right,
+            boolean exitOnError,
+            boolean ignoreSpaceChange,
+            Strategy strategy,
+            MatcherSelection matcher,
+            MergeReport report) {
+        return merge(
+                base,
+                left,
+                right,
+                exitOnError,
+                ignoreSpaceChange,
+                strategy,
+                matcher,
+                MergeBudget.UNLIMITED,
+                report);
+    }
+
+    /**
+     * Merge the three paths, that must point to Java files, with the given merge strategy and
+     * budget, and record statistics about the merge in the given report.
+     *
+     * <p>If the structured merge of the whole file exceeds the budget, the type members that
+     * contain conflicting hunks are merged structurally one at a time, each with a budget of the
+     * same size, and the rest of the file is merged line-based. A member that exceeds its budget is
+     * merged line-based. This happens even if line-based fallback is disabled, as exceeding the
+     * budget is not an error.
+     *
+     * @param base Path to base revision.
+     * @param left Path to left revision.
+     * @param right Path to right revision.
+     * @param exitOnError Disallow the use of line-based fallback if the structured merge encounters
+     *     an error.
+     * @param ignoreSpaceChange Consider revisions that only differ in whitespace to be equal when
+     *     checking for a trivial merge.
+     * @param strategy The merge strategy.
+     * @param matcher How to select the tree matching algorithms.
+     * @param budget The budget of the structured merge.
+     * @param report A report to record statistics about the merge in.
+     * @return A pair on the form (prettyPrint, numConflicts)
+     */
+    static Pair<String, Integer> merge(
+            Path base,
+            Path left,
+            Path right,
+            boolean exitOnError,
+            boolean ignoreSpaceChange,
+            Strategy strategy,
+            MatcherSelection matcher,
+            MergeBudget budget,
+            MergeReport report) {
+        return merge(
+                Parser.INSTANCE.read(base),
+                Parser.INSTANCE.read(left),
+                Parser.INSTANCE.read(right),
+                () -> Parser.INSTANCE.parse(base, left, right),
+                exitOnError,
+                ignoreSpaceChange,
+                strategy,
+                matcher,
+                budget,
+                report);
+    }
+
+    /**
+     * Merge the contents of three Java files using AST-based merge.
+     *
+     * @param base Contents of the base revision.
+     * @param left Contents of the left revision.
+     * @param right Contents of the right revision.
+     * @param exitOnError Disallow the use of line-based fallback if the structured merge encounters
+     *     an error.
+     * @return A pair on the form (prettyPrint, numConflicts)
+     */
+    public static Pair<String, Integer> merge(
+            String base, String left, String right, boolean exitOnError) {
+        return merge(
+                base,
+                left,
+                right,
+                () ->
+                        new Triple<>(
+                                Parser.INSTANCE.parse(base),
+                                Parser.INSTANCE.parse(left),
+                                Parser.INSTANCE.parse(right)),
+                exitOnError,
+                /* ignoreSpaceChange= */ false,
+                Strategy.structured,
+                MatcherSelection.adaptive,
+                MergeBudget.UNLIMITED,
+                new MergeReport());
+    }
+
+    /**
+     * Merge the revisions, where the contents are used for trivial merges and line-based fallback
+     * and the parse supplier produces the trees for the structured merge.
+     */
+    private static Pair<String, Integer> merge(
+            String base,
+            String left,
+            String right,
+            Supplier<Triple<CtModule, CtModule, CtModule>> parse,
+            boolean exitOnError,
+            boolean ignoreSpaceChange,
+            Strategy strategy,
+            MatcherSelection matcher,
+            MergeBudget budget,
+            MergeReport report) {
+        String trivialMerge = TrivialMergeKt.trivialMerge(base, left, right, ignoreSpaceChange);
+        if (trivialMerge != null) {
+            LOGGER.info(() -> "Revisions can be trivially merged, skipping structured merge");
+            report.setTrivialMerge(true);
+            return new Pair<>(trivialMerge, 0);
+        }
+
+        Supplier<Pair<String, Integer>> fallback =
+                () -> {
+                    report.setLineBasedFallback(true);
+                    Pair<String, Integer> merge =
+                            report.time(
+                                    MergeReport.Phase.LINE_BASED_MERGE,
+                                    () -> LineBasedMergeKt.lineBasedMerge(base, left, right));
+                    report.setNumConflicts(merge.getSecond());
+                    return merge;
+                };
         try {
-            LOGGER.info(() -> "Parsing input files");
-            CtModule baseModule = Parser.INSTANCE.parse(base);
-            CtModule leftModule = Parser.INSTANCE.parse(left);
-            CtModule rightModule = Parser.INSTANCE.parse(right);
+            // the trees are parsed at most once, even if a hybrid merge falls back to a full
+            // structured merge
+            AtomicReference<Triple<CtModule, CtModule, CtModule>> parsed = new AtomicReference<>();
+            Supplier<Triple<CtModule, CtModule, CtModule>> parseOnce =
+                    () -> {
+                        if (parsed.get() == null) {
+                            LOGGER.info(() -> "Parsing input files");
+                            parsed.set(report.time(MergeReport.Phase.PARSE, parse::get));
+                        }
+                        return parsed.get();
+                    };
+
+            if (strategy == Strategy.hybrid) {
+                Pair<String, Integer> merge =
+                        HybridMerge.INSTANCE.merge(
+                                base, left, right, parseOnce::get, matcher.policy, report, budget);
+                if (merge != null) {
+                    return merge;
+                }
+                LOGGER.info(
+                        () ->
+                                "Conflicts could not be localized to type members, falling back to structured merge");
+            }
+
+            Triple<CtModule, CtModule, CtModule> modules = parseOnce.get();
+            CtModule baseModule = modules.getFirst();
+            CtModule leftModule = modules.getSecond();
+            CtModule rightModule = modules.getThird();
 
             LOGGER.info(() -> "Initiating merge");
-            Pair<CtElement, Integer> merge =
-                    Spoon3dmMerge.INSTANCE.merge(baseModule, leftModule, rightModule);
+            Pair<CtElement, Integer> merge;
+            try {
+                merge =
+                        Spoon3dmMerge.INSTANCE.merge(
+                                baseModule,
+                                leftModule,
+                                rightModule,
+                                matcher.policy,
+                                report,
+                                budget);
+            } catch (BudgetExceededException e) {
+                LOGGER.warn(
+                        () -> e.getMessage() + ", merging the conflicting type members separately");
+                report.setBudgetExceeded(true);
+                Pair<String, Integer> hybridMerge =
+                        strategy == Strategy.hybrid
+                                ? null
+                                : HybridMerge.INSTANCE.merge(
+                                        base,
+                                        left,
+                                        right,
+                                        parseOnce::get,
+                                        matcher.policy,
+                                        report,
+                                        budget);
+                return hybridMerge != null ? hybridMerge : fallback.get();
+            }
             CtModule mergeTree = (CtModule) merge.getFirst();
             int numConflicts = merge.getSecond();
 
             LOGGER.info(() -> "Pretty-printing");
             if (containsTypes(mergeTree)) {
-                return new Pair(prettyPrint(mergeTree), numConflicts);
+                String pretty =
+                        report.time(MergeReport.Phase.PRETTY_PRINT, () -> prettyPrint(mergeTree));
+                return new Pair(pretty, numConflicts);
             } else if (exitOnError) {
                 throw new MergeException(
                         "Merge contained no types and global line-based fallback is disabled");
@@ -221,7 +844,7 @@ public class Cli {
                 LOGGER.warn(
                         () ->
                                 "Merge contains no types (i.e. classes, interfaces, etc), reverting to line-based merge");
-                return lineBasedMerge(base, left, right);
+                return fallback.get();
             }
         } catch (Exception e) {
             if (exitOnError) {
@@ -234,18 +857,11 @@ public class Cli {
                 LOGGER.info(
                         () ->
                                 "Spork encountered an error in structured merge. Falling back to line-based merge");
-                return lineBasedMerge(base, left, right);
+                return fallback.get();
             }
         }
     }
 
-    private static Pair<String, Integer> lineBasedMerge(Path base, Path left, Path right) {
-        String baseStr = Parser.INSTANCE.read(base);
-        String leftStr = Parser.INSTANCE.read(left);
-        String rightStr = Parser.INSTANCE.read(right);
-        return LineBasedMergeKt.lineBasedMerge(baseStr, leftStr, rightStr);
-    }
-
     /**
      * Create a hard link from a temporary git .merge_xxx file, with the name .merge_xxx.java. This
      * is necessary for Spork to be compatible with Git, as Spoon will only parse Java files if they
@@ -0,0 +1,91 @@
+package se.kth.spork.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import kotlin.Pair;
+import se.kth.spork.spoon.MergeBudget;
+
+/** Thin client that delegates a merge to a {@link MergeServer}. */
+class MergeClient {
+    /**
+     * Merge the three paths on the server listening on the given socket. The paths are sent as
+     * absolute paths, as the server does not share the working directory of the client.
+     *
+     * @param socketPath Path to the server's socket file.
+     * @param base Path to base revision.
+     * @param left Path to left revision.
+     * @param right Path to right revision.
+     * @param exitOnError Disallow the use of line-based fallback if the structured merge encounters
+     *     an error.
+     * @param ignoreSpaceChange Consider revisions that only differ in whitespace to be equal when
+     *     checking for a trivial merge.
+     * @param strategy The merge strategy.
+     * @param matcher How to select the tree matching algorithms.
+     * @param budget The budget of the structured merge. Only its limits are sent, and the deadline
+     *     starts when the server receives the request.
+     * @return A pair on the form (prettyPrint, numConflicts)
+     * @throws IOException If the server could not be reached.
+     * @throws se.kth.spork.exception.MergeException If the server failed to merge the files.
+     */
+    static Pair<String, Integer> merge(
+            Path socketPath,
+            Path base,
+            Path left,
+            Path right,
+            boolean exitOnError,
+            boolean ignoreSpaceChange,
+            Cli.Strategy strategy,
+            Cli.MatcherSelection matcher,
+            MergeBudget budget)
+            throws IOException {
+        try (SocketChannel channel = connect(socketPath)) {
+            DataOutputStream out =
+                    new DataOutputStream(
+                            new BufferedOutputStream(Channels.newOutputStream(channel)));
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            MergeProtocol.writeRequest(
+                    out,
+                    new MergeProtocol.Request(
+                            base,
+                            left,
+                            right,
+                            exitOnError,
+                            ignoreSpaceChange,
+                            strategy,
+                            matcher,
+                            budget));
+            return MergeProtocol.readResponse(in);
+        }
+    }
+
+    /**
+     * @return true if a server accepts connections on the given socket.
+     */
+    static boolean isServerListening(Path socketPath) {
+        try (SocketChannel ignored = connect(socketPath)) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static SocketChannel connect(Path socketPath) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socketPath));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,128 @@
+package se.kth.spork.cli;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import kotlin.Pair;
+import se.kth.spork.exception.MergeException;
+import se.kth.spork.spoon.MergeBudget;
+
+/**
+ * The wire format used between a {@link MergeClient} and a {@link MergeServer}.
+ *
+ * <p>A request consists of the absolute paths to the base, left and right revisions, followed by
+ * the exit-on-error and ignore-space-change flags, the names of the merge strategy and matcher
+ * selection, and the limits of the merge budget, where -1 means no limit. A response starts with a
+ * status byte. A successful response is followed by the amount of conflicts and the merged file as
+ * UTF-8 encoded bytes, while an error response is followed by an error message.
+ */
+final class MergeProtocol {
+    private static final byte STATUS_OK = 0;
+    private static final byte STATUS_ERROR = 1;
+
+    private MergeProtocol() {}
+
+    /** A merge request as sent by the client. */
+    static class Request {
+        final Path base;
+        final Path left;
+        final Path right;
+        final boolean exitOnError;
+        final boolean ignoreSpaceChange;
+        final Cli.Strategy strategy;
+        final Cli.MatcherSelection matcher;
+        final MergeBudget budget;
+
+        Request(
+                Path base,
+                Path left,
+                Path right,
+                boolean exitOnError,
+                boolean ignoreSpaceChange,
+                Cli.Strategy strategy,
+                Cli.MatcherSelection matcher,
+                MergeBudget budget) {
+            this.base = base;
+            this.left = left;
+            this.right = right;
+            this.exitOnError = exitOnError;
+            this.ignoreSpaceChange = ignoreSpaceChange;
+            this.strategy = strategy;
+            this.matcher = matcher;
+            this.budget = budget;
+        }
+    }
+
+    static void writeRequest(DataOutputStream out, Request request) throws IOException {
+        out.writeUTF(request.base.toAbsolutePath().toString());
+        out.writeUTF(request.left.toAbsolutePath().toString());
+        out.writeUTF(request.right.toAbsolutePath().toString());
+        out.writeBoolean(request.exitOnError);
+        out.writeBoolean(request.ignoreSpaceChange);
+        out.writeUTF(request.strategy.name());
+        out.writeUTF(request.matcher.name());
+        Duration timeout = request.budget.getTimeout();
+        Integer maxNodes = request.budget.getMaxNodes();
+        out.writeLong(timeout == null ? -1 : timeout.toMillis());
+        out.writeInt(maxNodes == null ? -1 : maxNodes);
+        out.flush();
+    }
+
+    static Request readRequest(DataInputStream in) throws IOException {
+        Path base = Paths.get(in.readUTF());
+        Path left = Paths.get(in.readUTF());
+        Path right = Paths.get(in.readUTF());
+        boolean exitOnError = in.readBoolean();
+        boolean ignoreSpaceChange = in.readBoolean();
+        Cli.Strategy strategy = Cli.Strategy.valueOf(in.readUTF());
+        Cli.MatcherSelection matcher = Cli.MatcherSelection.valueOf(in.readUTF());
+        long timeoutMillis = in.readLong();
+        int maxNodes = in.readInt();
+        MergeBudget budget =
+                new MergeBudget(
+                        timeoutMillis == -1 ? null : Duration.ofMillis(timeoutMillis),
+                        maxNodes == -1 ? null : maxNodes);
+        return new Request(
+                base, left, right, exitOnError, ignoreSpaceChange, strategy, matcher, budget);
+    }
+
+    static void writeResult(DataOutputStream out, Pair<String, Integer> merge) throws IOException {
+        byte[] content = merge.getFirst().getBytes(StandardCharsets.UTF_8);
+        out.writeByte(STATUS_OK);
+        out.writeInt(merge.getSecond());
+        out.writeInt(content.length);
+        out.write(content);
+        out.flush();
+    }
+
+    static void writeError(DataOutputStream out, String message) throws IOException {
+        out.writeByte(STATUS_ERROR);
+        out.writeUTF(message == null ? "unknown error" : message);
+        out.flush();
+    }
+
+    /**
+     * Read a response from the server.
+     *
+     * @param in Stream connected to the server.
+     * @return A pair on the form (prettyPrint, numConflicts).
+     * @throws MergeException If the server reported that the merge failed.
+     */
+    static Pair<String, Integer> readResponse(DataInputStream in) throws IOException {
+        byte status = in.readByte();
+        if (status == STATUS_ERROR) {
+            throw new MergeException(in.readUTF());
+        } else if (status != STATUS_OK) {
+            throw new IOException("Unexpected response status from merge server: " + status);
+        }
+
+        int numConflicts = in.readInt();
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        return new Pair<>(new String(content, StandardCharsets.UTF_8), numConflicts);
+    }
+}
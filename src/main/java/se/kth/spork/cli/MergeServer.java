@@ -0,0 +1,116 @@
+package se.kth.spork.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import kotlin.Pair;
+import se.kth.spork.spoon.MergeReport;
+import se.kth.spork.spoon.ParseCache;
+import se.kth.spork.spoon.Parser;
+import se.kth.spork.util.LazyLogger;
+
+/**
+ * A long-running merge server that listens on a Unix domain socket. Running Spork as a server means
+ * that JVM startup, class loading and JIT compilation is only paid once, instead of once per merged
+ * file, which is otherwise the dominating cost when Spork is used as a Git merge driver.
+ *
+ * <p>Requests are served sequentially, in the order they are accepted. Each request is handled
+ * exactly like a local merge with {@link Cli#merge(Path, Path, Path, boolean, boolean,
+ * Cli.Strategy, Cli.MatcherSelection, se.kth.spork.spoon.MergeBudget,
+ * se.kth.spork.spoon.MergeReport)}, so the result (including the line-based fallback) is identical
+ * to running Spork directly.
+ *
+ * <p>Unix domain socket channels require a Java 16+ runtime.
+ */
+class MergeServer implements Closeable {
+    private static final LazyLogger LOGGER = new LazyLogger(MergeServer.class);
+
+    private final Path socketPath;
+    private final ServerSocketChannel channel;
+
+    /**
+     * Bind a new server to the given socket path. A stale socket file left behind by a server that
+     * is no longer running is removed, but binding fails if another server is still listening.
+     *
+     * @param socketPath Path to the socket file.
+     */
+    MergeServer(Path socketPath) throws IOException {
+        this.socketPath = socketPath;
+        if (Files.exists(socketPath)) {
+            if (MergeClient.isServerListening(socketPath)) {
+                throw new IOException("A merge server is already listening on " + socketPath);
+            }
+            LOGGER.info(() -> "Removing stale socket file " + socketPath);
+            Files.delete(socketPath);
+        }
+        channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(socketPath));
+    }
+
+    /** Accept and serve merge requests until the server is closed. */
+    void serve() throws IOException {
+        LOGGER.info(() -> "Listening for merge requests on " + socketPath);
+        while (channel.isOpen()) {
+            try (SocketChannel client = channel.accept()) {
+                handle(client);
+            } catch (AsynchronousCloseException e) {
+                break;
+            } catch (IOException e) {
+                LOGGER.warn(() -> "Failed to communicate with client: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        MergeProtocol.Request request = MergeProtocol.readRequest(in);
+
+        long start = System.nanoTime();
+        LOGGER.info(() -> "Merging " + request.left + " " + request.base + " " + request.right);
+        Pair<String, Integer> merged;
+        try {
+            merged =
+                    Cli.merge(
+                            request.base,
+                            request.left,
+                            request.right,
+                            request.exitOnError,
+                            request.ignoreSpaceChange,
+                            request.strategy,
+                            request.matcher,
+                            request.budget,
+                            new MergeReport());
+        } catch (Exception e) {
+            LOGGER.error(() -> "Merge failed: " + e.getMessage());
+            MergeProtocol.writeError(out, e.getMessage());
+            return;
+        }
+        MergeProtocol.writeResult(out, merged);
+        LOGGER.info(
+                () -> "Served merge in " + (double) (System.nanoTime() - start) / 1e9 + " seconds");
+        ParseCache cache = Parser.getCache();
+        if (cache != null) {
+            LOGGER.info(cache::toString);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        Files.deleteIfExists(socketPath);
+    }
+}
@@ -0,0 +1,34 @@
+package se.kth.spork.cli;
+
+/**
+ * Checks whether the runtime supports the Unix domain sockets that a {@link MergeClient} and a
+ * {@link MergeServer} communicate over. Unix domain socket channels were added in Java 16, whereas
+ * the rest of Spork runs on Java 11, so this class must not reference any Java 16 API. The client
+ * and the server must only be touched once the check has passed, as loading them fails on older
+ * runtimes.
+ */
+final class SocketRuntime {
+    private static final int MIN_JAVA_VERSION = 16;
+
+    // the feature version of the running JVM, which tests may override
+    static int javaVersion = Runtime.version().feature();
+
+    private SocketRuntime() {}
+
+    /**
+     * @return true if this runtime supports Unix domain sockets.
+     */
+    static boolean isSupported() {
+        return javaVersion >= MIN_JAVA_VERSION;
+    }
+
+    /**
+     * @return A message that explains why the client and server can't run on this runtime.
+     */
+    static String unsupportedMessage() {
+        return "The merge server and client require a Java "
+                + MIN_JAVA_VERSION
+                + "+ runtime, but this is Java "
+                + javaVersion;
+    }
+}
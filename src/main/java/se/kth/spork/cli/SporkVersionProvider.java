@@ -1,6 +1,7 @@
 package se.kth.spork.cli;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Properties;
 import picocli.CommandLine.IVersionProvider;
 
@@ -15,14 +16,20 @@ public class SporkVersionProvider implements IVersionProvider {
         return new String[] {getVersionFromPomProperties()};
     }
 
-    // Adapted from https://stackoverflow.com/a/13632468
-    private String getVersionFromPomProperties() {
+    /**
+     * @return The version of Spork, or LOCAL if it is not run from a packaged jar.
+     */
+    static String getVersionFromPomProperties() {
         Properties props = new Properties();
-        try {
-            props.load(
-                    getClass()
-                            .getClassLoader()
-                            .getResourceAsStream("META-INF/maven/se.kth/spork/pom.properties"));
+        // Adapted from https://stackoverflow.com/a/13632468
+        try (InputStream in =
+                SporkVersionProvider.class
+                        .getClassLoader()
+                        .getResourceAsStream("META-INF/maven/se.kth/spork/pom.properties")) {
+            if (in == null) {
+                return "LOCAL";
+            }
+            props.load(in);
             return props.getProperty("version");
         } catch (IOException e) {
             return "LOCAL";
@@ -3,13 +3,14 @@ package se.kth.spork.spoon;
 import java.util.*;
 import se.kth.spork.base3dm.Pcs;
 import se.kth.spork.base3dm.Revision;
+import se.kth.spork.spoon.matching.UnchangedMembersKt;
 import se.kth.spork.spoon.wrappers.NodeFactory;
 import se.kth.spork.spoon.wrappers.SpoonNode;
 import spoon.reflect.declaration.CtElement;
 import spoon.reflect.visitor.CtScanner;
 
 /** A scanner that builds a PCS structure from a Spoon tree. */
-class PcsBuilder extends CtScanner {
+public class PcsBuilder extends CtScanner {
     private Map<SpoonNode, SpoonNode> parentToLastSibling = new HashMap<>();
     private Set<Pcs<SpoonNode>> pcses = new HashSet<>();
     private SpoonNode root = null;
@@ -37,6 +38,17 @@ class PcsBuilder extends CtScanner {
         return scanner.getPcses();
     }
 
+    @Override
+    public void scan(CtElement element) {
+        if (element != null && UnchangedMembersKt.isUnchangedMember(element)) {
+            // the member is identical in all revisions, so its descendants are not needed to merge
+            // it
+            enter(element);
+        } else {
+            super.scan(element);
+        }
+    }
+
     @Override
     protected void enter(CtElement e) {
         SpoonNode wrapped = NodeFactory.wrap(e);
@@ -5,12 +5,16 @@ import kotlin.Pair;
 import se.kth.spork.spoon.conflict.StructuralConflict;
 import se.kth.spork.spoon.pcsinterpreter.SpoonTreeBuilder;
 import spoon.compiler.Environment;
+import spoon.reflect.code.CtBlock;
 import spoon.reflect.code.CtCatchVariable;
 import spoon.reflect.code.CtComment;
 import spoon.reflect.code.CtLocalVariable;
+import spoon.reflect.code.CtStatement;
 import spoon.reflect.declaration.CtElement;
 import spoon.reflect.declaration.CtField;
 import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.declaration.CtTypeMember;
 import spoon.reflect.visitor.DefaultJavaPrettyPrinter;
 import spoon.reflect.visitor.DefaultTokenWriter;
 import spoon.reflect.visitor.PrinterHelper;
@@ -50,6 +54,18 @@ public final class SporkPrettyPrinter extends DefaultJavaPrettyPrinter {
         globalContentConflicts = DEFAULT_CONFLICT_MAP;
     }
 
+    /**
+     * Set the amount of indentation levels that the next printed element starts at, such that an
+     * element can be printed as if it was nested in its original context.
+     *
+     * @param tabCount The amount of indentation levels.
+     * @return This printer.
+     */
+    public SporkPrettyPrinter setTabCount(int tabCount) {
+        printerHelper.setTabCount(tabCount);
+        return this;
+    }
+
     /** Check if the element is a multi declaration (i.e. something like `int a, b, c;`. */
     private static boolean isMultiDeclaration(CtElement e, String declarationSource) {
         if (!(e instanceof CtField || e instanceof CtLocalVariable || e instanceof CtCatchVariable))
@@ -67,6 +83,31 @@ public final class SporkPrettyPrinter extends DefaultJavaPrettyPrinter {
         return encounteredComma;
     }
 
+    /**
+     * Check if an element can be printed by copying its original source code. That is the case for
+     * the roots of single-revision subtrees with a valid source position, if the source fragment is
+     * self-contained. Type members and statements in blocks are, as their fragments include any
+     * terminating semicolon and label. Expressions are not, as the printer may add parentheses and
+     * casts around them, and neither are statements with attached comments, as the comments are not
+     * included in the fragment.
+     */
+    private static boolean isPrintableFromOriginalSource(CtElement e) {
+        if (e.getMetadata(SpoonTreeBuilder.SINGLE_REVISION_KEY) == null
+                || !SourceExtractor.hasSourcePos(e)) {
+            return false;
+        } else if (e instanceof CtMethod || e instanceof CtField) {
+            return true;
+        } else if (e.isImplicit()) {
+            return false;
+        }
+
+        CtElement parent = e.getParent();
+        return e instanceof CtTypeMember && parent instanceof CtType
+                || e instanceof CtStatement
+                        && parent instanceof CtBlock
+                        && e.getComments().isEmpty();
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     protected void enter(CtElement e) {
@@ -97,13 +138,11 @@ public final class SporkPrettyPrinter extends DefaultJavaPrettyPrinter {
     public SporkPrettyPrinter scan(CtElement e) {
         if (e == null) {
             return this;
-        } else if (e.getMetadata(SpoonTreeBuilder.SINGLE_REVISION_KEY) != null
-                && (e instanceof CtMethod || e instanceof CtField)
-                && SourceExtractor.hasSourcePos(e)) {
+        } else if (isPrintableFromOriginalSource(e)) {
             CtElement origNode = (CtElement) e.getMetadata(SpoonTreeBuilder.ORIGINAL_NODE_KEY);
             String originalSource = SourceExtractor.getOriginalSource(origNode);
             if (!isMultiDeclaration(e, originalSource)) {
-                if (!(e instanceof CtMethod)) {
+                if (e instanceof CtField) {
                     // inline comments are not included in the source code fragment
                     e.getComments().stream()
                             .filter(
@@ -118,8 +157,14 @@ public final class SporkPrettyPrinter extends DefaultJavaPrettyPrinter {
                                     });
                 }
 
-                printerHelper.writeRawSourceCode(
-                        originalSource, SourceExtractor.getIndentation(origNode));
+                int indentation = SourceExtractor.getIndentation(origNode);
+                if (e.getParent() instanceof CtBlock) {
+                    // statements may have been moved to a different nesting level, such as into
+                    // a new try block, so they are indented according to their current context
+                    printerHelper.writeRawSourceCodeInContext(originalSource, indentation);
+                } else {
+                    printerHelper.writeRawSourceCode(originalSource, indentation);
+                }
                 return this;
             }
         }
@@ -197,7 +242,7 @@ public final class SporkPrettyPrinter extends DefaultJavaPrettyPrinter {
                 return this;
             }
 
-            String strippedQuotes = trimmed.replaceAll("\"", "");
+            String strippedQuotes = trimmed.replace("\"", "");
             if (globalContentConflicts.containsKey(strippedQuotes)) {
                 Pair<String, String> conflict = globalContentConflicts.get(strippedQuotes);
                 writeConflict(conflict.getFirst(), conflict.getSecond());
@@ -253,11 +298,19 @@ public final class SporkPrettyPrinter extends DefaultJavaPrettyPrinter {
 
         /** Write raw source code, attempting to honor indentation. */
         public SporkPrinterHelper writeRawSourceCode(String s, int indentationCount) {
-            String[] lines = s.split("\n");
-
             int initialTabCount = getTabCount();
             setTabCount(indentationCount / env.getTabulationSize());
+            writeRawSourceCodeInContext(s, indentationCount);
+            setTabCount(initialTabCount);
+            return this;
+        }
 
+        /**
+         * Write raw source code at the current indentation level, keeping the indentation of each
+         * line relative to the first one.
+         */
+        public SporkPrinterHelper writeRawSourceCodeInContext(String s, int indentationCount) {
+            String[] lines = s.split("\n");
             for (int i = 0; i < lines.length; i++) {
                 if (i != 0) {
                     writeln();
@@ -265,7 +318,6 @@ public final class SporkPrettyPrinter extends DefaultJavaPrettyPrinter {
                 String line = lines[i];
                 write(trimIndentation(line, indentationCount));
             }
-            setTabCount(initialTabCount);
             return this;
         }
 
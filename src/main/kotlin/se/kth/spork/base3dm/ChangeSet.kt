@@ -1,5 +1,7 @@
 package se.kth.spork.base3dm
 
+import java.util.AbstractMap.SimpleImmutableEntry
+import java.util.BitSet
 import java.util.Collections
 
 /**
@@ -7,36 +9,86 @@ import java.util.Collections
  * triples put together, this change set separates content and structure into separate sets, and also introduces
  * some helper functionality to keep track of conflicts and enable faster lookup of PCS triples.
  *
+ * Internally, each class representative is assigned a dense integer id, and each PCS triple is stored as three
+ * node ids in primitive arrays, indexed by the order in which the triples were added. The predecessor and successor
+ * lookup tables map node ids to lists of PCS indices, so finding conflicting PCSes only compares integers. [Pcs]
+ * objects are only created for the triples that are handed out through the public API.
+ *
+ * The first tree that a T* is created from is taken to be the base revision. Triples that the other trees share with
+ * it are stored once and marked as base triples, and a piece of content is only recorded if its node does not already
+ * have content with the same value. In practice, most triples and contents are the same in all revisions, and so the
+ * [edits] and the [nodesWithConflictingContent] are typically a small part of the T*, while everything else is as in
+ * base.
+ *
+ * Queries, such as [getOtherRoots] and [contains], do not modify the change set, and may be run concurrently as long
+ * as no thread modifies it at the same time.
+ *
  * @author Simon Larsén
  */
 class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent: (T) -> V, vararg trees: Set<Pcs<T>>) {
-    private val successors: MutableMap<T, MutableSet<Pcs<T>>>
-    private val predecessors: MutableMap<T, MutableSet<Pcs<T>>>
+    private val nodeIds: MutableMap<T, Int> = HashMap()
+    private val nodes: MutableList<T> = ArrayList()
+
+    // the PCS with index i is (roots[i], predecessors[i], successors[i]), in terms of node ids
+    private var roots = IntArray(INITIAL_CAPACITY)
+    private var predecessors = IntArray(INITIAL_CAPACITY)
+    private var successors = IntArray(INITIAL_CAPACITY)
+    private var revisions = arrayOfNulls<Revision>(INITIAL_CAPACITY)
+    private var pcsObjects = arrayOfNulls<Pcs<T>>(INITIAL_CAPACITY)
+    private var numPcses = 0
+    private var numRemoved = 0
+    private val removed = BitSet()
+    private val baseTriples = BitSet()
+
+    // open addressing hash table from PCS triples to their indices, stored as index + 1 so that 0 denotes an empty slot
+    private var pcsTable = IntArray(INITIAL_CAPACITY * 2)
+
+    // node id -> indices of the PCSes in which the node is the predecessor/successor
+    private val predecessorIndex: MutableList<IntList?> = ArrayList()
+    private val successorIndex: MutableList<IntList?> = ArrayList()
+
+    // node id -> content of the node
+    private val contentIndex: MutableList<MutableSet<Content<T, V>>?> = ArrayList()
+
+    // PCS index -> indices of the PCSes it conflicts with
+    private val conflicts: MutableMap<Int, IntList> = HashMap()
+    private var cachedStructuralConflicts: Map<Pcs<T>, Set<Pcs<T>>>? = null
 
-    private val _structuralConflicts: MutableMap<Pcs<T>, MutableSet<Pcs<T>>>
     val structuralConflicts: Map<Pcs<T>, Set<Pcs<T>>>
-        get() = _structuralConflicts.toMap()
+        get() = cachedStructuralConflicts ?: computeStructuralConflicts().also { cachedStructuralConflicts = it }
 
-    private val _pcsSet: MutableSet<Pcs<T>>
-    val pcsSet: Set<Pcs<T>>
-        get() = _pcsSet.toSet()
+    /** A read-only view of the PCS triples in this change set, which reflects later changes to it. */
+    val pcsSet: Set<Pcs<T>> = PcsSetView()
 
-    private val _content: MutableMap<T, MutableSet<Content<T, V>>>
-    val contents: Map<T, MutableSet<Content<T, V>>>
-        get() = HashMap(_content)
+    /**
+     * The PCS triples that are not part of the base tree. As the base tree is consistent, these are the only triples
+     * that can conflict with each other, and any base triple that is inconsistent with the merge is inconsistent
+     * with at least one of them.
+     */
+    val edits: List<Pcs<T>>
+        get() = (0 until numPcses).filter { !removed[it] && !baseTriples[it] }.map(::pcsAt)
+
+    /** The nodes that are associated with more than one piece of content, i.e. whose content must be merged. */
+    val nodesWithConflictingContent: List<T>
+        get() = contentIndex.indices.filter { (contentIndex[it]?.size ?: 0) > 1 }.map(nodes::get)
+
+    /** The amount of PCS triples in this change set. */
+    val size: Int
+        get() = numPcses - numRemoved
+
+    /** A read-only view of the contents of the nodes in this change set, which reflects later changes to it. */
+    val contents: Map<T, Set<Content<T, V>>> = ContentsView()
 
     /**
      * @param pcs A PCS triple.
      * @return All PCSes that are root conflicting with the provided PCS.
      */
     fun getOtherRoots(pcs: Pcs<T>): List<Pcs<T>> {
-        return sequenceOf(pcs.predecessor, pcs.successor).flatMap { node ->
-            sequenceOf(predecessors[node], successors[node]).filterNotNull().flatMap {
-                it.asSequence()
-            }.filter {
-                it.root != pcs.root
-            }
-        }.toList()
+        val root = idOf(pcs.root)
+        val otherRoots = ArrayList<Pcs<T>>()
+        collectOtherRoots(idOf(pcs.predecessor), root, otherRoots)
+        collectOtherRoots(idOf(pcs.successor), root, otherRoots)
+        return otherRoots
     }
 
     /**
@@ -44,9 +96,13 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      * @return All PCSes that are successor conflicting with the provided PCS.
      */
     fun getOtherSuccessors(pcs: Pcs<T>): List<Pcs<T>> {
-        return (predecessors[pcs.predecessor] ?: setOf<Pcs<T>>()).filter {
-            it.successor != pcs.successor
-        }.toList()
+        val pred = idOf(pcs.predecessor)
+        val succ = idOf(pcs.successor)
+        val otherSuccessors = ArrayList<Pcs<T>>()
+        if (pred != NO_ID) {
+            collect(predecessorIndex[pred], otherSuccessors) { successors[it] != succ }
+        }
+        return otherSuccessors
     }
 
     /**
@@ -54,9 +110,13 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      * @return All PCSes that are predecessor conflicting with the provided PCS.
      */
     fun getOtherPredecessors(pcs: Pcs<T>): List<Pcs<T>> {
-        return (successors[pcs.successor] ?: emptySet<Pcs<T>>()).filter {
-            it.predecessor != pcs.predecessor
-        }.toList()
+        val pred = idOf(pcs.predecessor)
+        val succ = idOf(pcs.successor)
+        val otherPredecessors = ArrayList<Pcs<T>>()
+        if (succ != NO_ID) {
+            collect(successorIndex[succ], otherPredecessors) { predecessors[it] != pred }
+        }
+        return otherPredecessors
     }
 
     /**
@@ -64,7 +124,9 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      * @return The content associated with the argument node, or an empty set if no content was associated.
      */
     fun getContent(node: T): Set<Content<T, V>> {
-        return Collections.unmodifiableSet(_content[node] ?: emptySet())
+        val id = idOf(node)
+        val nodeContents = if (id == NO_ID) null else contentIndex[id]
+        return Collections.unmodifiableSet(nodeContents ?: emptySet())
     }
 
     /**
@@ -72,7 +134,8 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      * @return true iff the argument is contained in this T*.
      */
     operator fun contains(pcs: Pcs<T>): Boolean {
-        return predecessors[pcs.predecessor]?.contains(pcs) == true
+        val index = indexOf(pcs)
+        return index != NO_ID && !removed[index]
     }
 
     /**
@@ -80,7 +143,8 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      * @return true iff the argument is contained in this T*.
      */
     operator fun contains(cont: Content<T, V>): Boolean {
-        return _content[cont.context.predecessor]?.contains(cont) == true
+        val id = idOf(cont.context.predecessor)
+        return id != NO_ID && contentIndex[id]?.contains(cont) == true
     }
 
     /**
@@ -90,7 +154,7 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      * @param nodeContents A set of content values to associate with the node.
      */
     fun setContent(node: T, nodeContents: MutableSet<Content<T, V>>) {
-        _content[node] = nodeContents
+        contentIndex[idOrCreate(node)] = nodeContents
     }
 
     /**
@@ -99,18 +163,18 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      * @param pcs A PCS triple.
      */
     fun remove(pcs: Pcs<T>) {
-        val pred = pcs.predecessor
-        val succ = pcs.successor
-        predecessors[pred]!!.remove(pcs)
-        successors[succ]!!.remove(pcs)
-        _pcsSet.remove(pcs)
+        val index = indexOf(pcs)
+        if (index != NO_ID && !removed[index]) {
+            removed.set(index)
+            numRemoved++
+        }
     }
 
     /**
      * @param cont Content to remove from this T*.
      */
     fun remove(cont: Content<T, V>) {
-        _content[cont.context.predecessor]!!.remove(cont)
+        contentIndex[idOf(cont.context.predecessor)]!!.remove(cont)
     }
 
     /**
@@ -120,8 +184,112 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      * @param second A PCS triple that conflicts with first.
      */
     fun registerStructuralConflict(first: Pcs<T>, second: Pcs<T>) {
-        addToLookupTable(first, second, _structuralConflicts)
-        addToLookupTable(second, first, _structuralConflicts)
+        val firstIndex = indexOf(first)
+        val secondIndex = indexOf(second)
+        require(firstIndex != NO_ID) { "$first is not in the change set" }
+        require(secondIndex != NO_ID) { "$second is not in the change set" }
+        addConflict(firstIndex, secondIndex)
+        addConflict(secondIndex, firstIndex)
+        cachedStructuralConflicts = null
+    }
+
+    /**
+     * Update this T* after the class representatives of some nodes have changed, instead of creating a new one. The
+     * PCS triples and contents that involve the old or new class representatives of the changed nodes are re-mapped,
+     * and the neighbouring triples that may have been removed or marked as conflicting because of them are restored.
+     * All other triples, and the resolution that has been done for them, are kept as is.
+     *
+     * @param previousClassReps The previous class representatives of the nodes whose class representatives changed.
+     * The class representatives map that this T* was created with must already map them to their new class
+     * representatives.
+     * @param getContent A function that returns the content of a T node.
+     * @param trees The trees that this T* was created from.
+     * @return The PCS triples that were re-mapped or restored, and need to be resolved again.
+     */
+    fun update(previousClassReps: Map<T, T>, getContent: (T) -> V, vararg trees: Set<Pcs<T>>): List<Pcs<T>> {
+        val changed = BitSet()
+        for ((node, previous) in previousClassReps) {
+            changed.set(idOrCreate(previous))
+            changed.set(classRepId(node))
+        }
+
+        val rawPcses = ArrayList<Pcs<T>>()
+        val fromBase = BitSet()
+        val oldTriples = IntList()
+        val newTriples = IntList()
+        for ((treeIdx, tree) in trees.withIndex()) {
+            for (pcs in tree) {
+                if (treeIdx == 0) fromBase.set(rawPcses.size)
+                rawPcses.add(pcs)
+                for (node in listOf(pcs.root, pcs.predecessor, pcs.successor)) {
+                    oldTriples.add(idOrCreate(previousClassReps[node] ?: classRepMap.getValue(node)))
+                    newTriples.add(classRepId(node))
+                }
+            }
+        }
+        val touches = { i: Int, nodeIds: BitSet ->
+            (0 until 3).any { nodeIds[oldTriples[i * 3 + it]] || nodeIds[newTriples[i * 3 + it]] }
+        }
+
+        // the neighbourhood consists of all nodes that share a triple with a changed node, as those are the triples
+        // that may have been removed by, or registered as conflicting with, a triple that is now re-mapped
+        val neighbourhood = changed.clone() as BitSet
+        for (i in rawPcses.indices) {
+            if (touches(i, changed)) {
+                (0 until 3).forEach {
+                    neighbourhood.set(oldTriples[i * 3 + it])
+                    neighbourhood.set(newTriples[i * 3 + it])
+                }
+            }
+        }
+        val affected = rawPcses.indices.filter { touches(it, neighbourhood) }
+
+        val reset = BitSet()
+        for (i in affected) {
+            val index = pcsTable[findSlot(oldTriples[i * 3], oldTriples[i * 3 + 1], oldTriples[i * 3 + 2])] - 1
+            if (index != NO_ID) {
+                reset.set(index)
+                baseTriples.clear(index)
+                if (!removed[index]) {
+                    removed.set(index)
+                    numRemoved++
+                }
+            }
+        }
+
+        changed.stream().forEach { contentIndex[it] = null }
+        val toResolve = BitSet()
+        for (i in affected) {
+            val root = newTriples[i * 3]
+            val pred = newTriples[i * 3 + 1]
+            val succ = newTriples[i * 3 + 2]
+            val index = addToStar(root, pred, succ, rawPcses[i].revision)
+            reset.set(index)
+            toResolve.set(index)
+            if (fromBase[i]) baseTriples.set(index)
+            if (removed[index]) {
+                removed.clear(index)
+                numRemoved--
+            }
+
+            if (changed[pred]) {
+                addContent(pred, rawPcses[i], getContent)
+            }
+        }
+
+        val conflictIterator = conflicts.entries.iterator()
+        while (conflictIterator.hasNext()) {
+            val (index, others) = conflictIterator.next()
+            if (reset[index]) {
+                conflictIterator.remove()
+            } else {
+                others.removeIf { reset[it] }
+                if (others.size == 0) conflictIterator.remove()
+            }
+        }
+        cachedStructuralConflicts = null
+
+        return (0 until numPcses).filter { toResolve[it] }.map(::pcsAt)
     }
 
     /**
@@ -131,36 +299,248 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      *
      * @param tree A PCS tree structure.
      * @param getContent A function that returns the content of a T node.
+     * @param isBase Whether the tree is the base tree.
      */
-    private fun add(tree: Set<Pcs<T>>, getContent: (T) -> V) {
+    private fun add(tree: Set<Pcs<T>>, getContent: (T) -> V, isBase: Boolean) {
         for (pcs in tree) {
-            val classRepPcs = addToStar(pcs)
-            val pred = pcs.predecessor
-            val classRepPred = classRepPcs.predecessor
-            val classRepSucc = classRepPcs.successor
-            addToLookupTable(classRepPred, classRepPcs, predecessors)
-            addToLookupTable(classRepSucc, classRepPcs, successors)
-            if (!pred.isVirtual) {
-                val c = Content(pcs, getContent(pred), pred.revision)
-                addToLookupTable(classRepPred, c, _content)
+            val root = classRepId(pcs.root)
+            val pred = classRepId(pcs.predecessor)
+            val succ = classRepId(pcs.successor)
+            val index = addToStar(root, pred, succ, pcs.revision)
+            if (isBase) baseTriples.set(index)
+            addContent(pred, pcs, getContent)
+        }
+    }
+
+    /**
+     * Add the content of the predecessor of the PCS to the node with the given id, unless the node already has
+     * content with the same value. Such content cannot affect the merged content of the node, see [resolveRawMerge].
+     */
+    private fun addContent(id: Int, pcs: Pcs<T>, getContent: (T) -> V) {
+        val predNode = pcs.predecessor
+        if (predNode.isVirtual) return
+
+        val value = getContent(predNode)
+        val nodeContents = contentIndex[id] ?: HashSet<Content<T, V>>().also { contentIndex[id] = it }
+        if (nodeContents.none { it.value == value }) {
+            nodeContents.add(Content(pcs, value, predNode.revision))
+        }
+    }
+
+    /**
+     * Add the triple to the *-set, unless it is already present.
+     *
+     * @return The index of the triple.
+     */
+    private fun addToStar(root: Int, pred: Int, succ: Int, revision: Revision): Int {
+        val slot = findSlot(root, pred, succ)
+        if (pcsTable[slot] != 0) {
+            return pcsTable[slot] - 1
+        }
+
+        val index = numPcses++
+        ensureCapacity(numPcses)
+        roots[index] = root
+        predecessors[index] = pred
+        successors[index] = succ
+        revisions[index] = revision
+        pcsTable[slot] = index + 1
+        if (numPcses * 2 > pcsTable.size) {
+            rehash()
+        }
+
+        (predecessorIndex[pred] ?: IntList().also { predecessorIndex[pred] = it }).add(index)
+        (successorIndex[succ] ?: IntList().also { successorIndex[succ] = it }).add(index)
+        return index
+    }
+
+    private fun classRepId(node: T): Int {
+        val classRep = classRepMap[node] ?: error("$node not in class representatives")
+        return idOrCreate(classRep)
+    }
+
+    private fun idOf(node: T): Int = nodeIds[node] ?: NO_ID
+
+    private fun idOrCreate(node: T): Int {
+        return nodeIds.getOrPut(node) {
+            nodes.add(node)
+            predecessorIndex.add(null)
+            successorIndex.add(null)
+            contentIndex.add(null)
+            nodes.size - 1
+        }
+    }
+
+    private fun indexOf(pcs: Pcs<T>): Int {
+        val root = idOf(pcs.root)
+        val pred = idOf(pcs.predecessor)
+        val succ = idOf(pcs.successor)
+        if (root == NO_ID || pred == NO_ID || succ == NO_ID) {
+            return NO_ID
+        }
+        return pcsTable[findSlot(root, pred, succ)] - 1
+    }
+
+    // concurrent queries may race to create the same triple, which is harmless as triples are immutable and compared
+    // by value
+    private fun pcsAt(index: Int): Pcs<T> {
+        return pcsObjects[index] ?: Pcs(
+            nodes[roots[index]],
+            nodes[predecessors[index]],
+            nodes[successors[index]],
+            revisions[index]!!,
+        ).also { pcsObjects[index] = it }
+    }
+
+    private inline fun collect(indices: IntList?, result: MutableList<Pcs<T>>, predicate: (Int) -> Boolean) {
+        if (indices == null) return
+        for (i in 0 until indices.size) {
+            val index = indices[i]
+            if (!removed[index] && predicate(index)) {
+                result.add(pcsAt(index))
+            }
+        }
+    }
+
+    private fun collectOtherRoots(node: Int, root: Int, result: MutableList<Pcs<T>>) {
+        if (node == NO_ID) return
+        collect(predecessorIndex[node], result) { roots[it] != root }
+        collect(successorIndex[node], result) { roots[it] != root }
+    }
+
+    private fun addConflict(index: Int, otherIndex: Int) {
+        val others = conflicts.getOrPut(index) { IntList() }
+        if (otherIndex !in others) {
+            others.add(otherIndex)
+        }
+    }
+
+    private fun computeStructuralConflicts(): Map<Pcs<T>, Set<Pcs<T>>> {
+        val structuralConflicts = HashMap<Pcs<T>, Set<Pcs<T>>>()
+        for ((index, others) in conflicts) {
+            val otherPcses = HashSet<Pcs<T>>()
+            for (i in 0 until others.size) {
+                otherPcses.add(pcsAt(others[i]))
+            }
+            structuralConflicts[pcsAt(index)] = otherPcses
+        }
+        return Collections.unmodifiableMap(structuralConflicts)
+    }
+
+    /**
+     * Find the slot of the given triple in the PCS table, which is either the slot that contains it or the empty slot
+     * where it should be inserted.
+     */
+    private fun findSlot(root: Int, pred: Int, succ: Int): Int {
+        val mask = pcsTable.size - 1
+        var slot = hash(root, pred, succ) and mask
+        while (true) {
+            val entry = pcsTable[slot]
+            if (entry == 0) {
+                return slot
+            }
+            val index = entry - 1
+            if (roots[index] == root && predecessors[index] == pred && successors[index] == succ) {
+                return slot
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    private fun rehash() {
+        pcsTable = IntArray(pcsTable.size * 2)
+        for (index in 0 until numPcses) {
+            pcsTable[findSlot(roots[index], predecessors[index], successors[index])] = index + 1
+        }
+    }
+
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity > roots.size) {
+            val newCapacity = maxOf(capacity, roots.size * 2)
+            roots = roots.copyOf(newCapacity)
+            predecessors = predecessors.copyOf(newCapacity)
+            successors = successors.copyOf(newCapacity)
+            revisions = revisions.copyOf(newCapacity)
+            pcsObjects = pcsObjects.copyOf(newCapacity)
+        }
+    }
+
+    private inner class PcsSetView : AbstractSet<Pcs<T>>() {
+        override val size: Int
+            get() = this@ChangeSet.size
+
+        override fun contains(element: Pcs<T>): Boolean = this@ChangeSet.contains(element)
+
+        override fun iterator(): Iterator<Pcs<T>> =
+            (0 until numPcses).asSequence().filter { !removed[it] }.map(::pcsAt).iterator()
+    }
+
+    private inner class ContentsView : AbstractMap<T, Set<Content<T, V>>>() {
+        override val entries: Set<Map.Entry<T, Set<Content<T, V>>>>
+            get() = object : AbstractSet<Map.Entry<T, Set<Content<T, V>>>>() {
+                override val size: Int
+                    get() = contentIndex.count { it != null }
+
+                override fun iterator(): Iterator<Map.Entry<T, Set<Content<T, V>>>> =
+                    contentIndex.indices.asSequence()
+                        .filter { contentIndex[it] != null }
+                        .map { SimpleImmutableEntry(nodes[it], getContent(nodes[it])) }
+                        .iterator()
             }
+
+        override fun get(key: T): Set<Content<T, V>>? = if (containsKey(key)) getContent(key) else null
+
+        override fun containsKey(key: T): Boolean {
+            val id = idOf(key)
+            return id != NO_ID && contentIndex[id] != null
         }
     }
 
-    private fun addToStar(pcs: Pcs<T>): Pcs<T> {
-        val root = classRepMap[pcs.root] ?: error("${pcs.root} not in class representatives")
-        val pred = classRepMap[pcs.predecessor] ?: error("${pcs.predecessor} not in class representatives")
-        val succ = classRepMap[pcs.successor] ?: error("${pcs.successor} not in class representatives")
-        val classRepPcs = Pcs(root, pred, succ, pcs.revision)
-        _pcsSet.add(classRepPcs)
-        return classRepPcs
+    /**
+     * A growable list of primitive ints.
+     */
+    private class IntList {
+        private var values = IntArray(4)
+
+        var size = 0
+            private set
+
+        operator fun get(index: Int): Int = values[index]
+
+        operator fun contains(value: Int): Boolean {
+            for (i in 0 until size) {
+                if (values[i] == value) return true
+            }
+            return false
+        }
+
+        fun add(value: Int) {
+            if (size == values.size) {
+                values = values.copyOf(size * 2)
+            }
+            values[size++] = value
+        }
+
+        fun removeIf(predicate: (Int) -> Boolean) {
+            var newSize = 0
+            for (i in 0 until size) {
+                if (!predicate(values[i])) {
+                    values[newSize++] = values[i]
+                }
+            }
+            size = newSize
+        }
     }
 
     companion object {
-        private fun <K, V> addToLookupTable(key: K, `val`: V, lookup: MutableMap<K, MutableSet<V>>) {
-            val values = lookup.getOrDefault(key, HashSet())
-            if (values.isEmpty()) lookup[key] = values
-            values.add(`val`)
+        private const val NO_ID = -1
+
+        // must be a power of two
+        private const val INITIAL_CAPACITY = 64
+
+        private fun hash(root: Int, pred: Int, succ: Int): Int {
+            val h = ((root * 31 + pred) * 31 + succ) * -0x61c88647
+            return h xor (h ushr 16)
         }
     }
 
@@ -170,14 +550,9 @@ class ChangeSet<T : ListNode, V>(private val classRepMap: Map<T, T>, getContent:
      *
      * @param classRepMap A map mapping each node to its class representative.
      * @param getContent A function for getting content from
-     * @param trees The trees to add to this T*.
+     * @param trees The trees to add to this T*. The first tree is the base tree.
      */
     init {
-        successors = HashMap()
-        predecessors = HashMap()
-        _content = HashMap()
-        _pcsSet = HashSet()
-        _structuralConflicts = HashMap()
-        trees.forEach { t: Set<Pcs<T>> -> add(t, getContent) }
+        trees.forEachIndexed { i, t -> add(t, getContent, i == 0) }
     }
 }
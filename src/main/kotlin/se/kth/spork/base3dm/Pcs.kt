@@ -1,7 +1,5 @@
 package se.kth.spork.base3dm
 
-import java.util.Objects
-
 /**
  * Representation of a Parent/Child/Successor triple for 3DM merge. Note that only root, predecessor and successor
  * values affect hashing and equality.
@@ -13,8 +11,9 @@ import java.util.Objects
  */
 data class Pcs<T : ListNode?>(val root: T, val predecessor: T, val successor: T, val revision: Revision) {
 
+    // equivalent to Objects.hash(root, predecessor, successor), but without allocating a varargs array
     override fun hashCode(): Int {
-        return Objects.hash(root, predecessor, successor)
+        return 31 * (31 * (31 + root.hashCode()) + predecessor.hashCode()) + successor.hashCode()
     }
 
     override fun equals(other: Any?): Boolean {
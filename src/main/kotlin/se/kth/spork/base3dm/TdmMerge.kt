@@ -2,6 +2,9 @@ package se.kth.spork.base3dm
 
 import se.kth.spork.exception.ConflictException
 import se.kth.spork.util.LazyLogger
+import se.kth.spork.util.mapPartitions
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
 
 /**
  * An implementation of the 3DM merge algorithm by Tancred Lindholm. For details on 3DM merge, see the paper
@@ -10,22 +13,82 @@ import se.kth.spork.util.LazyLogger
  * @author Simon Larsén
  */
 
-const val REV: String = "rev"
-
 private val LOGGER: LazyLogger = LazyLogger(Object::class.java)
 
+// the smallest amount of triples or nodes that is worth resolving concurrently
+private const val MIN_PARTITION_SIZE = 256
+
 /**
  * Attempt to resolve a raw merge by incrementally removing inconsistencies. The input delta is the raw merge, which
  * typically is an inconsistent PCS tree. When the algorithm has finished running, delta should be a forest of
  * consistent PCS trees. The forest consists of the merged tree, as well as any deleted subtrees.
  *
+ * Only the edits of the raw merge are visited. Base triples never conflict with each other, and so a base triple is
+ * only ever removed because it is inconsistent with an edit, which removes it regardless of which of the two is
+ * visited. Likewise, only nodes with more than one piece of content have their content merged, as everything else is
+ * as in base.
+ *
+ * As an edit is never removed, the inconsistencies of each edit can be found before any of them are resolved. The
+ * edits, as well as the nodes whose content is merged, are therefore split into partitions that are searched
+ * concurrently without modifying the raw merge. The results are then applied sequentially, in the same order as if
+ * the edits had been resolved one at a time, which makes the result independent of the amount of partitions.
+ *
  * A structural or content conflict means that 3DM was unable to create a consistent PCS structure.
  *
  * @param base The base revision.
  * @param delta The raw merge.
+ * @param checkBudget Called before each PCS triple is resolved, and may throw to abort the resolution.
+ * @param executor The executor to search the partitions on.
  */
-fun <T : ListNode, V> resolveRawMerge(base: ChangeSet<T, V>, delta: ChangeSet<T, V>) {
-    for (pcs in delta.pcsSet) {
+@JvmOverloads
+fun <T : ListNode, V> resolveRawMerge(
+    base: ChangeSet<T, V>,
+    delta: ChangeSet<T, V>,
+    checkBudget: () -> Unit = {},
+    executor: Executor = ForkJoinPool.commonPool(),
+) {
+    val mergedContents = mapPartitions(delta.nodesWithConflictingContent, MIN_PARTITION_SIZE, executor) { nodes ->
+        nodes.map {
+            checkBudget()
+            Pair(it, handleContentConflict(delta.getContent(it), base))
+        }
+    }
+    for ((node, contents) in mergedContents.flatten()) {
+        delta.setContent(node, contents.toMutableSet())
+    }
+
+    val inconsistencies = mapPartitions(delta.edits, MIN_PARTITION_SIZE, executor) { edits ->
+        edits.map {
+            checkBudget()
+            Pair(it, findInconsistencies(delta, it))
+        }
+    }
+    for ((pcs, others) in inconsistencies.flatten()) {
+        if (delta.contains(pcs)) {
+            resolveInconsistencies(base, delta, pcs, others)
+        }
+    }
+    logStructuralConflicts(delta)
+}
+
+/**
+ * Resolve the given PCS triples of a raw merge, and leave the rest of it as is. This is used to resolve the triples
+ * that have been updated with [ChangeSet.update] in a raw merge that has already been resolved.
+ *
+ * @param base The base revision.
+ * @param delta The raw merge.
+ * @param pcses The triples to resolve.
+ * @param checkBudget Called before each PCS triple is resolved, and may throw to abort the resolution.
+ */
+@JvmOverloads
+fun <T : ListNode, V> resolveRawMerge(
+    base: ChangeSet<T, V>,
+    delta: ChangeSet<T, V>,
+    pcses: Collection<Pcs<T>>,
+    checkBudget: () -> Unit = {},
+) {
+    for (pcs in pcses) {
+        checkBudget()
         if (!delta.contains(pcs)) {
             // was removed as otherPcs
             continue
@@ -39,17 +102,37 @@ fun <T : ListNode, V> resolveRawMerge(base: ChangeSet<T, V>, delta: ChangeSet<T,
         mergeContent(pcs.predecessor, base, delta)
         mergeContent(pcs.successor, base, delta)
 
-        val others: List<Pcs<T>> = delta.getOtherRoots(pcs) +
-            delta.getOtherPredecessors(pcs) +
-            delta.getOtherSuccessors(pcs)
-        others.forEach {
-            when {
-                base.contains(it) -> delta.remove(it)
-                base.contains(pcs) -> delta.remove(pcs)
-                else -> delta.registerStructuralConflict(pcs, it)
-            }
+        resolveInconsistencies(base, delta, pcs, findInconsistencies(delta, pcs))
+    }
+    logStructuralConflicts(delta)
+}
+
+/**
+ * Find the triples in the raw merge that are root, predecessor or successor conflicting with the given triple.
+ */
+private fun <T : ListNode, V> findInconsistencies(delta: ChangeSet<T, V>, pcs: Pcs<T>): List<Pcs<T>> =
+    delta.getOtherRoots(pcs) + delta.getOtherPredecessors(pcs) + delta.getOtherSuccessors(pcs)
+
+/**
+ * Resolve the inconsistencies between a triple and the other triples, by removing whichever is in base, or by
+ * registering a structural conflict if neither is.
+ */
+private fun <T : ListNode, V> resolveInconsistencies(
+    base: ChangeSet<T, V>,
+    delta: ChangeSet<T, V>,
+    pcs: Pcs<T>,
+    others: List<Pcs<T>>,
+) {
+    others.forEach {
+        when {
+            base.contains(it) -> delta.remove(it)
+            base.contains(pcs) -> delta.remove(pcs)
+            else -> delta.registerStructuralConflict(pcs, it)
         }
     }
+}
+
+private fun <T : ListNode, V> logStructuralConflicts(delta: ChangeSet<T, V>) {
     val structuralConflicts: Map<Pcs<T>, Set<Pcs<T>>> = delta.structuralConflicts
     if (structuralConflicts.isNotEmpty()) {
         LOGGER.warn { "STRUCTURAL CONFLICTS DETECTED: $structuralConflicts" }
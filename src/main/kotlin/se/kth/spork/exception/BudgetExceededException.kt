@@ -0,0 +1,6 @@
+package se.kth.spork.exception
+
+/**
+ * Thrown when a structured merge exceeds its [se.kth.spork.spoon.MergeBudget].
+ */
+class BudgetExceededException @JvmOverloads constructor(s: String, t: Throwable? = null) : SporkException(s, t)
@@ -0,0 +1,37 @@
+package se.kth.spork.git
+
+import org.eclipse.jgit.lib.Config
+import org.eclipse.jgit.lib.ObjectInserter
+import org.eclipse.jgit.lib.Repository
+import org.eclipse.jgit.merge.ThreeWayMergeStrategy
+import org.eclipse.jgit.merge.ThreeWayMerger
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * A JGit merge strategy that merges commits with Spork. See [SporkMerger] for details. The strategy can be
+ * used directly with e.g. JGit's merge command, or be registered under the name [NAME] with
+ * [org.eclipse.jgit.merge.MergeStrategy.register].
+ *
+ * Mergers created by this strategy always merge in-core.
+ *
+ * @param executor The executor to run file merges on.
+ * @param exitOnError Disallow the use of line-based fallback if the structured merge encounters an error.
+ */
+class SporkMergeStrategy @JvmOverloads constructor(
+    private val executor: Executor = ForkJoinPool.commonPool(),
+    private val exitOnError: Boolean = false,
+) : ThreeWayMergeStrategy() {
+    override fun getName(): String = NAME
+
+    override fun newMerger(db: Repository): ThreeWayMerger = SporkMerger(db, executor, exitOnError)
+
+    override fun newMerger(db: Repository, inCore: Boolean): ThreeWayMerger = newMerger(db)
+
+    override fun newMerger(inserter: ObjectInserter, config: Config): ThreeWayMerger =
+        SporkMerger(inserter, executor, exitOnError)
+
+    companion object {
+        const val NAME = "spork"
+    }
+}
@@ -0,0 +1,228 @@
+package se.kth.spork.git
+
+import org.eclipse.jgit.diff.RawText
+import org.eclipse.jgit.dircache.DirCache
+import org.eclipse.jgit.dircache.DirCacheBuilder
+import org.eclipse.jgit.dircache.DirCacheEntry
+import org.eclipse.jgit.lib.Constants
+import org.eclipse.jgit.lib.FileMode
+import org.eclipse.jgit.lib.ObjectId
+import org.eclipse.jgit.lib.ObjectInserter
+import org.eclipse.jgit.lib.Repository
+import org.eclipse.jgit.merge.ThreeWayMerger
+import org.eclipse.jgit.treewalk.TreeWalk
+import se.kth.spork.cli.Cli
+import se.kth.spork.util.LazyLogger
+import se.kth.spork.util.await
+import se.kth.spork.util.lineBasedMerge
+import se.kth.spork.util.runAsync
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+
+/**
+ * A merger that merges two commits entirely in memory, reading all file contents directly from the object
+ * database. Files that have been changed in both commits are merged with Spork if they are Java files, and
+ * with a line-based merge otherwise. The file merges are run concurrently on the provided executor.
+ *
+ * The merger never touches the working tree or the repository's index. Similarly to
+ * `git merge-tree --write-tree`, a result tree is always written, even if there are conflicts. Conflicting
+ * files are written to the result tree with conflict markers (or, if the file could not be merged at all, as
+ * the version in ours), and the [index] holds the base, ours and theirs versions of each conflicting file as
+ * stage 1, 2 and 3 entries. [merge] returns false if there are conflicts.
+ *
+ * Directory/file conflicts are not detected.
+ */
+class SporkMerger : ThreeWayMerger {
+    private val executor: Executor
+    private val exitOnError: Boolean
+    private var resultTree: ObjectId? = null
+
+    /** The index produced by the merge, with stage 1, 2 and 3 entries for conflicting files. */
+    var index: DirCache = DirCache.newInCore()
+        private set
+
+    /** Paths to all files that could not be merged cleanly. */
+    val conflicts: MutableList<String> = mutableListOf()
+
+    /**
+     * @param repository The repository to merge commits in.
+     * @param executor The executor to run file merges on.
+     * @param exitOnError Disallow the use of line-based fallback if the structured merge encounters an error.
+     */
+    constructor(repository: Repository, executor: Executor, exitOnError: Boolean) : super(repository, true) {
+        this.executor = executor
+        this.exitOnError = exitOnError
+    }
+
+    /**
+     * @param inserter The inserter to write merged blobs and trees with.
+     * @param executor The executor to run file merges on.
+     * @param exitOnError Disallow the use of line-based fallback if the structured merge encounters an error.
+     */
+    constructor(inserter: ObjectInserter, executor: Executor, exitOnError: Boolean) : super(inserter) {
+        this.executor = executor
+        this.exitOnError = exitOnError
+    }
+
+    override fun getResultTreeId(): ObjectId? = resultTree
+
+    override fun mergeImpl(): Boolean {
+        val treeWalk = TreeWalk(reader)
+        treeWalk.isRecursive = true
+        treeWalk.addTree(mergeBase())
+        treeWalk.addTree(sourceTrees[0])
+        treeWalk.addTree(sourceTrees[1])
+
+        // the blobs are read here, as the reader is not thread-safe, and only the file merges are run concurrently
+        val pathMerges = mutableListOf<PathMerge>()
+        while (treeWalk.next()) {
+            val path = treeWalk.pathString
+            val base = Version.of(treeWalk, BASE_TREE)
+            val ours = Version.of(treeWalk, OURS_TREE)
+            val theirs = Version.of(treeWalk, THEIRS_TREE)
+            pathMerges.add(
+                when {
+                    ours == theirs -> PathMerge.Resolved(path, ours)
+                    base == ours -> PathMerge.Resolved(path, theirs)
+                    base == theirs -> PathMerge.Resolved(path, ours)
+                    else -> mergeFile(path, base, ours, theirs)
+                },
+            )
+        }
+
+        val treeBuilder = DirCache.newInCore().builder()
+        val indexBuilder = index.builder()
+        for (pathMerge in pathMerges) {
+            when (pathMerge) {
+                is PathMerge.Resolved -> pathMerge.version?.let {
+                    treeBuilder.add(pathMerge.path, DirCacheEntry.STAGE_0, it)
+                    indexBuilder.add(pathMerge.path, DirCacheEntry.STAGE_0, it)
+                }
+                is PathMerge.Merged -> addMerge(pathMerge, treeBuilder, indexBuilder)
+            }
+        }
+        treeBuilder.finish()
+        indexBuilder.finish()
+
+        resultTree = treeBuilder.dirCache.writeTree(objectInserter)
+        objectInserter.flush()
+        return conflicts.isEmpty()
+    }
+
+    private fun mergeFile(path: String, base: Version?, ours: Version?, theirs: Version?): PathMerge {
+        if (ours == null || theirs == null || !ours.isFile || !theirs.isFile || (base != null && !base.isFile)) {
+            LOGGER.info { "Unmergeable change to $path" }
+            return PathMerge.Merged(path, base, ours, theirs, mode = null, content = null)
+        }
+
+        val mode = mergeModes(base?.mode, ours.mode, theirs.mode)
+        val baseBytes = base?.let { readBlob(it.id) } ?: ByteArray(0)
+        val oursBytes = readBlob(ours.id)
+        val theirsBytes = readBlob(theirs.id)
+        if (RawText.isBinary(baseBytes) || RawText.isBinary(oursBytes) || RawText.isBinary(theirsBytes)) {
+            LOGGER.info { "Binary file $path changed in both revisions" }
+            return PathMerge.Merged(path, base, ours, theirs, mode, content = null)
+        }
+
+        val baseContent = String(baseBytes, StandardCharsets.UTF_8)
+        val oursContent = String(oursBytes, StandardCharsets.UTF_8)
+        val theirsContent = String(theirsBytes, StandardCharsets.UTF_8)
+        val content = runAsync(executor) {
+            LOGGER.info { "Merging $path" }
+            if (path.endsWith(".java")) {
+                Cli.merge(baseContent, oursContent, theirsContent, exitOnError)
+            } else {
+                lineBasedMerge(baseContent, oursContent, theirsContent)
+            }
+        }
+        return PathMerge.Merged(path, base, ours, theirs, mode, content)
+    }
+
+    private fun addMerge(merge: PathMerge.Merged, treeBuilder: DirCacheBuilder, indexBuilder: DirCacheBuilder) {
+        val merged = merge.content?.await()
+        if (merged != null && merged.second == 0 && merge.mode != null) {
+            val mergedVersion = Version(merge.mode, insertBlob(merged.first))
+            treeBuilder.add(merge.path, DirCacheEntry.STAGE_0, mergedVersion)
+            indexBuilder.add(merge.path, DirCacheEntry.STAGE_0, mergedVersion)
+            return
+        }
+
+        conflicts.add(merge.path)
+        val conflictVersion = when {
+            merged != null -> Version(merge.mode ?: merge.ours!!.mode, insertBlob(merged.first))
+            else -> merge.ours ?: merge.theirs
+        }
+        conflictVersion?.let { treeBuilder.add(merge.path, DirCacheEntry.STAGE_0, it) }
+        merge.base?.let { indexBuilder.add(merge.path, DirCacheEntry.STAGE_1, it) }
+        merge.ours?.let { indexBuilder.add(merge.path, DirCacheEntry.STAGE_2, it) }
+        merge.theirs?.let { indexBuilder.add(merge.path, DirCacheEntry.STAGE_3, it) }
+    }
+
+    private fun readBlob(id: ObjectId): ByteArray = reader.open(id, Constants.OBJ_BLOB).bytes
+
+    private fun insertBlob(content: String): ObjectId {
+        val terminated = if (content.isEmpty() || content.endsWith("\n")) content else content + "\n"
+        return objectInserter.insert(Constants.OBJ_BLOB, terminated.toByteArray(StandardCharsets.UTF_8))
+    }
+
+    private fun DirCacheBuilder.add(path: String, stage: Int, version: Version) {
+        val entry = DirCacheEntry(path, stage)
+        entry.fileMode = version.mode
+        entry.setObjectId(version.id)
+        add(entry)
+    }
+
+    /**
+     * A version of a file in one of the trees under merge.
+     */
+    private data class Version(val mode: FileMode, val id: ObjectId) {
+        val isFile: Boolean
+            get() = FileMode.REGULAR_FILE == mode || FileMode.EXECUTABLE_FILE == mode
+
+        override fun equals(other: Any?): Boolean =
+            other is Version && mode.bits == other.mode.bits && id == other.id
+
+        override fun hashCode(): Int = id.hashCode()
+
+        companion object {
+            fun of(treeWalk: TreeWalk, tree: Int): Version? =
+                if (treeWalk.getRawMode(tree) == 0) null else Version(treeWalk.getFileMode(tree), treeWalk.getObjectId(tree))
+        }
+    }
+
+    /**
+     * The merge of a single path.
+     */
+    private sealed class PathMerge(val path: String) {
+        /** A path that is resolved without merging the file, a null version meaning that the file is deleted. */
+        class Resolved(path: String, val version: Version?) : PathMerge(path)
+
+        /**
+         * A path that has been changed in both revisions. The content is null if the file could not be merged,
+         * and the mode is null if the file modes could not be merged.
+         */
+        class Merged(
+            path: String,
+            val base: Version?,
+            val ours: Version?,
+            val theirs: Version?,
+            val mode: FileMode?,
+            val content: CompletableFuture<Pair<String, Int>>?,
+        ) : PathMerge(path)
+    }
+
+    companion object {
+        private val LOGGER = LazyLogger(SporkMerger::class.java)
+        private const val BASE_TREE = 0
+        private const val OURS_TREE = 1
+        private const val THEIRS_TREE = 2
+
+        private fun mergeModes(base: FileMode?, ours: FileMode, theirs: FileMode): FileMode? = when {
+            ours == theirs -> ours
+            base == ours -> theirs
+            base == theirs -> ours
+            else -> null
+        }
+    }
+}
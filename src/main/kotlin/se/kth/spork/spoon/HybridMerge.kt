@@ -0,0 +1,354 @@
+package se.kth.spork.spoon
+
+import org.eclipse.jgit.diff.RawText
+import org.eclipse.jgit.merge.MergeChunk
+import org.eclipse.jgit.merge.MergeResult
+import se.kth.spork.exception.BudgetExceededException
+import se.kth.spork.spoon.matching.MatcherPolicy
+import se.kth.spork.spoon.printer.PrinterPreprocessor
+import se.kth.spork.spoon.printer.SourceExtractor
+import se.kth.spork.spoon.printer.SporkPrettyPrinter
+import se.kth.spork.spoon.wrappers.NodeFactory
+import se.kth.spork.spoon.wrappers.NodeTable
+import se.kth.spork.util.LazyLogger
+import se.kth.spork.util.formatLineBasedMerge
+import se.kth.spork.util.lineBasedMerge
+import se.kth.spork.util.lineBasedMergeResult
+import spoon.reflect.declaration.CtElement
+import spoon.reflect.declaration.CtExecutable
+import spoon.reflect.declaration.CtField
+import spoon.reflect.declaration.CtModule
+import spoon.reflect.declaration.CtPackage
+import spoon.reflect.declaration.CtType
+import spoon.reflect.declaration.CtTypeMember
+import spoon.reflect.path.CtRole
+import java.util.Arrays
+
+/**
+ * Hybrid of line-based and structured merge. The revisions are first merged line-based, and structured merge is
+ * then only used for the type members that enclose the conflicting hunks. The merged members are spliced back into
+ * the line-based merge, such that the cost of structured merge is proportional to the size of the conflicting
+ * members rather than to the size of the file.
+ */
+object HybridMerge {
+    private val LOGGER = LazyLogger(HybridMerge::class.java)
+
+    /**
+     * Merge the left and right revisions with hybrid merge.
+     *
+     * @param base The base revision.
+     * @param left The left revision.
+     * @param right The right revision.
+     * @param parse Function that parses the revisions into trees on the form (base, left, right). It is only called
+     * if the line-based merge has conflicts.
+     * @param matcherPolicy The policy for selecting the tree matching algorithms of the member merges.
+     * @param report A report to record statistics about the merge in.
+     * @param budget The budget of each member merge. A member whose structured merge exceeds the budget is merged
+     * line-based instead.
+     * @return A pair on the form (merge, numConflicts), or null if a conflicting hunk could not be localized to a
+     * single type member in all revisions. If null is returned, the parsed trees have not been modified, and can be
+     * used for a full structured merge.
+     */
+    @JvmOverloads
+    fun merge(
+        base: String,
+        left: String,
+        right: String,
+        parse: () -> Triple<CtModule, CtModule, CtModule>,
+        matcherPolicy: MatcherPolicy = MatcherPolicy.ADAPTIVE,
+        report: MergeReport = MergeReport(),
+        budget: MergeBudget = MergeBudget.UNLIMITED,
+    ): Pair<String, Int>? {
+        LOGGER.info { "Merging line-based" }
+        val lineMerge = report.time(MergeReport.Phase.LINE_BASED_MERGE) { lineBasedMergeResult(base, left, right) }
+        val hunks = conflictingHunks(lineMerge)
+        if (hunks.isEmpty()) {
+            LOGGER.info { "Line-based merge has no conflicts" }
+            return formatLineBasedMerge(lineMerge)
+        }
+
+        LOGGER.info { "Localizing ${hunks.size} conflicting hunks to type members" }
+        val (baseTree, leftTree, rightTree) = parse()
+        val sources = listOf(base, left, right)
+        val trees = listOf(baseTree, leftTree, rightTree)
+        val regions = trees.zip(sources).map { (tree, source) -> memberRegions(tree, source) }
+        val conflictingMembers = localize(hunks, regions) ?: return null
+        report.hybridMembers += conflictingMembers.size
+
+        val imports = (importNames(leftTree) + importNames(rightTree)).distinct()
+        var numConflicts = 0
+        val mergedMembers = conflictingMembers.map {
+            val (mergedLines, memberConflicts) = try {
+                mergeMember(it, imports, matcherPolicy, report, budget.renew())
+            } catch (e: BudgetExceededException) {
+                LOGGER.warn { "${e.message}, merging member ${it[1].key} line-based" }
+                report.degradedMembers++
+                lineBasedMergeMember(it, sources)
+            }
+            numConflicts += memberConflicts
+            mergedLines
+        }
+
+        val merge = splice(lineMerge, conflictingMembers, mergedMembers)
+        report.numConflicts = numConflicts
+        return Pair(merge, numConflicts)
+    }
+
+    /**
+     * @return The conflicting hunks of the merge, with one line range per revision in the order (base, left, right).
+     * JGit omits the base range of some conflicts, in which case it is null.
+     */
+    private fun conflictingHunks(lineMerge: MergeResult<RawText>): List<List<LineRange?>> {
+        val hunks = mutableListOf<List<LineRange?>>()
+        var current: Array<LineRange?> = arrayOfNulls(3)
+        for (chunk in lineMerge) {
+            if (chunk.conflictState == MergeChunk.ConflictState.NO_CONFLICT) {
+                continue
+            }
+            current[chunk.sequenceIndex] = LineRange(chunk.begin, chunk.end)
+            if (chunk.conflictState == MergeChunk.ConflictState.NEXT_CONFLICTING_RANGE) {
+                hunks.add(current.toList())
+                current = arrayOfNulls(3)
+            }
+        }
+        return hunks
+    }
+
+    /**
+     * Find the innermost type member that encloses each hunk in each revision. All hunks must be enclosed by type
+     * members that represent the same declaration in all revisions, and the enclosing members must not overlap.
+     *
+     * @return The enclosing members in the order they appear in the revisions, or null if any hunk could not be
+     * localized.
+     */
+    private fun localize(
+        hunks: List<List<LineRange?>>,
+        regions: List<List<MemberRegion>>,
+    ): List<List<MemberRegion>>? {
+        val members = LinkedHashMap<String, List<MemberRegion>>()
+        for (hunk in hunks) {
+            val enclosing = hunk.indices.map { revision ->
+                val range = hunk[revision] ?: run {
+                    LOGGER.info { "Conflicting hunk $hunk has no base range" }
+                    return null
+                }
+                regions[revision].filter { it.lines.encloses(range) }.minByOrNull { it.lines.size }
+            }
+            if (enclosing.any { it == null }) {
+                LOGGER.info { "Conflicting hunk $hunk is not enclosed by a type member" }
+                return null
+            }
+
+            val memberRegions = enclosing.map { it!! }
+            val key = memberRegions[0].key
+            if (memberRegions.any { it.key != key }) {
+                LOGGER.info { "Conflicting hunk $hunk is enclosed by different members in different revisions" }
+                return null
+            }
+            val previous = members.putIfAbsent(key, memberRegions)
+            if (previous != null && previous.zip(memberRegions).any { (p, m) -> p.member !== m.member }) {
+                LOGGER.info { "Member $key is ambiguous" }
+                return null
+            }
+        }
+
+        val sorted = members.values.sortedBy { it[1].lines.begin }
+        for (revision in 0 until 3) {
+            for ((previous, next) in sorted.zipWithNext()) {
+                if (previous[revision].lines.end > next[revision].lines.begin) {
+                    LOGGER.info { "Conflicting members ${previous[revision].key} and ${next[revision].key} overlap" }
+                    return null
+                }
+            }
+        }
+        return sorted
+    }
+
+    /**
+     * Merge a single type member, and return the lines of the pretty-printed merge, indented as the left revision
+     * of the member.
+     */
+    private fun mergeMember(
+        regions: List<MemberRegion>,
+        imports: List<String>,
+        matcherPolicy: MatcherPolicy,
+        report: MergeReport,
+        budget: MergeBudget,
+    ): Pair<List<String>, Int> {
+        val (base, left, right) = regions.map { it.member }
+        LOGGER.info { "Merging conflicting member ${regions[1].key}" }
+
+        // the members are merged as if they were roots, as their parents are not part of the merge
+        val memberReport = MergeReport()
+        val (merged, numConflicts) = try {
+            NodeTable().use {
+                NodeFactory.forceWrap(base, NodeFactory.virtualRoot)
+                NodeFactory.forceWrap(left, NodeFactory.virtualRoot)
+                NodeFactory.forceWrap(right, NodeFactory.virtualRoot)
+                Spoon3dmMerge.merge(base, left, right, matcherPolicy, memberReport, budget)
+            }
+        } finally {
+            memberReport.phaseDurations.forEach(report::addDuration)
+        }
+        report.structuralConflicts += memberReport.structuralConflicts
+        report.contentConflicts += memberReport.contentConflicts
+
+        // the printer needs the context of the member, such as the declaring type of a constructor, but the merged
+        // member must not be added to the left tree
+        merged.setParent<CtElement>(left.parent)
+        val activePackage = left.getParent(CtPackage::class.java)?.qualifiedName ?: ""
+        val pretty = report.time(MergeReport.Phase.PRETTY_PRINT) {
+            PrinterPreprocessor(imports, activePackage).scan(merged)
+
+            // CtElement.toString strips the indentation of the first line, so the printer is used directly to
+            // print the member at the same depth as in the left revision
+            val env = merged.factory.environment
+            val printer = env.createPrettyPrinter() as SporkPrettyPrinter
+            printer.applyPreProcessors(merged)
+            printer.setTabCount(SourceExtractor.getIndentation(left) / env.tabulationSize)
+            printer.scan(merged).result
+        }
+        return Pair(pretty.lines(), numConflicts)
+    }
+
+    /**
+     * Merge the lines of a single type member line-based, in the same way as a child list that can't be merged
+     * structurally is, see [se.kth.spork.spoon.pcsinterpreter.SporkTreeBuilder].
+     */
+    private fun lineBasedMergeMember(regions: List<MemberRegion>, sources: List<String>): Pair<List<String>, Int> {
+        val (base, left, right) = regions.zip(sources).map { (region, source) ->
+            source.split("\n").subList(region.lines.begin, region.lines.end).joinToString("\n")
+        }
+        val (merge, numConflicts) = lineBasedMerge(base, left, right)
+        return Pair(merge.lines(), numConflicts)
+    }
+
+    /**
+     * Splice the merged members into the line-based merge, replacing all lines that belong to the members in any
+     * revision.
+     */
+    private fun splice(
+        lineMerge: MergeResult<RawText>,
+        members: List<List<MemberRegion>>,
+        mergedMembers: List<List<String>>,
+    ): String {
+        // the first member that contains each line, per revision
+        val membersByLine = lineMerge.sequences.indices.map { sequenceIndex ->
+            val membersByLine = HashMap<Int, Int>()
+            members.forEachIndexed { member, regions ->
+                val lines = regions[sequenceIndex].lines
+                for (line in lines.begin until lines.end) {
+                    membersByLine.putIfAbsent(line, member)
+                }
+            }
+            membersByLine
+        }
+        val lines = mutableListOf<String>()
+        val spliced = BooleanArray(members.size)
+        for (chunk in lineMerge) {
+            val sequence = lineMerge.sequences[chunk.sequenceIndex]
+            for (line in chunk.begin until chunk.end) {
+                val member = membersByLine[chunk.sequenceIndex][line] ?: -1
+                if (member == -1) {
+                    check(chunk.conflictState == MergeChunk.ConflictState.NO_CONFLICT) {
+                        "conflicting line $line is not part of a conflicting member"
+                    }
+                    lines.add(sequence.getString(line))
+                } else if (!spliced[member]) {
+                    lines.addAll(mergedMembers[member])
+                    spliced[member] = true
+                }
+            }
+        }
+        check(spliced.all { it }) { "not all conflicting members were spliced into the merge" }
+        return lines.joinToString("\n")
+    }
+
+    /**
+     * @return The regions of all type members in the tree that occupy whole lines of source code.
+     */
+    private fun memberRegions(tree: CtModule, source: String): List<MemberRegion> {
+        val members = tree.getElements { member: CtTypeMember ->
+            member.roleInParent == CtRole.TYPE_MEMBER && !member.isImplicit && SourceExtractor.hasSourcePos(member)
+        }
+        val lineStarts = lineStarts(source)
+        return members.mapNotNull { member ->
+            val positions = (listOf(member) + member.comments).map(CtElement::getPosition)
+            if (positions.any { !it.isValidPosition || it.compilationUnit.originalSourceCode != source }) {
+                return@mapNotNull null
+            }
+            val start = positions.minOf { it.sourceStart }
+            val end = positions.maxOf { it.sourceEnd }
+            val lineStart = source.lastIndexOf('\n', start - 1) + 1
+            val lineEnd = source.indexOf('\n', end + 1).let { if (it == -1) source.length else it }
+            if (source.substring(lineStart, start).isNotBlank() || source.substring(end + 1, lineEnd).isNotBlank()) {
+                return@mapNotNull null
+            }
+
+            val firstLine = lineOf(lineStarts, start)
+            val lastLine = lineOf(lineStarts, end + 1)
+            MemberRegion(member, memberKey(member), LineRange(firstLine, lastLine + 1))
+        }
+    }
+
+    /**
+     * @return The offsets at which the lines of the source code start, in ascending order.
+     */
+    private fun lineStarts(source: String): IntArray {
+        val lineStarts = mutableListOf(0)
+        source.forEachIndexed { i, c -> if (c == '\n') lineStarts.add(i + 1) }
+        return lineStarts.toIntArray()
+    }
+
+    /**
+     * @return The 0-indexed line that contains the offset, which is the amount of line breaks before it.
+     */
+    private fun lineOf(lineStarts: IntArray, offset: Int): Int {
+        val i = Arrays.binarySearch(lineStarts, offset)
+        return if (i >= 0) i else -i - 2
+    }
+
+    private fun memberKey(member: CtTypeMember): String {
+        val name = when (member) {
+            is CtExecutable<*> -> member.signature
+            is CtField<*> -> member.simpleName
+            is CtType<*> -> member.qualifiedName
+            else -> member.toString()
+        }
+        return "${member.declaringType?.qualifiedName}#$name"
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun importNames(tree: CtModule): List<String> {
+        val imports = tree.getMetadata(Parser.IMPORT_STATEMENTS) as Collection<Any>? ?: return emptyList()
+        return imports.map(Any::toString).map { it.substring("import ".length, it.length - 1) }
+    }
+
+    /**
+     * A half-open range of 0-indexed lines.
+     */
+    private data class LineRange(val begin: Int, val end: Int) {
+        val size: Int
+            get() = end - begin
+
+        fun contains(line: Int): Boolean = line in begin until end
+
+        /**
+         * @return true if the other range lies within this range. An empty range is an insertion point, and is only
+         * enclosed if there are lines of this range both before and after it.
+         */
+        fun encloses(other: LineRange): Boolean =
+            if (other.size == 0) begin < other.begin && other.begin < end else begin <= other.begin && other.end <= end
+
+        override fun toString(): String = "[$begin, $end)"
+    }
+
+    /**
+     * The lines occupied by a type member in one revision.
+     */
+    private class MemberRegion(
+        val member: CtTypeMember,
+        val key: String,
+        val lines: LineRange,
+    )
+}
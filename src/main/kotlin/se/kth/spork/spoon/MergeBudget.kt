@@ -0,0 +1,56 @@
+package se.kth.spork.spoon
+
+import se.kth.spork.exception.BudgetExceededException
+import java.time.Duration
+
+/**
+ * Limits on the resources that a single structured merge may use. A merge checks its budget between phases and
+ * inside its longest-running loops, and aborts with a [BudgetExceededException] as soon as the budget is exceeded.
+ * The caller can then degrade to a cheaper merge, such as merging only the conflicting type members structurally
+ * and the rest line-based, see [HybridMerge].
+ *
+ * The deadline starts when the budget is created, so a budget should be created right before the merge it limits.
+ * A budget is thread safe.
+ *
+ * @param timeout The maximum duration of the merge, or null for no limit.
+ * @param maxNodes The maximum amount of nodes in any revision that takes part in the merge, or null for no limit.
+ */
+class MergeBudget @JvmOverloads constructor(val timeout: Duration? = null, val maxNodes: Int? = null) {
+    private val deadline: Long? = timeout?.let { System.nanoTime() + it.toNanos() }
+
+    /** Whether this budget has no limits at all. */
+    val isUnlimited: Boolean
+        get() = timeout == null && maxNodes == null
+
+    /**
+     * @throws BudgetExceededException if the deadline has passed.
+     */
+    fun checkDeadline() {
+        if (deadline != null && System.nanoTime() - deadline > 0) {
+            throw BudgetExceededException("Merge exceeded its timeout of ${timeout!!.toMillis()} ms")
+        }
+    }
+
+    /**
+     * @param numNodes The amount of nodes in a revision.
+     * @throws BudgetExceededException if the amount of nodes exceeds the limit.
+     */
+    fun checkNodes(numNodes: Int) {
+        if (maxNodes != null && numNodes > maxNodes) {
+            throw BudgetExceededException("Merge of $numNodes nodes exceeded its limit of $maxNodes nodes")
+        }
+    }
+
+    /**
+     * @return A budget with the same limits, whose deadline starts now.
+     */
+    fun renew(): MergeBudget = if (isUnlimited) this else MergeBudget(timeout, maxNodes)
+
+    override fun toString(): String = "MergeBudget(timeout=$timeout, maxNodes=$maxNodes)"
+
+    companion object {
+        /** A budget without limits. */
+        @JvmField
+        val UNLIMITED = MergeBudget()
+    }
+}
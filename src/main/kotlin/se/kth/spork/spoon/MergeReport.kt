@@ -0,0 +1,145 @@
+package se.kth.spork.spoon
+
+import se.kth.spork.spoon.matching.MatcherAlgorithm
+import java.util.EnumMap
+
+/**
+ * Statistics about a single structured merge. A report is filled in by [Spoon3dmMerge] and
+ * [se.kth.spork.cli.Cli] as the merge progresses, such that the cost of a merge can be attributed
+ * to the individual phases and to the size of the input, without having to enable debug logging.
+ *
+ * A report is not thread safe, and must only be updated from the thread that runs the merge.
+ */
+class MergeReport {
+    /** The phases of a merge that are timed. */
+    enum class Phase {
+        PARSE,
+        MEMBER_PRUNING,
+        PCS_BUILDING,
+        GUMTREE_CONVERSION,
+        MATCHING,
+        CLASS_REPRESENTATIVES,
+        CHANGE_SET_CONSTRUCTION,
+        RESOLVE,
+        INTERPRET,
+        METADATA_MERGE,
+        DUPLICATE_MEMBERS,
+        PRETTY_PRINT,
+        LINE_BASED_MERGE,
+    }
+
+    private val durations: MutableMap<Phase, Long> = EnumMap(Phase::class.java)
+
+    /** The time spent in each phase, in nanoseconds. Phases that are run more than once accumulate. */
+    val phaseDurations: Map<Phase, Long>
+        get() = EnumMap(durations)
+
+    /** The total time spent in all phases, in nanoseconds. */
+    val totalDuration: Long
+        get() = durations.values.sum()
+
+    var baseNodes: Int = 0
+    var leftNodes: Int = 0
+    var rightNodes: Int = 0
+
+    var basePcses: Int = 0
+    var leftPcses: Int = 0
+    var rightPcses: Int = 0
+    var mergedPcses: Int = 0
+
+    /**
+     * The algorithms that were used for the tree matchings. The left-to-right algorithm is null if there was nothing
+     * to match, see [se.kth.spork.spoon.matching.matchLeftRight].
+     */
+    var baseLeftMatcher: MatcherAlgorithm? = null
+    var baseRightMatcher: MatcherAlgorithm? = null
+    var leftRightMatcher: MatcherAlgorithm? = null
+
+    var baseLeftMappings: Int = 0
+    var baseRightMappings: Int = 0
+    var leftRightMappings: Int = 0
+
+    /** The amount of type members that were identical in all revisions, and pruned from the merge. */
+    var unchangedMembers: Int = 0
+
+    /** The amount of type members that were merged structurally in a hybrid merge. */
+    var hybridMembers: Int = 0
+
+    /** Whether the structured merge of the whole file exceeded its budget, see [MergeBudget]. */
+    var budgetExceeded: Boolean = false
+
+    /** The amount of type members that exceeded their budget in a hybrid merge, and were merged line-based. */
+    var degradedMembers: Int = 0
+
+    var structuralConflicts: Int = 0
+    var contentConflicts: Int = 0
+
+    /** The amount of conflicts in the final output. Differs from the sum of structural and content
+     * conflicts if the merge fell back to line-based merge. */
+    var numConflicts: Int = 0
+
+    /** Whether root conflicts were found, such that the conflicting nodes were unmatched and the raw merge
+     * updated and resolved again. */
+    var rootConflictRestart: Boolean = false
+
+    /** Whether the merge was determined from the contents alone, without parsing the revisions. */
+    var trivialMerge: Boolean = false
+
+    /** Whether the structured merge was discarded in favor of a line-based merge. */
+    var lineBasedFallback: Boolean = false
+
+    /**
+     * Run the computation and add its duration to the given phase.
+     *
+     * @param phase The phase that the computation belongs to.
+     * @param computation The computation to time.
+     * @return The result of the computation.
+     */
+    inline fun <T> time(phase: Phase, computation: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return computation()
+        } finally {
+            addDuration(phase, System.nanoTime() - start)
+        }
+    }
+
+    fun addDuration(phase: Phase, nanos: Long) {
+        durations.merge(phase, nanos, Long::plus)
+    }
+
+    /**
+     * @return This report as a single-line JSON object. Durations are given in seconds.
+     */
+    fun toJson(): String {
+        val phases = durations.entries.joinToString(",") { (phase, nanos) ->
+            "\"${phase.name.lowercase()}\":${nanos.toSeconds()}"
+        }
+        return "{" +
+            "\"numConflicts\":$numConflicts," +
+            "\"structuralConflicts\":$structuralConflicts," +
+            "\"contentConflicts\":$contentConflicts," +
+            "\"trivialMerge\":$trivialMerge," +
+            "\"rootConflictRestart\":$rootConflictRestart," +
+            "\"lineBasedFallback\":$lineBasedFallback," +
+            "\"totalSeconds\":${totalDuration.toSeconds()}," +
+            "\"phaseSeconds\":{$phases}," +
+            "\"unchangedMembers\":$unchangedMembers," +
+            "\"hybridMembers\":$hybridMembers," +
+            "\"budgetExceeded\":$budgetExceeded," +
+            "\"degradedMembers\":$degradedMembers," +
+            "\"nodes\":{\"base\":$baseNodes,\"left\":$leftNodes,\"right\":$rightNodes}," +
+            "\"pcses\":{\"base\":$basePcses,\"left\":$leftPcses,\"right\":$rightPcses,\"merged\":$mergedPcses}," +
+            "\"mappings\":{\"baseLeft\":$baseLeftMappings,\"baseRight\":$baseRightMappings," +
+            "\"leftRight\":$leftRightMappings}," +
+            "\"matchers\":{\"baseLeft\":${baseLeftMatcher.toJson()},\"baseRight\":${baseRightMatcher.toJson()}," +
+            "\"leftRight\":${leftRightMatcher.toJson()}}" +
+            "}"
+    }
+
+    override fun toString(): String = toJson()
+
+    private fun Long.toSeconds(): Double = toDouble() / 1e9
+
+    private fun MatcherAlgorithm?.toJson(): String = if (this == null) "null" else "\"$this\""
+}
@@ -0,0 +1,82 @@
+package se.kth.spork.spoon
+
+import se.kth.spork.util.LazyLogger
+import spoon.Launcher
+import spoon.reflect.factory.Factory
+import spoon.reflect.factory.FactoryImpl
+import spoon.support.DefaultCoreFactory
+import spoon.support.StandardEnvironment
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+
+/**
+ * A session in which any number of files are parsed and merged, in sequence or concurrently. The session creates the
+ * launchers that the [Parser] parses with, and the factories that merged trees are built in.
+ *
+ * Spoon parses each file with a fresh JDT compiler, which builds its name environment from the source classpath. When
+ * no source classpath is configured, JDT falls back to the class path of the JVM, and opens and indexes every jar on
+ * it on every parse. For a small file, that is most of the cost of parsing it. The launchers of a session are instead
+ * configured with an empty directory as source classpath, which the session creates once, so JDT only has to look
+ * up types in the JDK's own modules, which it indexes once per process. Spork parses without a classpath anyway, so
+ * types from Spork's own dependencies were never meant to be resolved in the merged files.
+ *
+ * Launchers and factories are not reused between parses and merges, as a Spoon model can't be cleared, and creating
+ * them is cheap compared to building the JDT name environment. A merge therefore carries no state over to the next
+ * one, other than the directory.
+ *
+ * A session is thread safe. Closing it removes the directory, after which no more launchers or factories can be
+ * created.
+ */
+class MergeSession : AutoCloseable {
+    private val classpath: Path = Files.createTempDirectory("spork-session")
+
+    @Volatile
+    private var closed = false
+
+    /**
+     * @return A new launcher, configured to parse with the session's source classpath.
+     */
+    fun newLauncher(): Launcher {
+        check(!closed) { "Merge session is closed" }
+        val launcher = Launcher()
+        launcher.environment.sourceClasspath = arrayOf(classpath.toString())
+        return launcher
+    }
+
+    /**
+     * Create a factory for building a tree that is not parsed, such as a merged tree.
+     *
+     * Merged trees used to be built in the factory of a new [Launcher]. The factory's environment is instead a plain
+     * [StandardEnvironment], so the default settings that a launcher applies to its environment are no longer
+     * applied. Like the launchers, the environment uses the session's empty source classpath, and factories are
+     * created anew rather than pooled.
+     *
+     * @return A new factory.
+     */
+    fun newFactory(): Factory {
+        check(!closed) { "Merge session is closed" }
+        val environment = StandardEnvironment()
+        environment.sourceClasspath = arrayOf(classpath.toString())
+        return FactoryImpl(DefaultCoreFactory(), environment)
+    }
+
+    override fun close() {
+        closed = true
+        try {
+            Files.deleteIfExists(classpath)
+        } catch (e: IOException) {
+            LOGGER.warn { "Failed to remove session classpath $classpath: ${e.message}" }
+        }
+    }
+
+    companion object {
+        private val LOGGER = LazyLogger(MergeSession::class.java)
+
+        /** The session that is used unless another one is set with [Parser.session]. It is never closed. */
+        @JvmStatic
+        val DEFAULT: MergeSession by lazy {
+            MergeSession().also { it.classpath.toFile().deleteOnExit() }
+        }
+    }
+}
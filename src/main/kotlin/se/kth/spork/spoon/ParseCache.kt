@@ -0,0 +1,241 @@
+package se.kth.spork.spoon
+
+import se.kth.spork.util.LazyLogger
+import spoon.reflect.declaration.CtElement
+import spoon.reflect.declaration.CtModule
+import spoon.reflect.factory.Factory
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.io.ObjectInputFilter
+import java.io.ObjectInputStream
+import java.io.ObjectOutputStream
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A content-addressed cache of parsed revisions. The same file contents are often parsed many times, for example
+ * when replaying the merges of a repository, or when a merge server is asked to merge a file that changed in
+ * several commits. Parsing dominates the cost of most merges, so the parsed trees are cached, keyed by a hash of
+ * the file contents, the Spork version and a fingerprint of the build. Development builds share a version, so the
+ * fingerprint is what keeps trees produced by older code from being reused.
+ *
+ * A tree is mutated by the merge, and can therefore not be shared between merges. Entries are instead stored in
+ * serialized form, and each lookup deserializes a private copy of the tree, which is much cheaper than parsing it.
+ * The cache has an in-memory tier, and an optional on-disk tier that persists entries across processes. Both
+ * tiers evict the least recently used entries when they exceed their capacity.
+ *
+ * The on-disk tier lives in a directory chosen by the user, so its entries are not trusted. They are deserialized
+ * with a filter that only admits the classes of Spoon, Kotlin and the JDK, and entries that are rejected by the
+ * filter are discarded like any other unreadable entry.
+ *
+ * The cache is thread safe.
+ *
+ * @param version The version of Spork. Entries created by other versions or builds are never used.
+ * @param directory Directory for the on-disk tier, or null to only cache in memory.
+ * @param memoryCapacity The maximum total size of the in-memory tier, in bytes.
+ * @param diskCapacity The maximum total size of the on-disk tier, in bytes.
+ */
+class ParseCache @JvmOverloads constructor(
+    private val version: String,
+    private val directory: Path? = null,
+    private val memoryCapacity: Long = DEFAULT_MEMORY_CAPACITY,
+    private val diskCapacity: Long = DEFAULT_DISK_CAPACITY,
+) {
+    private val memory = LinkedHashMap<String, ByteArray>(16, 0.75f, true)
+    private var memorySize = 0L
+
+    private val memoryHitCount = AtomicLong()
+    private val diskHitCount = AtomicLong()
+    private val missCount = AtomicLong()
+
+    /** The amount of lookups that were served from the in-memory tier. */
+    val memoryHits: Long
+        get() = memoryHitCount.get()
+
+    /** The amount of lookups that were served from the on-disk tier. */
+    val diskHits: Long
+        get() = diskHitCount.get()
+
+    /** The amount of lookups that required parsing. */
+    val misses: Long
+        get() = missCount.get()
+
+    init {
+        directory?.let(Files::createDirectories)
+    }
+
+    /**
+     * Get a private copy of the tree that results from parsing the contents, or parse it and cache the result if
+     * it is not in the cache.
+     *
+     * @param contents The contents of a single Java file.
+     * @param excludeComments Whether or not the comments are excluded when parsing.
+     * @param parse Function that parses the contents.
+     * @return The root module of the Spoon tree.
+     */
+    fun getOrParse(contents: String, excludeComments: Boolean, parse: () -> CtModule): CtModule {
+        val key = key(contents, excludeComments)
+        val cached = getFromMemory(key)?.also { memoryHitCount.incrementAndGet() }
+            ?: getFromDisk(key)?.also {
+                diskHitCount.incrementAndGet()
+                putInMemory(key, it)
+            }
+        if (cached != null) {
+            val module = deserialize(key, cached)
+            if (module != null) {
+                LOGGER.info { "Parse cache hit for $key" }
+                return module
+            }
+        }
+
+        LOGGER.info { "Parse cache miss for $key" }
+        missCount.incrementAndGet()
+        val module = parse()
+        val serialized = serialize(module)
+        putInMemory(key, serialized)
+        putOnDisk(key, serialized)
+        return module
+    }
+
+    override fun toString(): String = "ParseCache(memoryHits=$memoryHits, diskHits=$diskHits, misses=$misses)"
+
+    private fun key(contents: String, excludeComments: Boolean): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val prefix = "$version\u0000$BUILD_FINGERPRINT\u0000$excludeComments\u0000"
+        digest.update(prefix.toByteArray(StandardCharsets.UTF_8))
+        digest.update(contents.toByteArray(StandardCharsets.UTF_8))
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    @Synchronized
+    private fun getFromMemory(key: String): ByteArray? = memory[key]
+
+    @Synchronized
+    private fun putInMemory(key: String, serialized: ByteArray) {
+        if (serialized.size > memoryCapacity) {
+            return
+        }
+        memory.put(key, serialized)?.let { memorySize -= it.size }
+        memorySize += serialized.size
+
+        val entries = memory.entries.iterator()
+        while (memorySize > memoryCapacity) {
+            val eldest = entries.next()
+            memorySize -= eldest.value.size
+            entries.remove()
+        }
+    }
+
+    private fun getFromDisk(key: String): ByteArray? {
+        val file = directory?.resolve(key + FILE_EXTENSION) ?: return null
+        return try {
+            val serialized = Files.readAllBytes(file)
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()))
+            serialized
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun putOnDisk(key: String, serialized: ByteArray) {
+        val dir = directory ?: return
+        try {
+            // entries are written to a temporary file and then moved into place, such that concurrent processes
+            // never read partially written entries. The temporary file is removed if it could not be moved.
+            val tmp = Files.createTempFile(dir, key, ".tmp")
+            try {
+                Files.write(tmp, serialized)
+                Files.move(tmp, dir.resolve(key + FILE_EXTENSION), StandardCopyOption.ATOMIC_MOVE)
+            } finally {
+                Files.deleteIfExists(tmp)
+            }
+            evictFromDisk(dir)
+        } catch (e: IOException) {
+            LOGGER.warn { "Failed to write parse cache entry $key: ${e.message}" }
+        }
+    }
+
+    @Synchronized
+    private fun evictFromDisk(dir: Path) {
+        val entries = Files.list(dir).use { files ->
+            files.filter { it.fileName.toString().endsWith(FILE_EXTENSION) }.map { it.toFile() }.toList()
+        }
+        var diskSize = entries.sumOf { it.length() }
+        for (entry in entries.sortedBy { it.lastModified() }) {
+            if (diskSize <= diskCapacity) {
+                break
+            }
+            diskSize -= entry.length()
+            entry.delete()
+        }
+    }
+
+    private fun serialize(module: CtModule): ByteArray {
+        val bytes = ByteArrayOutputStream()
+        ObjectOutputStream(bytes).use { it.writeObject(module.factory) }
+        return bytes.toByteArray()
+    }
+
+    private fun deserialize(key: String, serialized: ByteArray): CtModule? {
+        val factory = try {
+            ObjectInputStream(ByteArrayInputStream(serialized)).use {
+                it.objectInputFilter = DESERIALIZATION_FILTER
+                it.readObject() as Factory
+            }
+        } catch (e: Exception) {
+            LOGGER.warn { "Discarding unreadable parse cache entry $key: ${e.message}" }
+            synchronized(this) { memory.remove(key)?.let { memorySize -= it.size } }
+            directory?.let { Files.deleteIfExists(it.resolve(key + FILE_EXTENSION)) }
+            return null
+        }
+
+        // the factory is not serialized with the elements, see spoon.support.SerializationModelStreamer
+        val module = factory.model.unnamedModule
+        factory.createQuery(module).filterChildren { element: CtElement ->
+            element.setFactory(factory)
+            element.position.compilationUnit?.setFactory(factory)
+            false
+        }.list<CtElement>()
+
+        val env = factory.environment
+        Parser.setSporkEnvironment(env, env.tabulationSize, env.isUsingTabulations)
+        return module
+    }
+
+    companion object {
+        private val LOGGER = LazyLogger(ParseCache::class.java)
+
+        private const val FILE_EXTENSION = ".ser"
+
+        // the classes that a parsed tree consists of, anything else is rejected
+        private val DESERIALIZATION_FILTER: ObjectInputFilter =
+            ObjectInputFilter.Config.createFilter("spoon.**;java.**;kotlin.**;!*")
+
+        /**
+         * A fingerprint of the build of Spork that is running. It is the size and modification time of the jar that
+         * Spork is loaded from, or the latest modification time of its class files if it is not run from a jar.
+         */
+        private val BUILD_FINGERPRINT: String by lazy {
+            val location = ParseCache::class.java.protectionDomain.codeSource?.location ?: return@lazy "UNKNOWN"
+            val file = File(location.toURI())
+            if (file.isDirectory) {
+                file.walk().filter(File::isFile).maxOfOrNull(File::lastModified).toString()
+            } else {
+                "${file.length()}-${file.lastModified()}"
+            }
+        }
+
+        /** The default capacity of the in-memory tier, in bytes. */
+        const val DEFAULT_MEMORY_CAPACITY = 256L * 1024 * 1024
+
+        /** The default capacity of the on-disk tier, in bytes. */
+        const val DEFAULT_DISK_CAPACITY = 1024L * 1024 * 1024
+    }
+}
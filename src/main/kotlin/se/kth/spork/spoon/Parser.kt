@@ -3,8 +3,11 @@ package se.kth.spork.spoon
 import se.kth.spork.spoon.printer.SourceExtractor
 import se.kth.spork.spoon.printer.SporkPrettyPrinter
 import se.kth.spork.util.LazyLogger
+import se.kth.spork.util.await
+import se.kth.spork.util.runAsync
 import spoon.Launcher
 import spoon.compiler.Environment
+import spoon.compiler.SpoonResource
 import spoon.reflect.CtModel
 import spoon.reflect.declaration.CtElement
 import spoon.reflect.declaration.CtImport
@@ -12,9 +15,14 @@ import spoon.reflect.declaration.CtModule
 import spoon.reflect.declaration.CtType
 import spoon.support.compiler.FileSystemFile
 import spoon.support.compiler.VirtualFile
+import spoon.support.reflect.declaration.CtCompilationUnitImpl
 import java.io.IOException
+import java.lang.reflect.Field
+import java.nio.charset.StandardCharsets
 import java.nio.file.Files
 import java.nio.file.Path
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
 
 /**
  * A class for dealing with parsing.
@@ -26,6 +34,41 @@ object Parser {
     const val COMPILATION_UNIT_COMMENT = "spork_cu_comment"
     private val LOGGER = LazyLogger(Parser::class.java)
 
+    // Spoon only reads the original source code of a compilation unit from disk, which is needed both to guess the
+    // indentation and to print unchanged parts of the tree verbatim. Parsed strings are therefore given a
+    // (non-existent) file name, and their original source code is injected directly into the compilation unit's
+    // private field. If the field can't be accessed, strings are instead parsed from temporary files.
+    private const val VIRTUAL_FILE_NAME = "VirtualFile.java"
+    private val ORIGINAL_SOURCE_CODE: Field? by lazy {
+        try {
+            CtCompilationUnitImpl::class.java.getDeclaredField("originalSourceCode").apply { isAccessible = true }
+        } catch (e: Exception) {
+            LOGGER.warn {
+                "Could not access the original source code of Spoon's compilation units ($e). " +
+                    "Falling back to parsing strings from temporary files."
+            }
+            null
+        }
+    }
+
+    /**
+     * Cache of parsed revisions, or null to always parse. If set, parsing a file or string whose contents are in the
+     * cache returns a private copy of the cached tree.
+     */
+    @JvmStatic
+    @Volatile
+    var cache: ParseCache? = null
+
+    /**
+     * The session to create launchers and factories in, or null to use [MergeSession.DEFAULT].
+     */
+    @JvmStatic
+    @Volatile
+    var session: MergeSession? = null
+
+    internal val activeSession: MergeSession
+        get() = session ?: MergeSession.DEFAULT
+
     /**
      * Parse a Java file to a Spoon tree. Any import statements in the file are attached to the returned module's
      * metadata with the [Parser.IMPORT_STATEMENTS] key. The imports are sorted in ascending lexicographical
@@ -35,11 +78,38 @@ object Parser {
      * @return The root module of the Spoon tree.
      */
     fun parse(javaFile: Path): CtModule {
-        return parse { launcher: Launcher -> launcher.addInputResource(FileSystemFile(javaFile.toFile())) }
+        val parseFile = { parse { launcher: Launcher -> launcher.addInputResource(FileSystemFile(javaFile.toFile())) } }
+        val cache = cache ?: return parseFile()
+        val contents = String(Files.readAllBytes(javaFile), StandardCharsets.UTF_8)
+        return cache.getOrParse(contents, false, parseFile)
+    }
+
+    /**
+     * Parse the base, left and right revisions concurrently. Each file is parsed exactly as with [parse], with
+     * its own launcher and model, so the revisions share no state other than their session. The left and right
+     * revisions are parsed on the executor, while the base revision is parsed on the calling thread.
+     *
+     * @param base Path to the base revision.
+     * @param left Path to the left revision.
+     * @param right Path to the right revision.
+     * @param executor The executor to parse the left and right revisions on.
+     * @return A triple on the form (baseModule, leftModule, rightModule).
+     */
+    @JvmOverloads
+    fun parse(
+        base: Path,
+        left: Path,
+        right: Path,
+        executor: Executor = ForkJoinPool.commonPool(),
+    ): Triple<CtModule, CtModule, CtModule> {
+        val leftModule = runAsync(executor) { parse(left) }
+        val rightModule = runAsync(executor) { parse(right) }
+        val baseModule = parse(base)
+        return Triple(baseModule, leftModule.await(), rightModule.await())
     }
 
     /**
-     * Parse the contents of a single Java file.
+     * Parse the contents of a single Java file. The result is equivalent to parsing a file with the same contents.
      *
      * @param javaFileContents The contents of a single Java file.
      * @param excludeComments Whether or not to exclude comments when parsing.
@@ -47,12 +117,37 @@ object Parser {
      */
     @JvmOverloads
     fun parse(javaFileContents: String, excludeComments: Boolean = false): CtModule {
-        return parse { launcher: Launcher ->
-            if (excludeComments) {
-                launcher.environment.setCommentEnabled(false)
+        val parseContents = {
+            if (ORIGINAL_SOURCE_CODE == null) {
+                parseTemporaryFile(javaFileContents, excludeComments)
+            } else {
+                val resource = VirtualFile(javaFileContents, VIRTUAL_FILE_NAME)
+                parse(javaFileContents, configureLauncher(resource, excludeComments))
             }
-            launcher.addInputResource(VirtualFile(javaFileContents))
         }
+        val cache = cache ?: return parseContents()
+        return cache.getOrParse(javaFileContents, excludeComments, parseContents)
+    }
+
+    private fun parseTemporaryFile(javaFileContents: String, excludeComments: Boolean): CtModule {
+        val file = Files.createTempFile("spork", ".java")
+        try {
+            Files.write(file, javaFileContents.toByteArray(StandardCharsets.UTF_8))
+            val module = parse(null, configureLauncher(FileSystemFile(file.toFile()), excludeComments))
+
+            // the original source code is read lazily, and must be read before the file is deleted
+            module.factory.CompilationUnit().map.values.forEach { it.originalSourceCode }
+            return module
+        } finally {
+            Files.deleteIfExists(file)
+        }
+    }
+
+    private fun configureLauncher(resource: SpoonResource, excludeComments: Boolean) = { launcher: Launcher ->
+        if (excludeComments) {
+            launcher.environment.setCommentEnabled(false)
+        }
+        launcher.addInputResource(resource)
     }
 
     fun setSporkEnvironment(env: Environment, tabulationSize: Int, useTabs: Boolean) {
@@ -62,10 +157,15 @@ object Parser {
         env.noClasspath = true
     }
 
-    private fun parse(configureLauncher: (Launcher) -> Unit): CtModule {
-        val launcher = Launcher()
+    private fun parse(sourceCode: String? = null, configureLauncher: (Launcher) -> Unit): CtModule {
+        val launcher = activeSession.newLauncher()
         configureLauncher(launcher)
         val model = launcher.buildModel()
+        if (sourceCode != null) {
+            for (cu in launcher.factory.CompilationUnit().map.values) {
+                ORIGINAL_SOURCE_CODE!!.set(cu, sourceCode)
+            }
+        }
         val indentationGuess = SourceExtractor.guessIndentation(model)
         val indentationType = if (indentationGuess.second) "tabs" else "spaces"
         LOGGER.info { "Using indentation: " + indentationGuess.first + " " + indentationType }
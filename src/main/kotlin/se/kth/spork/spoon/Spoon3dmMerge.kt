@@ -1,12 +1,12 @@
 package se.kth.spork.spoon
 
 import com.github.gumtreediff.matchers.Matcher
-import com.github.gumtreediff.matchers.Matchers
 import com.github.gumtreediff.tree.ITree
-import gumtree.spoon.builder.SpoonGumTreeBuilder
 import se.kth.spork.base3dm.ChangeSet
+import se.kth.spork.base3dm.Pcs
 import se.kth.spork.base3dm.Revision
 import se.kth.spork.base3dm.resolveRawMerge
+import se.kth.spork.exception.BudgetExceededException
 import se.kth.spork.spoon.Parser.parse
 import se.kth.spork.spoon.conflict.CommentContentHandler
 import se.kth.spork.spoon.conflict.IsImplicitHandler
@@ -15,16 +15,30 @@ import se.kth.spork.spoon.conflict.MethodOrderingConflictHandler
 import se.kth.spork.spoon.conflict.ModifierHandler
 import se.kth.spork.spoon.conflict.OptimisticInsertInsertHandler
 import se.kth.spork.spoon.conflict.StructuralConflict
+import se.kth.spork.spoon.matching.FunctionMatcherPolicy
 import se.kth.spork.spoon.matching.MappingRemover.Companion.removeFromMappings
+import se.kth.spork.spoon.matching.MatcherAlgorithm
+import se.kth.spork.spoon.matching.MatcherPolicy
 import se.kth.spork.spoon.matching.SpoonMapping.Companion.fromGumTreeMapping
+import se.kth.spork.spoon.matching.buildPrunedGumTree
 import se.kth.spork.spoon.matching.createClassRepresentativesMapping
+import se.kth.spork.spoon.matching.markUnchangedMembers
+import se.kth.spork.spoon.matching.matchLeftRight
+import se.kth.spork.spoon.matching.matchTrees
+import se.kth.spork.spoon.matching.matchUnchangedMembers
+import se.kth.spork.spoon.matching.unmarkUnchangedMembers
+import se.kth.spork.spoon.matching.updateClassRepresentativesMapping
 import se.kth.spork.spoon.pcsinterpreter.fromMergedPcs
 import se.kth.spork.spoon.wrappers.NodeFactory
 import se.kth.spork.spoon.wrappers.NodeFactory.clearNonRevisionMetadata
 import se.kth.spork.spoon.wrappers.NodeFactory.forceWrap
 import se.kth.spork.spoon.wrappers.NodeFactory.virtualRoot
+import se.kth.spork.spoon.wrappers.NodeTable
+import se.kth.spork.spoon.wrappers.SpoonNode
 import se.kth.spork.util.LazyLogger
+import se.kth.spork.util.await
 import se.kth.spork.util.lineBasedMerge
+import se.kth.spork.util.runAsync
 import spoon.reflect.declaration.CtElement
 import spoon.reflect.declaration.CtExecutable
 import spoon.reflect.declaration.CtField
@@ -37,6 +51,8 @@ import java.nio.file.Path
 import java.util.ArrayList
 import java.util.Arrays
 import java.util.HashSet
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
 
 /**
  * Spoon specialization of the 3DM merge algorithm.
@@ -52,20 +68,52 @@ object Spoon3dmMerge {
      * @param base The base revision.
      * @param left The left revision.
      * @param right The right revision.
+     * @param report A report to record statistics about the merge in.
      * @return A pair on the form (mergeTree, numConflicts).
      */
-    fun merge(base: Path, left: Path, right: Path): Pair<CtModule, Int> {
+    @JvmOverloads
+    fun merge(base: Path, left: Path, right: Path, report: MergeReport = MergeReport()): Pair<CtModule, Int> {
         val start = System.nanoTime()
 
         // PARSING PHASE
         LOGGER.info { "Parsing files to Spoon trees" }
-        val baseTree = parse(base)
-        val leftTree = parse(left)
-        val rightTree = parse(right)
+        val (baseTree, leftTree, rightTree) = report.time(MergeReport.Phase.PARSE) { parse(base, left, right) }
         val end = System.nanoTime()
         val timeDelta = (end - start).toDouble() / 1e9
         LOGGER.info { "Parsed files in $timeDelta seconds" }
-        return merge(baseTree, leftTree, rightTree)
+        return merge(baseTree, leftTree, rightTree, report)
+    }
+
+    /**
+     * Merge the left and right revisions. The base revision is used for computing edits, and should
+     * be the best common ancestor of left and right.
+     *
+     * @param base The base revision.
+     * @param left The left revision.
+     * @param right The right revision.
+     * @param matcherPolicy The policy that selects the algorithm for each tree matching.
+     * @param report A report to record statistics about the merge in.
+     * @param budget The budget of the merge. It is checked between the phases of the merge, and in the matching and
+     * resolution loops, but not while interpreting the merged PCS structure. If the merge is aborted because it
+     * exceeded the budget, the input trees are left as they were.
+     * @param executor The executor to run the concurrent parts of the matching, resolution and interpretation
+     * phases on.
+     * @return A pair on the form (mergeTree, numConflicts).
+     * @throws se.kth.spork.exception.BudgetExceededException if the merge exceeds its budget.
+     */
+    @JvmOverloads
+    fun <T : CtElement> merge(
+        base: T,
+        left: T,
+        right: T,
+        matcherPolicy: MatcherPolicy,
+        report: MergeReport = MergeReport(),
+        budget: MergeBudget = MergeBudget.UNLIMITED,
+        executor: Executor = ForkJoinPool.commonPool(),
+    ): Pair<T, Int> {
+        // nested merges, such as those of duplicated members, share the node table of the enclosing merge
+        val nodes = NodeTable.current ?: NodeTable()
+        return nodes.use { merge(base, left, right, matcherPolicy, report, budget, executor, nodes) }
     }
 
     /**
@@ -80,70 +128,129 @@ object Spoon3dmMerge {
      * @param leftRightMatcher Function that returns a matcher for the left-to-right matching.
      * @return A pair on the form (mergeTree, numConflicts).
      */
+    @Deprecated(
+        "Select the matchers with a MatcherPolicy",
+        ReplaceWith("merge(base, left, right, MatcherPolicy.CLASSIC)", "se.kth.spork.spoon.matching.MatcherPolicy"),
+    )
     fun <T : CtElement> merge(
         base: T,
         left: T,
         right: T,
         baseMatcher: (ITree, ITree) -> Matcher,
         leftRightMatcher: (ITree, ITree) -> Matcher,
+    ): Pair<T, Int> {
+        return merge(base, left, right, FunctionMatcherPolicy(baseMatcher, leftRightMatcher))
+    }
+
+    private fun <T : CtElement> merge(
+        base: T,
+        left: T,
+        right: T,
+        matcherPolicy: MatcherPolicy,
+        report: MergeReport,
+        budget: MergeBudget,
+        executor: Executor,
+        nodes: NodeTable,
+    ): Pair<T, Int> {
+        // members that are identical in all revisions are matched up front, and their subtrees are
+        // pruned from the rest of the merge
+        LOGGER.info { "Finding unchanged type members" }
+        val unchangedMembers = report.time(MergeReport.Phase.MEMBER_PRUNING) {
+            markUnchangedMembers(base, left, right)
+        }
+        report.unchangedMembers += unchangedMembers.size
+
+        try {
+            return merge(base, left, right, unchangedMembers, matcherPolicy, report, budget, executor, nodes)
+        } catch (e: BudgetExceededException) {
+            unmarkUnchangedMembers(unchangedMembers)
+            throw e
+        }
+    }
+
+    private fun <T : CtElement> merge(
+        base: T,
+        left: T,
+        right: T,
+        unchangedMembers: List<Triple<CtTypeMember, CtTypeMember, CtTypeMember>>,
+        matcherPolicy: MatcherPolicy,
+        report: MergeReport,
+        budget: MergeBudget,
+        executor: Executor,
+        nodes: NodeTable,
     ): Pair<T, Int> {
         val start = System.nanoTime()
+        budget.checkDeadline()
+
+        // building the PCS triples wraps every node, so doing it before the concurrent matching phase
+        // means that wrappers are created sequentially and in a deterministic order
+        LOGGER.info { "Converting Spoon trees to PCS triples" }
+        val (t0, t1, t2) = report.time(MergeReport.Phase.PCS_BUILDING) {
+            Triple(
+                PcsBuilder.fromSpoon(base, Revision.BASE),
+                PcsBuilder.fromSpoon(left, Revision.LEFT),
+                PcsBuilder.fromSpoon(right, Revision.RIGHT),
+            )
+        }
+        report.basePcses = t0.size
+        report.leftPcses = t1.size
+        report.rightPcses = t2.size
+        report.baseNodes = countNodes(t0)
+        report.leftNodes = countNodes(t1)
+        report.rightNodes = countNodes(t2)
+        budget.checkNodes(maxOf(report.baseNodes, report.leftNodes, report.rightNodes))
+        budget.checkDeadline()
 
         // MATCHING PHASE
         LOGGER.info { "Converting to GumTree trees" }
-        val baseGumtree = SpoonGumTreeBuilder().getTree(base)
-        val leftGumtree = SpoonGumTreeBuilder().getTree(left)
-        val rightGumtree = SpoonGumTreeBuilder().getTree(right)
-        LOGGER.info { "Matching trees with GumTree" }
-        val baseLeftGumtreeMatch = baseMatcher(baseGumtree, leftGumtree)
-        val baseRightGumtreeMatch = baseMatcher(baseGumtree, rightGumtree)
-        val leftRightGumtreeMatch = leftRightMatcher(leftGumtree, rightGumtree)
-        LOGGER.info { "Converting GumTree matches to Spoon matches" }
-        val baseLeft = fromGumTreeMapping(baseLeftGumtreeMatch.mappings)
-        val baseRight = fromGumTreeMapping(baseRightGumtreeMatch.mappings)
-        val leftRight = fromGumTreeMapping(leftRightGumtreeMatch.mappings)
+        val (baseGumtree, leftGumtree, rightGumtree) = report.time(MergeReport.Phase.GUMTREE_CONVERSION) {
+            val leftGumtreeFuture = runAsync(executor) {
+                buildPrunedGumTree(left, unchangedMembers.map { it.second })
+            }
+            val rightGumtreeFuture = runAsync(executor) {
+                buildPrunedGumTree(right, unchangedMembers.map { it.third })
+            }
+            val baseGumtree = buildPrunedGumTree(base, unchangedMembers.map { it.first })
+            Triple(baseGumtree, leftGumtreeFuture.await(), rightGumtreeFuture.await())
+        }
+        budget.checkDeadline()
+
+        val baseLeftMatcher = matcherPolicy.select(baseGumtree, leftGumtree, true)
+        val baseRightMatcher = matcherPolicy.select(baseGumtree, rightGumtree, true)
+        report.baseLeftMatcher = baseLeftMatcher
+        report.baseRightMatcher = baseRightMatcher
+
+        // the matchers never modify the trees they match, so the trees can be shared between them, and the node
+        // table is bound to the matching threads as the matchings are converted to wrapped Spoon nodes
+        LOGGER.info { "Matching trees with $baseLeftMatcher and $baseRightMatcher" }
+        val (baseLeft, baseRight) = report.time(MergeReport.Phase.MATCHING) {
+            val baseLeftFuture = runAsync(executor) {
+                nodes.use { fromGumTreeMapping(matcherPolicy.matchTrees(baseLeftMatcher, baseGumtree, leftGumtree, true, budget).mappings) }
+            }
+            val baseRight = fromGumTreeMapping(matcherPolicy.matchTrees(baseRightMatcher, baseGumtree, rightGumtree, true, budget).mappings)
+            val baseLeft = baseLeftFuture.await()
+            matchUnchangedMembers(unchangedMembers.map { Pair(it.first, it.second) }, baseLeft)
+            matchUnchangedMembers(unchangedMembers.map { Pair(it.first, it.third) }, baseRight)
+            Pair(baseLeft, baseRight)
+        }
+        budget.checkDeadline()
+
+        // the left-to-right matching depends on the base matchings, as only the subtrees that are unmatched to base
+        // in both revisions are matched
+        LOGGER.info { "Matching unmatched subtrees of left and right" }
+        val leftRight = report.time(MergeReport.Phase.MATCHING) {
+            val (leftRight, leftRightMatcher) =
+                matchLeftRight(leftGumtree, rightGumtree, baseLeft, baseRight, matcherPolicy, budget)
+            report.leftRightMatcher = leftRightMatcher
+            matchUnchangedMembers(unchangedMembers.map { Pair(it.second, it.third) }, leftRight)
+            leftRight
+        }
+        budget.checkDeadline()
 
         // 3DM PHASE
         LOGGER.info { "Mapping nodes to class representatives" }
-        var classRepMap = createClassRepresentativesMapping(
-            base,
-            left,
-            right,
-            baseLeft,
-            baseRight,
-            leftRight,
-        )
-        LOGGER.info { "Converting Spoon trees to PCS triples" }
-        val t0 = PcsBuilder.fromSpoon(base, Revision.BASE)
-        val t1 = PcsBuilder.fromSpoon(left, Revision.LEFT)
-        val t2 = PcsBuilder.fromSpoon(right, Revision.RIGHT)
-        LOGGER.info { "Computing raw PCS merge" }
-        var delta = ChangeSet(
-            classRepMap,
-            ::getContent,
-            t0,
-            t1,
-            t2,
-        )
-        val t0Star = ChangeSet(
-            classRepMap,
-            ::getContent,
-            t0,
-        )
-        LOGGER.info { "Resolving final PCS merge" }
-        resolveRawMerge(t0Star, delta)
-        val rootConflictingNodes = StructuralConflict.extractRootConflictingNodes(delta.structuralConflicts)
-        if (!rootConflictingNodes.isEmpty()) {
-            LOGGER.info { "Root conflicts detected, restarting merge" }
-            LOGGER.info { "Removing root conflicting nodes from tree matchings" }
-            removeFromMappings(
-                rootConflictingNodes,
-                baseLeft,
-                baseRight,
-                leftRight,
-            )
-            LOGGER.info { "Mapping nodes to class representatives" }
-            classRepMap = createClassRepresentativesMapping(
+        val classRepMap = report.time(MergeReport.Phase.CLASS_REPRESENTATIVES) {
+            createClassRepresentativesMapping(
                 base,
                 left,
                 right,
@@ -151,11 +258,59 @@ object Spoon3dmMerge {
                 baseRight,
                 leftRight,
             )
-            LOGGER.info { "Computing raw PCS merge" }
-            delta = ChangeSet(classRepMap, ::getContent, t0, t1, t2)
-            LOGGER.info { "Resolving final PCS merge" }
-            resolveRawMerge(t0Star, delta)
         }
+        budget.checkDeadline()
+        LOGGER.info { "Computing raw PCS merge" }
+        val delta = report.time(MergeReport.Phase.CHANGE_SET_CONSTRUCTION) {
+            ChangeSet(
+                classRepMap,
+                ::getContent,
+                t0,
+                t1,
+                t2,
+            )
+        }
+        val t0Star = report.time(MergeReport.Phase.CHANGE_SET_CONSTRUCTION) {
+            ChangeSet(
+                classRepMap,
+                ::getContent,
+                t0,
+            )
+        }
+        budget.checkDeadline()
+        LOGGER.info { "Resolving final PCS merge" }
+        report.time(MergeReport.Phase.RESOLVE) { resolveRawMerge(t0Star, delta, budget::checkDeadline, executor) }
+        val rootConflictingNodes = StructuralConflict.extractRootConflictingNodes(delta.structuralConflicts)
+        if (!rootConflictingNodes.isEmpty()) {
+            // the nodes involved in root conflicts are unmatched, and only the parts of the class representatives
+            // and the raw merge that depend on them are recomputed and resolved again
+            LOGGER.info { "Root conflicts detected, updating merge" }
+            report.rootConflictRestart = true
+            LOGGER.info { "Removing root conflicting nodes from tree matchings" }
+            val unmatchedNodes = report.time(MergeReport.Phase.MATCHING) {
+                removeFromMappings(
+                    rootConflictingNodes,
+                    baseLeft,
+                    baseRight,
+                    leftRight,
+                )
+            }
+            LOGGER.info { "Updating class representatives" }
+            val previousClassReps = report.time(MergeReport.Phase.CLASS_REPRESENTATIVES) {
+                updateClassRepresentativesMapping(classRepMap, unmatchedNodes, baseLeft, baseRight, leftRight)
+            }
+            LOGGER.info { "Updating raw PCS merge" }
+            val updated = report.time(MergeReport.Phase.CHANGE_SET_CONSTRUCTION) {
+                delta.update(previousClassReps, ::getContent, t0, t1, t2)
+            }
+            LOGGER.info { "Resolving ${updated.size} updated PCS triples" }
+            report.time(MergeReport.Phase.RESOLVE) { resolveRawMerge(t0Star, delta, updated, budget::checkDeadline) }
+        }
+        budget.checkDeadline()
+        report.mergedPcses = delta.size
+        report.baseLeftMappings = baseLeft.size
+        report.baseRightMappings = baseRight.size
+        report.leftRightMappings = leftRight.size
 
         // INTERPRETER PHASE
         LOGGER.info { "Interpreting resolved PCS merge" }
@@ -169,27 +324,35 @@ object Spoon3dmMerge {
             IsUpperHandler(),
             CommentContentHandler(),
         )
-        val merge = fromMergedPcs(
-            delta,
-            baseLeft,
-            baseRight,
-            structuralConflictHandlers,
-            contentConflictHandlers,
-        )
+        val merge = report.time(MergeReport.Phase.INTERPRET) {
+            fromMergedPcs(
+                delta,
+                baseLeft,
+                baseRight,
+                structuralConflictHandlers,
+                contentConflictHandlers,
+                report,
+                executor,
+            )
+        }
 
         // we can be certain that the merge tree has the same root type as the three constituents,
         // so this cast is safe
         @Suppress("UNCHECKED_CAST")
         val mergeTree = merge.first as T
         val numConflicts = merge.second
-        val metadataElementConflicts = mergeMetadataElements(mergeTree, base, left, right)
+        val metadataElementConflicts = report.time(MergeReport.Phase.METADATA_MERGE) {
+            mergeMetadataElements(mergeTree, base, left, right)
+        }
+        report.contentConflicts += metadataElementConflicts
         LOGGER.info { "Checking for duplicated members" }
-        val duplicateMemberConflicts = eliminateDuplicateMembers(mergeTree)
+        val duplicateMemberConflicts = report.time(MergeReport.Phase.DUPLICATE_MEMBERS) {
+            eliminateDuplicateMembers(mergeTree, report)
+        }
         LOGGER.info { "Merged in " + (System.nanoTime() - start).toDouble() / 1e9 + " seconds" }
-        return Pair(
-            mergeTree,
-            numConflicts + metadataElementConflicts + duplicateMemberConflicts,
-        )
+        val totalConflicts = numConflicts + metadataElementConflicts + duplicateMemberConflicts
+        report.numConflicts = totalConflicts
+        return Pair(mergeTree, totalConflicts)
     }
 
     /**
@@ -197,18 +360,23 @@ object Spoon3dmMerge {
      * be the best common ancestor of left and right.
      *
      *
-     * Uses the full GumTree matcher for base-to-left and base-to-right, and the XY matcher for
-     * left-to-right matchings.
+     * Selects the matchers with [MatcherPolicy.ADAPTIVE], which uses the full GumTree matcher for
+     * base-to-left and base-to-right, and the XY matcher for left-to-right matchings, unless the trees
+     * are very large.
      *
      * @param base The base revision.
      * @param left The left revision.
      * @param right The right revision.
+     * @param report A report to record statistics about the merge in.
      * @return A pair on the form (mergeTree, numConflicts).
      */
-    fun <T : CtElement> merge(base: T, left: T, right: T): Pair<T, Int> {
-        return merge(base, left, right, ::matchTrees, ::matchTreesXY)
+    @JvmOverloads
+    fun <T : CtElement> merge(base: T, left: T, right: T, report: MergeReport = MergeReport()): Pair<T, Int> {
+        return merge(base, left, right, MatcherPolicy.ADAPTIVE, report)
     }
 
+    private fun countNodes(pcses: Set<Pcs<SpoonNode>>): Int = pcses.count { !it.successor.isVirtual }
+
     private fun mergeMetadataElements(
         mergeTree: CtElement,
         base: CtElement,
@@ -230,16 +398,16 @@ object Spoon3dmMerge {
         return numConflicts
     }
 
-    private fun eliminateDuplicateMembers(merge: CtElement): Int {
+    private fun eliminateDuplicateMembers(merge: CtElement, report: MergeReport): Int {
         val types = merge.getElements { _: CtType<*> -> true }
         var numConflicts = 0
         for (type in types) {
-            numConflicts += eliminateDuplicateMembers(type)
+            numConflicts += eliminateDuplicateMembers(type, report)
         }
         return numConflicts
     }
 
-    private fun eliminateDuplicateMembers(type: CtType<*>): Int {
+    private fun eliminateDuplicateMembers(type: CtType<*>, report: MergeReport): Int {
         val members: List<CtTypeMember> = ArrayList(type.typeMembers)
         var numConflicts = 0
 
@@ -278,14 +446,18 @@ object Spoon3dmMerge {
             forceWrap(right, virtualRoot)
             forceWrap(dummyBase, virtualRoot)
 
-            // use the full gumtree matcher as both base matcher and left-to-right matcher
+            // use the full gumtree matcher as both base matcher and left-to-right matcher, and only
+            // keep the conflicts of the member merge as the rest is already accounted for
+            val memberReport = MergeReport()
             val mergePair = merge(
                 dummyBase,
                 left,
                 right,
-                ::matchTrees,
-                ::matchTrees,
+                { _, _, _ -> MatcherAlgorithm.GUMTREE },
+                memberReport,
             )
+            report.structuralConflicts += memberReport.structuralConflicts
+            report.contentConflicts += memberReport.contentConflicts
             numConflicts += mergePair.second
             val mergedMember = mergePair.first
             left.delete()
@@ -351,20 +523,4 @@ object Spoon3dmMerge {
         val merge = rawMerge - baseLeftDeletions - baseRightDeletions
         return merge.toList().sortedBy(CtImport::toString)
     }
-
-    private fun matchTrees(src: ITree, dst: ITree): Matcher {
-        val matcher = Matchers.getInstance().getMatcher(src, dst)
-        matcher.match()
-        return matcher
-    }
-
-    private fun matchTreesXY(src: ITree, dst: ITree): Matcher {
-        val matcher = Matchers.getInstance().getMatcher("xy", src, dst)
-        matcher.match()
-        return matcher
-    }
-
-    init {
-        System.setProperty("gt.xym.sim", "0.7")
-    }
 }
@@ -37,7 +37,7 @@ fun createClassRepresentativesMapping(
     baseLeft: SpoonMapping,
     baseRight: SpoonMapping,
     leftRight: SpoonMapping,
-): Map<SpoonNode, SpoonNode> {
+): MutableMap<SpoonNode, SpoonNode> {
     val classRepMap = initializeClassRepresentatives(base)
     mapToClassRepresentatives(left, baseLeft, classRepMap, Revision.LEFT)
     mapToClassRepresentatives(right, baseRight, classRepMap, Revision.RIGHT)
@@ -45,6 +45,75 @@ fun createClassRepresentativesMapping(
     return classRepMap
 }
 
+/**
+ * Update the class representatives mapping after some tree matchings have been removed, for example with
+ * [MappingRemover.removeFromMappings]. Only the nodes that were part of a removed matching, and the nodes whose
+ * augmented mappings depend on them, are re-mapped, and the result is the same as recreating the mapping with
+ * [createClassRepresentativesMapping].
+ *
+ * @param classRepMap The class representatives map to update.
+ * @param unmatchedNodes The nodes that were part of the removed matchings.
+ * @param baseLeft  A matching from base to left.
+ * @param baseRight A matching from base to right.
+ * @param leftRight A matching from left to right.
+ * @return The previous class representatives of all nodes whose class representatives changed.
+ */
+fun updateClassRepresentativesMapping(
+    classRepMap: MutableMap<SpoonNode, SpoonNode>,
+    unmatchedNodes: Set<SpoonNode>,
+    baseLeft: SpoonMapping,
+    baseRight: SpoonMapping,
+    leftRight: SpoonMapping,
+): Map<SpoonNode, SpoonNode> {
+    val previousClassReps = HashMap<SpoonNode, SpoonNode>()
+
+    // left nodes whose augmentation may have changed, either because their own class representative changed, or
+    // because the class representative of their parent or their right counterpart's parent did
+    val worklist = ArrayDeque<SpoonNode>()
+    val addLeftCounterparts = { right: SpoonNode ->
+        right.element.directChildren.forEach { child -> leftRight.getSrc(NodeFactory.wrap(child))?.let(worklist::add) }
+    }
+
+    for (node in unmatchedNodes) {
+        if (node.isVirtual || node !in classRepMap) {
+            continue
+        }
+        when (node.revision) {
+            Revision.BASE -> continue
+            Revision.LEFT -> {
+                mapNodes(node, baseLeft.getSrc(node) ?: node, classRepMap, previousClassReps)
+                worklist.add(node)
+                node.element.directChildren.forEach { worklist.add(NodeFactory.wrap(it)) }
+            }
+            Revision.RIGHT -> {
+                mapNodes(node, baseRight.getSrc(node) ?: node, classRepMap, previousClassReps)
+                leftRight.getSrc(node)?.let(worklist::add)
+                addLeftCounterparts(node)
+            }
+        }
+    }
+
+    while (worklist.isNotEmpty()) {
+        val left = worklist.removeFirst()
+        val right = leftRight.getDst(left)
+        if (right == null || left !in classRepMap || right !in classRepMap) {
+            continue
+        }
+
+        // same conditions as in ClassRepresentativeAugmenter
+        val baseClassRep = baseRight.getSrc(right) ?: right
+        val augment = classRepMap[left] === left &&
+            baseClassRep === right &&
+            classRepMap[right.parent] === classRepMap[left.parent]
+        val classRep = if (augment) left else baseClassRep
+        if (classRepMap[right] !== classRep) {
+            mapNodes(right, classRep, classRepMap, previousClassReps)
+            addLeftCounterparts(right)
+        }
+    }
+    return previousClassReps
+}
+
 /**
  * Initialize the class representatives map by mapping each element in base to itself.
  *
@@ -53,7 +122,7 @@ fun createClassRepresentativesMapping(
  */
 private fun initializeClassRepresentatives(base: CtElement): MutableMap<SpoonNode, SpoonNode> {
     val classRepMap: MutableMap<SpoonNode, SpoonNode> = HashMap()
-    base.descendantIterator().forEach {
+    forEachPrunedDescendant(base) {
         NodeFactory.setRevisionIfUnset(it, Revision.BASE)
         val wrapped = NodeFactory.wrap(it)
         mapNodes(wrapped, wrapped, classRepMap)
@@ -79,11 +148,7 @@ private fun initializeClassRepresentatives(base: CtElement): MutableMap<SpoonNod
  * @param rev         The provided tree's revision.
  */
 private fun mapToClassRepresentatives(tree: CtElement, mappings: SpoonMapping, classRepMap: MutableMap<SpoonNode, SpoonNode>, rev: Revision) {
-    val descIt = tree.descendantIterator()
-    while (descIt.hasNext()) {
-        val t = descIt.next()
-        mapToClassRep(mappings, classRepMap, rev, t)
-    }
+    forEachPrunedDescendant(tree) { mapToClassRep(mappings, classRepMap, rev, it) }
 }
 
 private fun mapToClassRep(mappings: SpoonMapping, classRepMap: MutableMap<SpoonNode, SpoonNode>, rev: Revision, t: CtElement) {
@@ -103,10 +168,20 @@ private fun mapToClassRep(mappings: SpoonMapping, classRepMap: MutableMap<SpoonN
  * @param from A SpoonNode.
  * @param to A SpoonNode
  * @param classRepMap The class representatives map.
+ * @param previousClassReps If not null, the previous class representative of each node that is re-mapped is
+ * recorded here.
  */
-private fun mapNodes(from: SpoonNode, to: SpoonNode, classRepMap: MutableMap<SpoonNode, SpoonNode>) {
+private fun mapNodes(
+    from: SpoonNode,
+    to: SpoonNode,
+    classRepMap: MutableMap<SpoonNode, SpoonNode>,
+    previousClassReps: MutableMap<SpoonNode, SpoonNode>? = null,
+) {
     // map the real nodes
-    classRepMap[from] = to
+    val previous = classRepMap.put(from, to)
+    if (previousClassReps != null && previous != null && previous !== to) {
+        previousClassReps.putIfAbsent(from, previous)
+    }
 
     // map the virtual nodes
     val fromVirtualNodes = from.virtualNodes
@@ -115,9 +190,12 @@ private fun mapNodes(from: SpoonNode, to: SpoonNode, classRepMap: MutableMap<Spo
         val fromVirt = fromVirtualNodes[i]
         val toVirt = toVirtualNodes[i]
         if (fromVirt.isListEdge) {
-            classRepMap[fromVirt] = toVirt
+            val previousVirt = classRepMap.put(fromVirt, toVirt)
+            if (previousClassReps != null && previousVirt != null && previousVirt !== toVirt) {
+                previousClassReps.putIfAbsent(fromVirt, previousVirt)
+            }
         } else {
-            mapNodes(fromVirt, toVirt, classRepMap)
+            mapNodes(fromVirt, toVirt, classRepMap, previousClassReps)
         }
     }
 }
@@ -171,6 +249,8 @@ private class ClassRepresentativeAugmenter
                 }
             }
         }
-        super.scan(element)
+        if (!isUnchangedMember(element)) {
+            super.scan(element)
+        }
     }
 }
@@ -0,0 +1,146 @@
+package se.kth.spork.spoon.matching
+
+import com.github.gumtreediff.matchers.MappingStore
+import com.github.gumtreediff.tree.ITree
+import com.github.gumtreediff.tree.Tree
+import com.github.gumtreediff.tree.TreeUtils
+import gumtree.spoon.builder.CtWrapper
+import gumtree.spoon.builder.SpoonGumTreeBuilder
+import se.kth.spork.spoon.MergeBudget
+import se.kth.spork.spoon.wrappers.NodeFactory
+import se.kth.spork.spoon.wrappers.SpoonNode
+import se.kth.spork.util.GumTreeSpoonAstDiff
+import spoon.reflect.declaration.CtElement
+import java.util.Collections
+import java.util.IdentityHashMap
+
+/**
+ * Match the left tree to the right tree, restricted to the parts of the trees where the matching can affect the merge.
+ *
+ * The left-to-right matching is only used to augment the class representatives (see
+ * [createClassRepresentativesMapping]), which maps a right node to a left node only if neither of them is matched to
+ * base, and their parents have the same class representative. Such pairs can only be found in subtrees that are
+ * unmatched to base in both revisions, and whose roots have parents that are matched to the same base node. Only
+ * those subtrees are matched, in copies of the trees that are pruned down to them and their ancestors. Nodes that
+ * GumTree ignores, such as references, are not part of those trees, and are instead matched by position below nodes
+ * that are matched to the same base node. If no base node has unmatched children in both revisions, which is always
+ * the case when at most one revision inserted anything, matching is skipped entirely.
+ *
+ * @param left The left tree.
+ * @param right The right tree.
+ * @param baseLeft The base-to-left matching.
+ * @param baseRight The base-to-right matching.
+ * @param matcherPolicy The policy to select the matching algorithm with.
+ * @param budget The budget of the merge.
+ * @return The left-to-right matching, and the algorithm that computed it, or null if matching was skipped.
+ */
+fun matchLeftRight(
+    left: ITree,
+    right: ITree,
+    baseLeft: SpoonMapping,
+    baseRight: SpoonMapping,
+    matcherPolicy: MatcherPolicy,
+    budget: MergeBudget = MergeBudget.UNLIMITED,
+): Pair<SpoonMapping, MatcherAlgorithm?> {
+    val leftInsertions = findInsertions(left, baseLeft)
+    val rightInsertions = findInsertions(right, baseRight)
+    val sharedParents = leftInsertions.subtrees.keys.filter(rightInsertions.subtrees::containsKey)
+    val sharedIgnoredParents = leftInsertions.ignoredParents.keys.filter(rightInsertions.ignoredParents::containsKey)
+    if (sharedParents.isEmpty() && sharedIgnoredParents.isEmpty()) {
+        return Pair(SpoonMapping.fromGumTreeMapping(MappingStore()), null)
+    }
+
+    val (leftRight, algorithm) = if (sharedParents.isEmpty()) {
+        Pair(SpoonMapping.fromGumTreeMapping(MappingStore()), null)
+    } else {
+        val src = prunedTree(left, sharedParents.flatMap(leftInsertions.subtrees::getValue))
+        val dst = prunedTree(right, sharedParents.flatMap(rightInsertions.subtrees::getValue))
+        val algorithm = matcherPolicy.select(src, dst, false)
+        Pair(SpoonMapping.fromGumTreeMapping(matcherPolicy.matchTrees(algorithm, src, dst, false, budget).mappings), algorithm)
+    }
+    leftRight.inferIgnoredDescendants(
+        sharedIgnoredParents.map {
+            Pair(leftInsertions.ignoredParents.getValue(it), rightInsertions.ignoredParents.getValue(it))
+        },
+    )
+    return Pair(leftRight, algorithm)
+}
+
+/**
+ * The parts of a revision that are unmatched to base, keyed by the base node that their parents are matched to.
+ *
+ * @param subtrees The maximal subtrees whose roots are unmatched to base.
+ * @param ignoredParents The nodes that have children that are unmatched to base and ignored by GumTree.
+ */
+private class Insertions(
+    val subtrees: Map<SpoonNode, List<ITree>>,
+    val ignoredParents: Map<SpoonNode, CtElement>,
+)
+
+/** Find the parts of the tree that are unmatched to base. */
+private fun findInsertions(tree: ITree, baseMapping: SpoonMapping): Insertions {
+    val subtrees = LinkedHashMap<SpoonNode, MutableList<ITree>>()
+    val ignoredParents = LinkedHashMap<SpoonNode, CtElement>()
+    val worklist = ArrayDeque<Pair<ITree, SpoonNode>>()
+    tree.children.forEach { worklist.add(Pair(it, NodeFactory.virtualRoot)) }
+    while (worklist.isNotEmpty()) {
+        val (node, parentClassRep) = worklist.removeFirst()
+        val element = node.getMetadata(SpoonGumTreeBuilder.SPOON_OBJECT) as CtElement?
+        if (element == null || element is CtWrapper<*>) {
+            // wrappers are never part of a Spoon mapping, see SpoonMapping.ignoreMapping
+            continue
+        }
+
+        val classRep = baseMapping.getSrc(NodeFactory.wrap(element))
+        if (classRep == null) {
+            subtrees.getOrPut(parentClassRep, ::ArrayList).add(node)
+        } else {
+            if (element.directChildren.any { GumTreeSpoonAstDiff.isToIgnore(it) && !baseMapping.hasDst(it) }) {
+                ignoredParents[classRep] = element
+            }
+            node.children.forEach { worklist.add(Pair(it, classRep)) }
+        }
+    }
+    return Insertions(subtrees, ignoredParents)
+}
+
+/**
+ * Create a copy of the tree that only contains the given subtrees and their ancestors. The ancestors are kept so that
+ * the matchers can match the subtrees in the context of their parents, as they would in the whole tree.
+ */
+private fun prunedTree(tree: ITree, subtrees: List<ITree>): ITree {
+    val ancestors = Collections.newSetFromMap(IdentityHashMap<ITree, Boolean>())
+    subtrees.forEach { ancestors.addAll(it.parents) }
+    val subtreeRoots = Collections.newSetFromMap(IdentityHashMap<ITree, Boolean>()).apply { addAll(subtrees) }
+
+    fun prunedCopy(node: ITree): ITree {
+        val copy = copyNode(node)
+        for (child in node.children) {
+            when (child) {
+                in subtreeRoots -> copy.addChild(copy(child))
+                in ancestors -> copy.addChild(prunedCopy(child))
+            }
+        }
+        return copy
+    }
+
+    val root = prunedCopy(tree)
+    root.refresh()
+    TreeUtils.postOrderNumbering(root)
+    TreeUtils.computeHeight(root)
+    return root
+}
+
+private fun copy(tree: ITree): ITree {
+    val copy = copyNode(tree)
+    tree.children.forEach { copy.addChild(copy(it)) }
+    return copy
+}
+
+private fun copyNode(node: ITree): ITree {
+    val copy = Tree(node.type, node.label)
+    copy.pos = node.pos
+    copy.length = node.length
+    copy.setMetadata(SpoonGumTreeBuilder.SPOON_OBJECT, node.getMetadata(SpoonGumTreeBuilder.SPOON_OBJECT))
+    return copy
+}
@@ -11,7 +11,10 @@ import spoon.reflect.visitor.CtScanner
  *
  * @author Simon Larsén
  */
-class MappingRemover(private val mapping: SpoonMapping) : CtScanner() {
+class MappingRemover(
+    private val mapping: SpoonMapping,
+    private val unmatchedNodes: MutableSet<SpoonNode>,
+) : CtScanner() {
 
     /**
      * Remove this node and its associated virtual nodes from the mapping, and recursively remove all of its
@@ -29,12 +32,22 @@ class MappingRemover(private val mapping: SpoonMapping) : CtScanner() {
             return
         }
         val node = NodeFactory.wrap(element)
-        mapping.remove(node)
-        mapping.remove(node.startOfChildList)
-        mapping.remove(node.startOfChildList)
+        remove(node)
+        remove(node.startOfChildList)
         super.scan(element)
     }
 
+    private fun remove(node: SpoonNode) {
+        val src = mapping.getSrc(node)
+        val dst = mapping.getDst(node)
+        if (src != null || dst != null) {
+            unmatchedNodes.add(node)
+            src?.let(unmatchedNodes::add)
+            dst?.let(unmatchedNodes::add)
+        }
+        mapping.remove(node)
+    }
+
     companion object {
         /**
          * Remove the provided nodes from the mappings, along with all of their descendants and any associated virtual
@@ -45,11 +58,18 @@ class MappingRemover(private val mapping: SpoonMapping) : CtScanner() {
          * @param baseLeft A base-to-left mapping.
          * @param baseRight A base-to-right mapping.
          * @param leftRight A left-to-right mapping.
+         * @return All nodes that were part of a removed mapping, on either side of it.
          */
-        fun removeFromMappings(nodes: Set<SpoonNode>, baseLeft: SpoonMapping, baseRight: SpoonMapping, leftRight: SpoonMapping) {
-            val baseLeftMappingRemover = MappingRemover(baseLeft)
-            val baseRightMappingRemover = MappingRemover(baseRight)
-            val leftRightMappingRemover = MappingRemover(leftRight)
+        fun removeFromMappings(
+            nodes: Set<SpoonNode>,
+            baseLeft: SpoonMapping,
+            baseRight: SpoonMapping,
+            leftRight: SpoonMapping,
+        ): Set<SpoonNode> {
+            val unmatchedNodes = HashSet<SpoonNode>()
+            val baseLeftMappingRemover = MappingRemover(baseLeft, unmatchedNodes)
+            val baseRightMappingRemover = MappingRemover(baseRight, unmatchedNodes)
+            val leftRightMappingRemover = MappingRemover(leftRight, unmatchedNodes)
             for (node in nodes) {
                 when (node.revision) {
                     Revision.BASE -> {
@@ -67,6 +87,7 @@ class MappingRemover(private val mapping: SpoonMapping) : CtScanner() {
                     }
                 }
             }
+            return unmatchedNodes
         }
     }
 }
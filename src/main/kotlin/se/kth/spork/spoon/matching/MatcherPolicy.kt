@@ -0,0 +1,209 @@
+package se.kth.spork.spoon.matching
+
+import com.github.gumtreediff.matchers.MappingStore
+import com.github.gumtreediff.matchers.Matcher
+import com.github.gumtreediff.matchers.Matchers
+import com.github.gumtreediff.tree.ITree
+import se.kth.spork.spoon.MergeBudget
+import java.util.IdentityHashMap
+
+/**
+ * The GumTree matching algorithms that Spork can use to match trees.
+ */
+enum class MatcherAlgorithm(private val id: String) {
+    /**
+     * Greedy top-down matching of isomorphic subtrees, followed by greedy bottom-up matching of inner nodes. Each
+     * bottom-up match is followed by a tree edit distance computation on the unmatched parts of the subtrees, which is
+     * what makes it superlinear on large trees.
+     */
+    GUMTREE("gumtree"),
+
+    /**
+     * Greedy top-down matching of isomorphic subtrees, followed by the bottom-up matcher from the XyDiff algorithm,
+     * which only recovers unmatched children that have a unique type among their siblings.
+     */
+    XY("xy"),
+
+    /**
+     * Greedy top-down matching of isomorphic subtrees, followed by one pass that matches the parents of matched nodes,
+     * and one pass that matches the children of matched nodes by type and label. Unlike the other algorithms, the
+     * cost of the passes is linear in the size of the trees.
+     */
+    TOP_DOWN("gumtree-topdown"),
+    ;
+
+    /**
+     * Match the trees with this algorithm.
+     *
+     * @param src The source tree.
+     * @param dst The destination tree.
+     * @param budget The budget of the merge. GumTree's own matchers can't be interrupted, so it is only checked
+     * between them and in the passes of the top-down algorithm.
+     * @return A matcher on which matching has been performed.
+     */
+    @JvmOverloads
+    fun match(src: ITree, dst: ITree, budget: MergeBudget = MergeBudget.UNLIMITED): Matcher {
+        val matcher = Matchers.getInstance().getMatcher(id, src, dst)
+        matcher.match()
+        if (this == TOP_DOWN) {
+            budget.checkDeadline()
+            matchParents(src, dst, matcher.mappings, budget)
+            matchChildren(src, matcher.mappings, budget)
+        }
+        return matcher
+    }
+
+    override fun toString(): String = id
+
+    companion object {
+        /**
+         * Match the unmatched inner nodes of the source tree in a single post-order pass. A node is matched to the
+         * most common parent of the destinations of its matched children, if that parent is unmatched and of the same
+         * type. The roots are always matched if they are of the same type, as the merge requires the roots to match.
+         */
+        private fun matchParents(src: ITree, dst: ITree, mappings: MappingStore, budget: MergeBudget) {
+            for (srcNode in src.postOrder()) {
+                budget.checkDeadline()
+                if (mappings.hasSrc(srcNode)) {
+                    continue
+                }
+
+                val candidates = IdentityHashMap<ITree, Int>()
+                for (child in srcNode.children) {
+                    val candidate = mappings.getDst(child)?.parent ?: continue
+                    if (!mappings.hasDst(candidate) && candidate.type == srcNode.type) {
+                        candidates.merge(candidate, 1, Int::plus)
+                    }
+                }
+                val dstNode = if (srcNode === src) dst else candidates.maxByOrNull { it.value }?.key
+                if (dstNode != null && !mappings.hasDst(dstNode) && dstNode.type == srcNode.type) {
+                    mappings.link(srcNode, dstNode)
+                }
+            }
+        }
+
+        /**
+         * Match the unmatched children of matched nodes in a single pre-order pass. Unmatched children are matched to
+         * unmatched children of the same type in the destination, if the type is unique among the unmatched children
+         * of both nodes, and otherwise to the first unmatched child with the same type and label.
+         */
+        private fun matchChildren(src: ITree, mappings: MappingStore, budget: MergeBudget) {
+            for (srcNode in src.preOrder()) {
+                budget.checkDeadline()
+                val dstNode = mappings.getDst(srcNode) ?: continue
+                val srcChildren = srcNode.children.filter { !mappings.hasSrc(it) }.groupBy(ITree::getType)
+                val dstChildren = dstNode.children.filter { !mappings.hasDst(it) }.groupBy(ITree::getType)
+                for ((type, srcCandidates) in srcChildren) {
+                    val dstCandidates = dstChildren[type] ?: continue
+                    if (srcCandidates.size == 1 && dstCandidates.size == 1) {
+                        mappings.link(srcCandidates[0], dstCandidates[0])
+                        continue
+                    }
+
+                    val dstByLabel = dstCandidates.groupBy(ITree::getLabel).mapValues { ArrayDeque(it.value) }
+                    for (srcChild in srcCandidates) {
+                        dstByLabel[srcChild.label]?.removeFirstOrNull()?.let { mappings.link(srcChild, it) }
+                    }
+                }
+            }
+        }
+
+        init {
+            System.setProperty("gt.xym.sim", "0.7")
+
+            // the matcher registry is lazily initialized without synchronization, so it must be initialized
+            // before matchers are created concurrently
+            Matchers.getInstance()
+        }
+    }
+}
+
+/**
+ * A policy for selecting the algorithm for each of the tree matchings of a merge.
+ */
+fun interface MatcherPolicy {
+    /**
+     * Select the algorithm for matching the source tree to the destination tree.
+     *
+     * @param src The source tree, which is the base revision for the base-to-left and base-to-right matchings, and the
+     * left revision for the left-to-right matching.
+     * @param dst The destination tree.
+     * @param isBaseMatching true if this is the base-to-left or base-to-right matching.
+     * @return The algorithm to use.
+     */
+    fun select(src: ITree, dst: ITree, isBaseMatching: Boolean): MatcherAlgorithm
+
+    companion object {
+        /** Always use the full GumTree matcher for base matchings, and the XY matcher for the left-to-right matching. */
+        @JvmField
+        val CLASSIC = MatcherPolicy { _, _, isBaseMatching ->
+            if (isBaseMatching) MatcherAlgorithm.GUMTREE else MatcherAlgorithm.XY
+        }
+
+        /** Select the algorithms from the size and height of the trees, see [AdaptiveMatcherPolicy]. */
+        @JvmField
+        val ADAPTIVE: MatcherPolicy = AdaptiveMatcherPolicy()
+
+        /** Always use top-down matching, see [MatcherAlgorithm.TOP_DOWN]. */
+        @JvmField
+        val TOP_DOWN = MatcherPolicy { _, _, _ -> MatcherAlgorithm.TOP_DOWN }
+    }
+}
+
+/**
+ * A policy that matches trees with the given functions instead of with the [MatcherPolicy.CLASSIC] algorithms that it
+ * selects, which lets merges that are given matcher functions take the same path as those given a policy.
+ *
+ * @param baseMatcher Function that returns a matcher for the base-to-left and base-to-right matchings.
+ * @param leftRightMatcher Function that returns a matcher for the left-to-right matching.
+ */
+internal class FunctionMatcherPolicy(
+    private val baseMatcher: (ITree, ITree) -> Matcher,
+    private val leftRightMatcher: (ITree, ITree) -> Matcher,
+) : MatcherPolicy by MatcherPolicy.CLASSIC {
+    fun match(src: ITree, dst: ITree, isBaseMatching: Boolean): Matcher =
+        if (isBaseMatching) baseMatcher(src, dst) else leftRightMatcher(src, dst)
+}
+
+/**
+ * Match the trees with the algorithm that this policy selected for them, or with the policy's own matcher functions
+ * if it is a [FunctionMatcherPolicy].
+ */
+internal fun MatcherPolicy.matchTrees(
+    algorithm: MatcherAlgorithm,
+    src: ITree,
+    dst: ITree,
+    isBaseMatching: Boolean,
+    budget: MergeBudget,
+): Matcher = if (this is FunctionMatcherPolicy) match(src, dst, isBaseMatching) else algorithm.match(src, dst, budget)
+
+/**
+ * A policy that uses the [MatcherPolicy.CLASSIC] algorithms for trees of typical size, and gradually cheaper
+ * algorithms as the trees grow. Large trees, such as those of generated classes, are matched with the XY bottom-up
+ * matcher instead of the GumTree one, and huge or very deep trees are matched top-down.
+ *
+ * @param xyThreshold Base matchings of trees with at least this many nodes use the XY matcher.
+ * @param topDownThreshold Trees with at least this many nodes are matched top-down.
+ * @param maxHeight Trees higher than this are matched top-down.
+ */
+class AdaptiveMatcherPolicy @JvmOverloads constructor(
+    private val xyThreshold: Int = DEFAULT_XY_THRESHOLD,
+    private val topDownThreshold: Int = DEFAULT_TOP_DOWN_THRESHOLD,
+    private val maxHeight: Int = DEFAULT_MAX_HEIGHT,
+) : MatcherPolicy {
+    override fun select(src: ITree, dst: ITree, isBaseMatching: Boolean): MatcherAlgorithm {
+        val size = maxOf(src.size, dst.size)
+        val height = maxOf(src.height, dst.height)
+        return when {
+            size >= topDownThreshold || height > maxHeight -> MatcherAlgorithm.TOP_DOWN
+            size >= xyThreshold -> MatcherAlgorithm.XY
+            else -> MatcherPolicy.CLASSIC.select(src, dst, isBaseMatching)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_XY_THRESHOLD = 20_000
+        const val DEFAULT_TOP_DOWN_THRESHOLD = 100_000
+        const val DEFAULT_MAX_HEIGHT = 300
+    }
+}
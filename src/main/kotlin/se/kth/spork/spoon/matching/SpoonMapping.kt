@@ -34,6 +34,11 @@ import java.util.stream.Collectors
 class SpoonMapping private constructor() {
     private val srcs: MutableMap<SpoonNode, SpoonNode>
     private val dsts: MutableMap<SpoonNode, SpoonNode>
+
+    /** The amount of matched node pairs. */
+    val size: Int
+        get() = srcs.size
+
     private fun asList(): List<Pair<CtElement, CtElement>> {
         return srcs.values.map { dst -> Pair(getSrc(dst)!!.element, dst.element) }
     }
@@ -60,7 +65,21 @@ class SpoonMapping private constructor() {
         }
     }
 
+    /**
+     * Infer matches for the nodes that gumtree-spoon-ast-diff ignores below the given pairs of nodes, which need not
+     * be matched to each other in this mapping.
+     *
+     * @param parents Pairs on the form (src, dst) of nodes whose ignored descendants should be matched.
+     */
+    fun inferIgnoredDescendants(parents: List<kotlin.Pair<CtElement, CtElement>>) {
+        inferAdditionalMappings(parents.map { Pair(it.first, it.second) })
+    }
+
     private fun inferAdditionalMappings(src: CtElement, dst: CtElement): List<Pair<CtElement, CtElement>> {
+        if (isUnchangedMember(src)) {
+            // the descendants of unchanged members are pruned from the merge
+            return emptyList()
+        }
         val srcChildren = src.directChildren
         val dstChildren = dst.directChildren
         val newMatches: MutableList<Pair<CtElement, CtElement>> = ArrayList()
@@ -133,6 +152,19 @@ class SpoonMapping private constructor() {
         dsts[dst] = src
     }
 
+    /**
+     * Put a mapping between src and dst, removing any other mappings that either of them is part of.
+     */
+    fun forcePut(src: CtElement, dst: CtElement) {
+        val wrappedSrc = NodeFactory.wrap(src)
+        val wrappedDst = NodeFactory.wrap(dst)
+        if (getDst(wrappedSrc) !== wrappedDst) {
+            remove(wrappedSrc)
+            remove(wrappedDst)
+            put(wrappedSrc, wrappedDst)
+        }
+    }
+
     private fun formatEntry(entry: Map.Entry<SpoonNode, SpoonNode?>): String {
         return "(" + entry.key + ", " + entry.value + ")"
     }
@@ -0,0 +1,204 @@
+package se.kth.spork.spoon.matching
+
+import com.github.gumtreediff.tree.ITree
+import com.github.gumtreediff.tree.TreeUtils
+import gumtree.spoon.builder.SpoonGumTreeBuilder
+import se.kth.spork.spoon.printer.SourceExtractor
+import spoon.reflect.declaration.CtElement
+import spoon.reflect.declaration.CtModule
+import spoon.reflect.declaration.CtPackage
+import spoon.reflect.declaration.CtType
+import spoon.reflect.declaration.CtTypeMember
+import spoon.reflect.path.CtRole
+import spoon.reflect.visitor.CtScanner
+
+/**
+ * Metadata key for marking a type member that is identical in all three revisions.
+ */
+const val UNCHANGED_MEMBER_KEY = "spork_unchanged_member"
+
+/**
+ * Find the type members that are identical in the base, left and right revisions, and mark them with the
+ * [UNCHANGED_MEMBER_KEY] metadata key. Two members are considered identical if they are declared in types with
+ * the same qualified name, their original source code, including comments and annotations, is byte-identical, and
+ * they are structurally equal.
+ * Members whose source code occurs more than once in the same type (e.g. two empty initializer blocks) are never
+ * considered unchanged, as they can't be paired up unambiguously.
+ *
+ * The subtrees rooted in unchanged members are pruned from the rest of the merge: the members themselves take
+ * part in matching and PCS construction such that their position among their siblings is merged, but their
+ * descendants do not, and they are output in their original form.
+ *
+ * @param base The base revision.
+ * @param left The left revision.
+ * @param right The right revision.
+ * @return Triples on the form (base, left, right) of unchanged members.
+ */
+fun markUnchangedMembers(
+    base: CtElement,
+    left: CtElement,
+    right: CtElement,
+): List<Triple<CtTypeMember, CtTypeMember, CtTypeMember>> {
+    val leftTypes = topLevelTypes(left).associateBy(CtType<*>::getQualifiedName)
+    val rightTypes = topLevelTypes(right).associateBy(CtType<*>::getQualifiedName)
+    val unchanged = mutableListOf<Triple<CtTypeMember, CtTypeMember, CtTypeMember>>()
+    for (baseType in topLevelTypes(base)) {
+        val leftType = leftTypes[baseType.qualifiedName] ?: continue
+        val rightType = rightTypes[baseType.qualifiedName] ?: continue
+        markUnchangedMembers(baseType, leftType, rightType, unchanged)
+    }
+    unchanged.forEach { (baseMember, leftMember, rightMember) ->
+        sequenceOf(baseMember, leftMember, rightMember).forEach {
+            it.putMetadata<CtElement>(UNCHANGED_MEMBER_KEY, true)
+        }
+    }
+    return unchanged
+}
+
+/**
+ * Remove the marks that [markUnchangedMembers] put on the unchanged members.
+ *
+ * @param unchangedMembers Triples on the form (base, left, right) of unchanged members.
+ */
+fun unmarkUnchangedMembers(unchangedMembers: List<Triple<CtTypeMember, CtTypeMember, CtTypeMember>>) {
+    unchangedMembers.forEach { (baseMember, leftMember, rightMember) ->
+        sequenceOf(baseMember, leftMember, rightMember).forEach {
+            it.setAllMetadata<CtElement>(it.allMetadata - UNCHANGED_MEMBER_KEY)
+        }
+    }
+}
+
+/**
+ * @return true if the element is a type member that is identical in all three revisions.
+ */
+fun isUnchangedMember(element: CtElement): Boolean = element.getMetadata(UNCHANGED_MEMBER_KEY) != null
+
+/**
+ * Match the unchanged members to each other in a tree matching, replacing any other matchings that they are part of.
+ *
+ * The descendants of unchanged members are pruned from the trees that GumTree matches, so GumTree no longer sees
+ * the similarity of the types that declare them. If most members of a type are unchanged, GumTree may therefore fail
+ * to match the type itself, and so the unmatched ancestors of unchanged members are matched to each other as well.
+ *
+ * @param unchangedMembers Pairs on the form (src, dst) of unchanged members, such as (base, left) for the base-to-left
+ * matching.
+ * @param mapping The tree matching.
+ */
+fun matchUnchangedMembers(unchangedMembers: List<Pair<CtTypeMember, CtTypeMember>>, mapping: SpoonMapping) {
+    for ((srcMember, dstMember) in unchangedMembers) {
+        mapping.forcePut(srcMember, dstMember)
+    }
+    for ((srcMember, dstMember) in unchangedMembers) {
+        matchUnmatchedAncestors(srcMember, dstMember, mapping)
+    }
+}
+
+/**
+ * Apply the action to the element and all of its descendants, except for the descendants of unchanged members.
+ */
+fun forEachPrunedDescendant(element: CtElement, action: (CtElement) -> Unit) {
+    object : CtScanner() {
+        override fun scan(element: CtElement?) {
+            if (element == null) return
+            action(element)
+            if (!isUnchangedMember(element)) {
+                super.scan(element)
+            }
+        }
+    }.scan(element)
+}
+
+/**
+ * Convert a Spoon tree into a GumTree tree, in which the unchanged members are leaves.
+ *
+ * @param element The root of a Spoon tree.
+ * @param unchangedMembers The unchanged members of the tree's revision.
+ * @return A GumTree tree.
+ */
+fun buildPrunedGumTree(element: CtElement, unchangedMembers: List<CtTypeMember>): ITree {
+    val root = SpoonGumTreeBuilder().getTree(element)
+    if (unchangedMembers.isEmpty()) {
+        return root
+    }
+
+    for (member in unchangedMembers) {
+        (member.getMetadata(SpoonGumTreeBuilder.GUMTREE_NODE) as ITree?)?.children = mutableListOf()
+    }
+    root.refresh()
+    TreeUtils.postOrderNumbering(root)
+    TreeUtils.computeHeight(root)
+    return root
+}
+
+/**
+ * Match the ancestors of the matched src and dst nodes pairwise, until either ancestor is already matched or they
+ * are of different types.
+ */
+private fun matchUnmatchedAncestors(src: CtElement, dst: CtElement, mapping: SpoonMapping) {
+    var srcAncestor = src
+    var dstAncestor = dst
+    while (srcAncestor.isParentInitialized && dstAncestor.isParentInitialized) {
+        srcAncestor = srcAncestor.parent
+        dstAncestor = dstAncestor.parent
+        if (mapping.hasSrc(srcAncestor) || mapping.hasDst(dstAncestor) || srcAncestor.javaClass != dstAncestor.javaClass) {
+            return
+        }
+        mapping.put(srcAncestor, dstAncestor)
+    }
+}
+
+private fun markUnchangedMembers(
+    base: CtType<*>,
+    left: CtType<*>,
+    right: CtType<*>,
+    unchanged: MutableList<Triple<CtTypeMember, CtTypeMember, CtTypeMember>>,
+) {
+    val leftMembers = uniqueMembersBySource(left)
+    val rightMembers = uniqueMembersBySource(right)
+    val changedBaseTypes = mutableListOf<CtType<*>>()
+    for ((source, baseMember) in uniqueMembersBySource(base)) {
+        val leftMember = leftMembers[source]
+        val rightMember = rightMembers[source]
+        // members with identical source code may still differ in implicit elements that depend on their
+        // context (such as the type parameters of a constructor's declaring type), so structural equality
+        // must be verified as well
+        if (leftMember != null && rightMember != null && baseMember == leftMember && baseMember == rightMember) {
+            unchanged.add(Triple(baseMember, leftMember, rightMember))
+        } else if (baseMember is CtType<*>) {
+            changedBaseTypes.add(baseMember)
+        }
+    }
+
+    // changed nested types may still have unchanged members
+    for (baseType in changedBaseTypes) {
+        val leftType = left.getNestedType<CtType<*>>(baseType.simpleName) ?: continue
+        val rightType = right.getNestedType<CtType<*>>(baseType.simpleName) ?: continue
+        markUnchangedMembers(baseType, leftType, rightType, unchanged)
+    }
+}
+
+private fun uniqueMembersBySource(type: CtType<*>): Map<String, CtTypeMember> {
+    val members = HashMap<String, CtTypeMember?>()
+    for (member in type.typeMembers) {
+        if (member.isImplicit ||
+            member.roleInParent != CtRole.TYPE_MEMBER ||
+            !SourceExtractor.hasSourcePos(member)
+        ) {
+            continue
+        }
+        val source = member.javaClass.name + "\n" + SourceExtractor.getOriginalSource(member) +
+            member.comments.joinToString("\n", prefix = "\n") { it.content }
+        members[source] = if (members.containsKey(source)) null else member
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    return members.filterValues { it != null } as Map<String, CtTypeMember>
+}
+
+private fun topLevelTypes(element: CtElement): List<CtType<*>> {
+    return when (element) {
+        is CtModule -> topLevelTypes(element.rootPackage)
+        is CtPackage -> element.types.toList() + element.packages.flatMap(::topLevelTypes)
+        else -> emptyList()
+    }
+}
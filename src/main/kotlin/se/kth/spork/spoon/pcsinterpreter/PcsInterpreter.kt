@@ -1,12 +1,15 @@
 package se.kth.spork.spoon.pcsinterpreter
 
 import se.kth.spork.base3dm.ChangeSet
+import se.kth.spork.spoon.MergeReport
 import se.kth.spork.spoon.conflict.ContentConflictHandler
 import se.kth.spork.spoon.conflict.StructuralConflictHandler
 import se.kth.spork.spoon.matching.SpoonMapping
 import se.kth.spork.spoon.wrappers.RoledValues
 import se.kth.spork.spoon.wrappers.SpoonNode
 import spoon.reflect.declaration.CtElement
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
 
 /**
  * Convert a merged PCS structure into a Spoon tree.
@@ -15,16 +18,21 @@ import spoon.reflect.declaration.CtElement
  * @param baseLeft A tree matching between the base revision and the left revision.
  * @param baseRight A tree matching between the base revision and the right revision.
  * @param structuralConflictHandlers A potentially empty list of structural conflict handlers.
+ * @param report A report to record the amount of structural and content conflicts in.
+ * @param executor The executor to build the members of types on.
  * @return A pair on the form (tree, numConflicts).
  */
+@JvmOverloads
 fun fromMergedPcs(
     delta: ChangeSet<SpoonNode, RoledValues>,
     baseLeft: SpoonMapping,
     baseRight: SpoonMapping,
     structuralConflictHandlers: List<StructuralConflictHandler>,
     contentConflictHandlers: List<ContentConflictHandler>,
+    report: MergeReport = MergeReport(),
+    executor: Executor = ForkJoinPool.commonPool(),
 ): Pair<CtElement?, Int> {
-    val sporkTreeBuilder = SporkTreeBuilder(delta, baseLeft, baseRight, structuralConflictHandlers)
+    val sporkTreeBuilder = SporkTreeBuilder(delta, baseLeft, baseRight, structuralConflictHandlers, executor)
     val sporkTreeRoot = sporkTreeBuilder.buildTree()
 
     // this is a bit of a hack, get any used environment such that the SpoonTreeBuilder can copy environment details
@@ -34,8 +42,10 @@ fun fromMergedPcs(
         .element
         .factory
         .environment
-    val spoonTreeBuilder = SpoonTreeBuilder(baseLeft, baseRight, oldEnv, contentConflictHandlers)
+    val spoonTreeBuilder = SpoonTreeBuilder(baseLeft, baseRight, oldEnv, contentConflictHandlers, executor)
     val spoonTreeRoot = spoonTreeBuilder.build(sporkTreeRoot)
+    report.structuralConflicts += sporkTreeBuilder.numStructuralConflicts()
+    report.contentConflicts += spoonTreeBuilder.numContentConflicts
     return Pair(
         spoonTreeRoot,
         sporkTreeBuilder.numStructuralConflicts() + spoonTreeBuilder.numContentConflicts,
@@ -1,32 +1,40 @@
 package se.kth.spork.spoon.pcsinterpreter
 
-import se.kth.spork.base3dm.REV
 import se.kth.spork.base3dm.Revision
+import se.kth.spork.spoon.Parser
 import se.kth.spork.spoon.Parser.setSporkEnvironment
 import se.kth.spork.spoon.conflict.ContentConflict
 import se.kth.spork.spoon.conflict.ContentConflictHandler
 import se.kth.spork.spoon.conflict.ContentMerger
 import se.kth.spork.spoon.conflict.StructuralConflict
 import se.kth.spork.spoon.matching.SpoonMapping
+import se.kth.spork.spoon.matching.UNCHANGED_MEMBER_KEY
+import se.kth.spork.spoon.matching.isUnchangedMember
 import se.kth.spork.spoon.wrappers.NodeFactory
 import se.kth.spork.spoon.wrappers.NodeFactory.forceWrap
 import se.kth.spork.spoon.wrappers.NodeFactory.virtualRoot
 import se.kth.spork.spoon.wrappers.NodeFactory.wrap
+import se.kth.spork.spoon.wrappers.NodeTable
 import se.kth.spork.spoon.wrappers.SpoonNode
-import spoon.Launcher
+import se.kth.spork.util.mapPartitions
 import spoon.compiler.Environment
 import spoon.reflect.CtModelImpl.CtRootPackage
 import spoon.reflect.code.CtExpression
 import spoon.reflect.cu.SourcePosition
 import spoon.reflect.declaration.CtAnnotation
 import spoon.reflect.declaration.CtElement
+import spoon.reflect.declaration.CtType
 import spoon.reflect.factory.Factory
 import spoon.reflect.factory.ModuleFactory.CtUnnamedModule
 import spoon.reflect.path.CtRole
 import spoon.reflect.reference.CtParameterReference
 import spoon.reflect.reference.CtTypeReference
+import spoon.support.visitor.clone.CloneVisitor
+import spoon.support.visitor.equals.CloneHelper
 import java.lang.IllegalStateException
 import java.util.TreeMap
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
 import kotlin.collections.ArrayList
 import kotlin.collections.HashMap
 
@@ -37,22 +45,32 @@ import kotlin.collections.HashMap
  * @param baseRight The base-to-right tree matching.
  * @param oldEnv Any environment used in the merge. It's needed to copy some values.
  * @param contentConflictHandlers A list of conflict handlers.
+ * @param executor The executor to build the members of types on.
 */
 class SpoonTreeBuilder internal constructor(
     private val baseLeft: SpoonMapping,
     private val baseRight: SpoonMapping,
     oldEnv: Environment,
     contentConflictHandlers: List<ContentConflictHandler>,
+    private val executor: Executor = ForkJoinPool.commonPool(),
 ) {
     var numContentConflicts: Int = 0
         private set
 
-    private val factory: Factory = Launcher().factory
-
-    // A mapping from the original node to its copy in the merged tree
-    private val nodes: MutableMap<SpoonNode, SpoonNode> = mutableMapOf()
+    private val factory: Factory = Parser.activeSession.newFactory()
+    private val nodeTable: NodeTable =
+        checkNotNull(NodeTable.current) { "No node table is bound to the current thread" }
     private val contentMerger: ContentMerger = ContentMerger(contentConflictHandlers)
 
+    /**
+     * The state of building a part of the merged tree.
+     *
+     * @param nodes A mapping from the original node to its copy in the merged tree.
+     */
+    private class BuildState(val nodes: MutableMap<SpoonNode, SpoonNode> = mutableMapOf()) {
+        var numContentConflicts: Int = 0
+    }
+
     /**
      * Create a shallow copy of a tree.
      *
@@ -66,11 +84,9 @@ class SpoonTreeBuilder internal constructor(
             return factory.Package().rootPackage
         }
 
-        // FIXME This is super inefficient, cloning the whole tree just to delete all its children
-        val treeCopy = tree.clone()
-        for (child in treeCopy.directChildren) {
-            child.delete()
-        }
+        val cloner = CloneVisitor(ShallowCloneHelper)
+        cloner.scan(tree)
+        val treeCopy = cloner.getClone<CtElement>()
         treeCopy.factory = factory
         return treeCopy
     }
@@ -82,19 +98,45 @@ class SpoonTreeBuilder internal constructor(
      * @return The last Spoon tree in the built child list. This may be null!
      */
     fun build(root: SporkTree): CtElement? {
+        val state = BuildState()
+        val lastChild = build(root, state, concurrent = true)
+        numContentConflicts += state.numContentConflicts
+        return lastChild
+    }
+
+    /**
+     * Build the children of the provided root. If building concurrently, the subtrees of the members of types are
+     * built on the executor once the members themselves have been inserted into the type, each with a state of its
+     * own. A Spork tree contains every node at most once, so the members are built from disjoint parts of the input
+     * trees and their builds do not interfere with each other.
+     */
+    private fun build(root: SporkTree, state: BuildState, concurrent: Boolean): CtElement? {
         var lastChild: CtElement? = null
+        val members: MutableList<SporkTree> = mutableListOf()
+        val isType = concurrent && root.node !== virtualRoot && root.node.element is CtType<*>
         for (child in root.children) {
             val conflict = child.structuralConflict
             lastChild = conflict?.let {
-                visitConflicting(root.node, it)
-            } ?: visit(root, child)
+                visitConflicting(root.node, it, state)
+            } ?: visit(root, child, state)
 
             if (root.node === virtualRoot ||
-                !child.isSingleRevisionSubtree
+                !(child.isSingleRevisionSubtree || isUnchangedMember(child.node.element))
             ) {
-                build(child)
+                if (isType && conflict == null) members.add(child) else build(child, state, concurrent)
             }
         }
+
+        val numMemberConflicts = mapPartitions(members, MIN_PARTITION_SIZE, executor) { partition ->
+            nodeTable.use {
+                partition.sumOf { member ->
+                    val memberState = BuildState(mutableMapOf(member.node to state.nodes[member.node]!!))
+                    build(member, memberState, concurrent = false)
+                    memberState.numContentConflicts
+                }
+            }
+        }.sum()
+        state.numContentConflicts += numMemberConflicts
         return lastChild
     }
 
@@ -104,19 +146,27 @@ class SpoonTreeBuilder internal constructor(
      *
      * @param sporkParent A wrapper around the current node's parent.
      * @param sporkChild A wrapper around the current node being visited.
+     * @param state The state of the build.
      */
-    private fun visit(sporkParent: SporkTree, sporkChild: SporkTree): CtElement {
+    private fun visit(sporkParent: SporkTree, sporkChild: SporkTree, state: BuildState): CtElement {
         val origRootNode = sporkParent.node
         val origTreeNode = sporkChild.node
         val originalTree = origTreeNode.element
-        val mergeParent = if (origRootNode === virtualRoot) null else nodes[origRootNode]!!.element
+        val mergeParent = if (origRootNode === virtualRoot) null else state.nodes[origRootNode]!!.element
         val mergeTree: CtElement
         if (sporkChild.isSingleRevisionSubtree) {
             mergeTree = originalTree.clone()
+            NodeFactory.copyRevisions(originalTree, mergeTree, deep = true)
             mergeTree.putMetadata<CtElement>(SINGLE_REVISION_KEY, sporkChild.singleRevision)
+        } else if (isUnchangedMember(originalTree)) {
+            // the member is identical in all revisions, so any revision is the merge
+            mergeTree = originalTree.clone()
+            NodeFactory.copyRevisions(originalTree, mergeTree, deep = true)
+            mergeTree.putMetadata<CtElement>(SINGLE_REVISION_KEY, origTreeNode.revision)
         } else {
             val mergedContent = contentMerger.mergedContent(sporkChild.content)
             mergeTree = shallowCopyTree(originalTree, factory)
+            NodeFactory.copyRevisions(originalTree, mergeTree, deep = false)
             mergedContent
                 .first?.forEach { roledValue ->
                 mergeTree.setValueByRole<CtElement, Any?>(roledValue.role, roledValue.value)
@@ -124,13 +174,13 @@ class SpoonTreeBuilder internal constructor(
             if (mergedContent.second.isNotEmpty()) {
                 // at least one conflict was not resolved
                 mergeTree.putMetadata<CtElement>(ContentConflict.METADATA_KEY, mergedContent.second)
-                numContentConflicts += mergedContent.second.size
+                state.numContentConflicts += mergedContent.second.size
             }
         }
 
         // adjust metadata for the merge tree
         val metadata: MutableMap<String, Any> = HashMap(mergeTree.allMetadata)
-        metadata.remove(NodeFactory.WRAPPER_METADATA)
+        metadata.remove(UNCHANGED_MEMBER_KEY)
         metadata[ORIGINAL_NODE_KEY] = originalTree
         mergeTree.setAllMetadata<CtElement>(metadata)
 
@@ -160,7 +210,7 @@ class SpoonTreeBuilder internal constructor(
             // if the merge tree has no parent, then its parent is the virtual root
             forceWrap(mergeTree, virtualRoot)
         }
-        nodes[origTreeNode] = mergeNode
+        state.nodes[origTreeNode] = mergeNode
         return mergeTree
     }
 
@@ -170,10 +220,11 @@ class SpoonTreeBuilder internal constructor(
      *
      * @param parent The parent node of the conflict.
      * @param conflict The current structural conflict.
+     * @param state The state of the build.
      */
-    private fun visitConflicting(parent: SpoonNode, conflict: StructuralConflict): CtElement {
+    private fun visitConflicting(parent: SpoonNode, conflict: StructuralConflict, state: BuildState): CtElement {
         val dummy = if (conflict.left.isNotEmpty()) conflict.left[0] else conflict.right[0]
-        val mergeParent = nodes[parent]!!.element
+        val mergeParent = state.nodes[parent]!!.element
         dummy.putMetadata<CtElement>(StructuralConflict.METADATA_KEY, conflict)
         val dummyNode = wrap(dummy)
         val role = resolveRole(dummyNode)
@@ -251,10 +302,9 @@ class SpoonTreeBuilder internal constructor(
      */
     private fun resolveRole(wrapper: SpoonNode?): CtRole {
         val matches: MutableList<CtRole> = ArrayList()
-        val tree = wrapper!!.element
-        matches.add(wrapper.element.roleInParent)
+        matches.add(wrapper!!.element.roleInParent)
         var base: SpoonNode? = null
-        when (tree.getMetadata(REV) as Revision) {
+        when (wrapper.revision) {
             Revision.BASE -> {
                 base = wrapper
                 val left = baseLeft.getDst(wrapper)
@@ -325,6 +375,9 @@ class SpoonTreeBuilder internal constructor(
         const val ORIGINAL_NODE_KEY = "spork_original_node"
         const val SINGLE_REVISION_KEY = "spork_single_revision"
 
+        // the smallest amount of members of a type that is worth building concurrently
+        private const val MIN_PARTITION_SIZE = 16
+
         // the position key is used to put the original source position of an element as metadata
         // this is necessary e.g. for comments as their original source position may cause them not to
         // be printed
@@ -355,6 +408,20 @@ class SpoonTreeBuilder internal constructor(
         }
     }
 
+    /**
+     * A clone helper that leaves out all children of the cloned element. The [CloneVisitor] copies the values of the
+     * element itself, such as its name and modifiers, and asks the helper to clone the children. Leaving them out
+     * makes the cost of a copy independent of the size of the element's subtree, which would otherwise make building
+     * the merged tree quadratic in its depth.
+     */
+    private object ShallowCloneHelper : CloneHelper() {
+        override fun <T : CtElement?> clone(element: T): T? = null
+
+        override fun <T : CtElement?> addClone(target: MutableCollection<T>, element: T) {}
+
+        override fun <T : CtElement?> addClone(target: MutableMap<String, T>, key: String, element: T) {}
+    }
+
     init {
         setSporkEnvironment(
             factory.environment,
@@ -17,7 +17,11 @@ import se.kth.spork.spoon.wrappers.RoledValues
 import se.kth.spork.spoon.wrappers.SpoonNode
 import se.kth.spork.util.LazyLogger
 import se.kth.spork.util.lineBasedMerge
+import se.kth.spork.util.mapPartitions
+import spoon.reflect.declaration.CtType
 import java.lang.NullPointerException
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
 import java.util.stream.Collectors
 
 /**
@@ -27,24 +31,28 @@ import java.util.stream.Collectors
  * @param baseLeft The base-to-left tree matching.
  * @param baseRight The base-to-right tree matching.
  * @param conflictHandlers All conflict handlers.
+ * @param executor The executor to build the members of types on.
  */
 internal class SporkTreeBuilder(
     private val delta: ChangeSet<SpoonNode, RoledValues>,
     private val baseLeft: SpoonMapping,
     private val baseRight: SpoonMapping,
     private val conflictHandlers: List<StructuralConflictHandler>,
+    private val executor: Executor = ForkJoinPool.commonPool(),
 ) {
     private val rootToChildren: Map<SpoonNode, Map<SpoonNode, Pcs<SpoonNode>>> = buildRootToChildren(delta.pcsSet)
     private val contents: Map<SpoonNode, Set<Content<SpoonNode, RoledValues>>> = delta.contents
     private var numStructuralConflicts: Int = 0
 
-    // keeps track of which nodes have been added to the tree all ready
-    // if any node is added twice, there's an unresolved move conflict
-    private val usedNodes: MutableSet<SpoonNode> = mutableSetOf()
+    // all structural inconsistencies, indexed by their roots
+    // if any have not been used when the child list of their root has been built, there's something wrong
+    private val inconsistencies: MutableMap<SpoonNode, MutableSet<Pcs<SpoonNode>>> = HashMap()
 
-    // keeps track of all structural inconsistencies that are used
-    // if any have not been used when the tree has been built, there's something wrong
-    private val remainingInconsistencies: MutableSet<Pcs<SpoonNode>> = delta.structuralConflicts.values.flatten().toMutableSet()
+    init {
+        for (inconsistency in delta.structuralConflicts.values.flatten()) {
+            inconsistencies.getOrPut(inconsistency.root, ::mutableSetOf).add(inconsistency)
+        }
+    }
 
     /** Try to resolve a structural conflict automatically.  */
     private fun tryResolveConflict(
@@ -70,232 +78,334 @@ internal class SporkTreeBuilder(
     }
 
     fun buildTree(): SporkTree {
-        return build(virtualRoot)
+        val walk = Walk(speculative = false)
+        val tree = walk.build(virtualRoot)
+        numStructuralConflicts = walk.numStructuralConflicts
+        return tree
     }
 
     /**
-     * Build a subtree of the [ChangeSet] contained in this builder. The [SporkTree]
-     * that's returned contains all information required to build the final Spoon tree, including
-     * structural conflict information.
+     * A walk over the merged PCS structure, that holds the state that builds up while building a tree.
+     *
+     * The members of a type are built independently of each other, apart from the move conflict detection, so the
+     * walk builds them ahead of time, concurrently on the executor, each in a speculative walk of its own. When the
+     * type's child list is built, a speculatively built member is adopted if none of its nodes have been used by the
+     * walk, and built again otherwise. A speculatively built member that is adopted is thereby the same as had it been
+     * built by the walk itself, so the result does not depend on how the members are scheduled.
+     *
+     * A speculative walk has no side effects, as it may be discarded. Instead of resolving a structural conflict, or
+     * falling back to a line-based merge, it abandons the member, which is then built again by the walk that would
+     * have adopted it.
      *
-     * @param currentRoot The node from which to build the subtree.
-     * @return A [SporkTree] rooted in the provided root node.
+     * @param speculative Whether this walk builds a member ahead of time.
      */
-    fun build(currentRoot: SpoonNode): SporkTree {
-        val children: Map<SpoonNode, Pcs<SpoonNode>>? = rootToChildren[currentRoot]
-        val currentContent = contents[currentRoot] ?: emptySet()
-        var tree = SporkTree(currentRoot, currentContent)
-        if (children == null) {
-            // leaf node
-            return tree
-        }
-        try {
-            build(currentRoot.startOfChildList, tree, children)
-            for (inconsistent in remainingInconsistencies) {
-                if (inconsistent.root == tree.node) {
-                    throw ConflictException("Missed conflict: $inconsistent")
-                }
+    private inner class Walk(private val speculative: Boolean) {
+        var numStructuralConflicts: Int = 0
+
+        // keeps track of which nodes have been added to the tree all ready
+        // if any node is added twice, there's an unresolved move conflict
+        private val usedNodes: MutableSet<SpoonNode> = mutableSetOf()
+
+        // keeps track of which structural inconsistencies have been used
+        private val usedInconsistencies: MutableSet<Pcs<SpoonNode>> = mutableSetOf()
+
+        // the speculatively built members of the types that are currently being built
+        private var speculativeMembers: Map<SpoonNode, Pair<Walk, SporkTree>> = emptyMap()
+
+        /**
+         * Build a subtree of the [ChangeSet] contained in this builder. The [SporkTree]
+         * that's returned contains all information required to build the final Spoon tree, including
+         * structural conflict information.
+         *
+         * @param currentRoot The node from which to build the subtree.
+         * @return A [SporkTree] rooted in the provided root node.
+         */
+        fun build(currentRoot: SpoonNode): SporkTree {
+            val children: Map<SpoonNode, Pcs<SpoonNode>>? = rootToChildren[currentRoot]
+            val currentContent = contents[currentRoot] ?: emptySet()
+            var tree = SporkTree(currentRoot, currentContent)
+            if (children == null) {
+                // leaf node
+                return tree
             }
-        } catch (e: NullPointerException) {
-            // could not resolve the child list
-            // TODO improve design, should not have to catch exceptions like this
-            LOGGER.warn {
-                (
-                    "Failed to resolve child list of " +
-                        currentRoot.element.shortRepresentation +
-                        ". Falling back to line-based merge of this element."
-                    )
+            val enclosingMembers = speculativeMembers
+            if (!speculative && !currentRoot.isVirtual && currentRoot.element is CtType<*>) {
+                speculativeMembers = enclosingMembers + buildMembers(currentRoot)
             }
-            val conflict = approximateConflict(currentRoot)
-            tree = SporkTree(currentRoot, currentContent, conflict)
-            tree.revisions = setOf(Revision.BASE, Revision.LEFT, Revision.RIGHT)
-        } catch (e: ConflictException) {
-            LOGGER.warn {
-                (
-                    "Failed to resolve child list of " +
-                        currentRoot.element.shortRepresentation +
-                        ". Falling back to line-based merge of this element."
-                    )
+            try {
+                build(currentRoot.startOfChildList, tree, children)
+                inconsistencies[tree.node]?.firstOrNull { it !in usedInconsistencies }?.let {
+                    throw ConflictException("Missed conflict: $it")
+                }
+            } catch (e: NullPointerException) {
+                // could not resolve the child list
+                // TODO improve design, should not have to catch exceptions like this
+                if (speculative) throw e
+                LOGGER.warn {
+                    (
+                        "Failed to resolve child list of " +
+                            currentRoot.element.shortRepresentation +
+                            ". Falling back to line-based merge of this element."
+                        )
+                }
+                val conflict = approximateConflict(currentRoot)
+                tree = SporkTree(currentRoot, currentContent, conflict)
+                tree.revisions = setOf(Revision.BASE, Revision.LEFT, Revision.RIGHT)
+            } catch (e: ConflictException) {
+                if (speculative) throw e
+                LOGGER.warn {
+                    (
+                        "Failed to resolve child list of " +
+                            currentRoot.element.shortRepresentation +
+                            ". Falling back to line-based merge of this element."
+                        )
+                }
+                val conflict = approximateConflict(currentRoot)
+                tree = SporkTree(currentRoot, currentContent, conflict)
+                tree.revisions = setOf(Revision.BASE, Revision.LEFT, Revision.RIGHT)
+            } finally {
+                speculativeMembers = enclosingMembers
             }
-            val conflict = approximateConflict(currentRoot)
-            tree = SporkTree(currentRoot, currentContent, conflict)
-            tree.revisions = setOf(Revision.BASE, Revision.LEFT, Revision.RIGHT)
+            return tree
         }
-        return tree
-    }
 
-    private fun build(start: SpoonNode, tree: SporkTree, children: Map<SpoonNode, Pcs<SpoonNode>>?) {
-        if (children == null) {
-            // leaf node
-            return
-        }
-        var next: SpoonNode? = start
-        while (true) {
-            val nextPcs = children[next]!!
-            tree.addRevision(nextPcs.revision)
-            next = nextPcs.successor
-            if (next.isListEdge) {
-                // can still have a conflict at the end of the child list
-                getSuccessorConflict(nextPcs)?.apply {
-                    traverseConflict(nextPcs, this, children, tree)
+        /**
+         * Build the members of a type concurrently, each in a speculative walk of its own. A member that can't be built
+         * without side effects is left out, such that the walk that adopts the members builds it again. These are the
+         * members with conflicts, and those whose child lists can't be resolved, which a walk that isn't speculative
+         * falls back to a line-based merge for. Any other exception is rethrown, as it isn't caused by the speculation.
+         *
+         * @param type A type.
+         * @return The walks and trees of the members of the type, indexed by their nodes.
+         */
+        private fun buildMembers(type: SpoonNode): Map<SpoonNode, Pair<Walk, SporkTree>> {
+            // the children of a type are grouped by their roles, under virtual role nodes
+            val roleNodes = rootToChildren[type]!!.values.map(Pcs<SpoonNode>::successor).filter { it.isVirtual }
+            val members = roleNodes
+                .flatMap { rootToChildren[it]?.values.orEmpty() }
+                .map(Pcs<SpoonNode>::successor)
+                .filter { !it.isVirtual }
+                .distinct()
+            return mapPartitions(members, MIN_PARTITION_SIZE, executor) { partition ->
+                partition.mapNotNull { member ->
+                    val walk = Walk(speculative = true)
+                    val tree = try {
+                        walk.build(member)
+                    } catch (e: SpeculationAbandonedException) {
+                        null
+                    } catch (e: ConflictException) {
+                        null
+                    } catch (e: NullPointerException) {
+                        null
+                    }
+                    tree?.let { member to Pair(walk, it) }
                 }
-                break
+            }.flatten().toMap()
+        }
+
+        /**
+         * Build a child, adopting its speculatively built tree if it is the same as had it been built by this walk.
+         */
+        private fun buildChild(child: SpoonNode): SporkTree {
+            val (walk, tree) = speculativeMembers[child] ?: return build(child)
+            if (child in usedNodes || walk.usedNodes.any(usedNodes::contains)) {
+                // the member shares nodes with the tree built so far, which is detected as a move conflict
+                return build(child)
             }
-            if (next.isVirtual && !next.isListEdge) {
-                build(next.startOfChildList, tree, rootToChildren[next])
-            } else {
-                val successorConflict = getSuccessorConflict(nextPcs)
-                if (successorConflict != null) {
-                    next = traverseConflict(nextPcs, successorConflict, children, tree)
-                } else {
-                    addChild(tree, build(next))
-                }
+            usedNodes.addAll(walk.usedNodes)
+            usedInconsistencies.addAll(walk.usedInconsistencies)
+            numStructuralConflicts += walk.numStructuralConflicts
+            return tree
+        }
 
-                if (next.isEndOfList) {
+        private fun build(start: SpoonNode, tree: SporkTree, children: Map<SpoonNode, Pcs<SpoonNode>>?) {
+            if (children == null) {
+                // leaf node
+                return
+            }
+            var next: SpoonNode? = start
+            while (true) {
+                val nextPcs = children[next]!!
+                tree.addRevision(nextPcs.revision)
+                next = nextPcs.successor
+                if (next.isListEdge) {
+                    // can still have a conflict at the end of the child list
+                    getSuccessorConflict(nextPcs)?.apply {
+                        traverseConflict(nextPcs, this, children, tree)
+                    }
                     break
                 }
+                if (next.isVirtual && !next.isListEdge) {
+                    build(next.startOfChildList, tree, rootToChildren[next])
+                } else {
+                    val successorConflict = getSuccessorConflict(nextPcs)
+                    if (successorConflict != null) {
+                        next = traverseConflict(nextPcs, successorConflict, children, tree)
+                    } else {
+                        addChild(tree, buildChild(next))
+                    }
+
+                    if (next.isEndOfList) {
+                        break
+                    }
+                }
             }
         }
-    }
 
-    private fun getSuccessorConflict(pcs: Pcs<SpoonNode>): Pcs<SpoonNode>? =
-        delta.structuralConflicts[pcs]?.firstOrNull {
-            isSuccessorConflict(
-                pcs,
-                it,
+        private fun getSuccessorConflict(pcs: Pcs<SpoonNode>): Pcs<SpoonNode>? =
+            delta.structuralConflicts[pcs]?.firstOrNull {
+                isSuccessorConflict(
+                    pcs,
+                    it,
+                )
+            }
+
+        /**
+         * When a conflict in the child list of a node is not possible to resolve, we approximate the
+         * conflict by finding the node's matches in the left and right revisions and have them make up
+         * the conflict instead. This is a rough estimation, and if they nodes have large child lists it
+         * will result in very large conflicts.
+         *
+         * @param node A node for which the child list could not be constructed.
+         * @return An approximated conflict between the left and right matches of the node.
+         */
+        private fun approximateConflict(node: SpoonNode): StructuralConflict {
+            val base: SpoonNode?
+            val left: SpoonNode?
+            val right: SpoonNode?
+            when (node.revision) {
+                Revision.LEFT -> {
+                    left = node
+                    base = baseLeft.getSrc(left)
+                    right = baseRight.getDst(base!!)
+                }
+                Revision.RIGHT -> {
+                    right = node
+                    base = baseRight.getSrc(right)
+                    left = baseLeft.getDst(base!!)
+                }
+                Revision.BASE -> {
+                    base = node
+                    left = baseLeft.getDst(node)
+                    right = baseRight.getDst(node)
+                }
+            }
+            val (first, second) = lineBasedMerge(
+                base.element,
+                left!!.element,
+                right!!.element,
+            )
+            numStructuralConflicts += second
+            return StructuralConflict(
+                base.element,
+                left.element,
+                right.element,
+                first,
             )
         }
 
-    /**
-     * When a conflict in the child list of a node is not possible to resolve, we approximate the
-     * conflict by finding the node's matches in the left and right revisions and have them make up
-     * the conflict instead. This is a rough estimation, and if they nodes have large child lists it
-     * will result in very large conflicts.
-     *
-     * @param node A node for which the child list could not be constructed.
-     * @return An approximated conflict between the left and right matches of the node.
-     */
-    private fun approximateConflict(node: SpoonNode): StructuralConflict {
-        val base: SpoonNode?
-        val left: SpoonNode?
-        val right: SpoonNode?
-        when (node.revision) {
-            Revision.LEFT -> {
-                left = node
-                base = baseLeft.getSrc(left)
-                right = baseRight.getDst(base!!)
-            }
-            Revision.RIGHT -> {
-                right = node
-                base = baseRight.getSrc(right)
-                left = baseLeft.getDst(base!!)
+        private fun traverseConflict(
+            nextPcs: Pcs<SpoonNode>,
+            conflicting: Pcs<SpoonNode>,
+            children: Map<SpoonNode, Pcs<SpoonNode>>,
+            tree: SporkTree,
+        ): SpoonNode {
+            if (speculative) {
+                // resolving the conflict may have side effects, such as logging
+                throw SpeculationAbandonedException()
             }
-            Revision.BASE -> {
-                base = node
-                left = baseLeft.getDst(node)
-                right = baseRight.getDst(node)
+            markUsed(nextPcs)
+            markUsed(conflicting)
+            listOf(Revision.LEFT, Revision.RIGHT).forEach(tree::addRevision)
+            val leftPcs = if (nextPcs.revision === Revision.LEFT) nextPcs else conflicting
+            val rightPcs = if (leftPcs === nextPcs) conflicting else nextPcs
+            val leftNodes = extractConflictList(leftPcs, children)
+            val rightNodes = extractConflictList(rightPcs, children)
+            val resolved = tryResolveConflict(leftNodes, rightNodes)
+
+            // if nextPcs happens to be the final PCS of a child list, next may be a virtual node
+            val next: SpoonNode = if (leftNodes.isEmpty()) rightNodes[rightNodes.size - 1] else leftNodes[leftNodes.size - 1]
+            if (resolved != null) {
+                resolved.forEach { child: SpoonNode -> addChild(tree, buildChild(child)) }
+            } else {
+                numStructuralConflicts++
+                val conflict = StructuralConflict(
+                    leftNodes.stream()
+                        .map(SpoonNode::element)
+                        .collect(Collectors.toList()),
+                    rightNodes.stream()
+                        .map(SpoonNode::element)
+                        .collect(Collectors.toList()),
+                )
+                // next is used as a dummy node here, so it should not be added to usedNodes
+                tree.addChild(SporkTree(next, contents[next]!!, conflict))
             }
+            // by convention, build left tree
+            return next
         }
-        val (first, second) = lineBasedMerge(
-            base.element,
-            left!!.element,
-            right!!.element,
-        )
-        numStructuralConflicts += second
-        return StructuralConflict(
-            base.element,
-            left.element,
-            right.element,
-            first,
-        )
-    }
-
-    private fun traverseConflict(
-        nextPcs: Pcs<SpoonNode>,
-        conflicting: Pcs<SpoonNode>,
-        children: Map<SpoonNode, Pcs<SpoonNode>>,
-        tree: SporkTree,
-    ): SpoonNode {
-        remainingInconsistencies.remove(nextPcs)
-        remainingInconsistencies.remove(conflicting)
-        listOf(Revision.LEFT, Revision.RIGHT).forEach(tree::addRevision)
-        val leftPcs = if (nextPcs.revision === Revision.LEFT) nextPcs else conflicting
-        val rightPcs = if (leftPcs === nextPcs) conflicting else nextPcs
-        val leftNodes = extractConflictList(leftPcs, children)
-        val rightNodes = extractConflictList(rightPcs, children)
-        val resolved = tryResolveConflict(leftNodes, rightNodes)
 
-        // if nextPcs happens to be the final PCS of a child list, next may be a virtual node
-        val next: SpoonNode = if (leftNodes.isEmpty()) rightNodes[rightNodes.size - 1] else leftNodes[leftNodes.size - 1]
-        if (resolved != null) {
-            resolved.forEach { child: SpoonNode -> addChild(tree, build(child)) }
-        } else {
-            numStructuralConflicts++
-            val conflict = StructuralConflict(
-                leftNodes.stream()
-                    .map(SpoonNode::element)
-                    .collect(Collectors.toList()),
-                rightNodes.stream()
-                    .map(SpoonNode::element)
-                    .collect(Collectors.toList()),
-            )
-            // next is used as a dummy node here, so it should not be added to usedNodes
-            tree.addChild(SporkTree(next, contents[next]!!, conflict))
+        private fun markUsed(inconsistency: Pcs<SpoonNode>) {
+            usedInconsistencies.add(inconsistency)
         }
-        // by convention, build left tree
-        return next
-    }
 
-    private fun addChild(tree: SporkTree, child: SporkTree) {
-        if (usedNodes.contains(child.node)) {
-            // if this happens, then there is a duplicate node in the tree, indicating a move
-            // conflict
-            throw ConflictException("Move conflict detected")
+        private fun addChild(tree: SporkTree, child: SporkTree) {
+            if (usedNodes.contains(child.node)) {
+                // if this happens, then there is a duplicate node in the tree, indicating a move
+                // conflict
+                throw ConflictException("Move conflict detected")
+            }
+            tree.addChild(child)
+            usedNodes.add(child.node)
         }
-        tree.addChild(child)
-        usedNodes.add(child.node)
-    }
 
-    /**
-     * Scan ahead in the PCS structure to resolve the conflicting children. The conflict must end
-     * with a predecessor conflict, or an exception is thrown.
-     */
-    private fun extractConflictList(
-        pcs: Pcs<SpoonNode>,
-        siblings: Map<SpoonNode, Pcs<SpoonNode>>,
-    ): List<SpoonNode> {
-        var currentPcs = pcs
-        val nodes: MutableList<SpoonNode> = mutableListOf()
-        while (true) {
-            val conflicts = delta.structuralConflicts[currentPcs]
-            if (conflicts != null && conflicts.isNotEmpty()) {
-                val finalPcs = currentPcs
-                val predConflict = conflicts.stream()
-                    .filter {
-                        isPredecessorConflict(
-                            finalPcs,
-                            it,
-                        )
+        /**
+         * Scan ahead in the PCS structure to resolve the conflicting children. The conflict must end
+         * with a predecessor conflict, or an exception is thrown.
+         */
+        private fun extractConflictList(
+            pcs: Pcs<SpoonNode>,
+            siblings: Map<SpoonNode, Pcs<SpoonNode>>,
+        ): List<SpoonNode> {
+            var currentPcs = pcs
+            val nodes: MutableList<SpoonNode> = mutableListOf()
+            while (true) {
+                val conflicts = delta.structuralConflicts[currentPcs]
+                if (conflicts != null && conflicts.isNotEmpty()) {
+                    val finalPcs = currentPcs
+                    val predConflict = conflicts.stream()
+                        .filter {
+                            isPredecessorConflict(
+                                finalPcs,
+                                it,
+                            )
+                        }
+                        .findFirst()
+                    if (predConflict.isPresent) {
+                        markUsed(predConflict.get())
+                        return nodes
                     }
-                    .findFirst()
-                if (predConflict.isPresent) {
-                    remainingInconsistencies.remove(predConflict.get())
-                    return nodes
                 }
+                val nextNode = currentPcs.successor
+                if (nextNode.isEndOfList) {
+                    throw ConflictException(
+                        "Reached the end of the child list without finding a predecessor conflict",
+                    )
+                }
+                nodes.add(nextNode)
+                currentPcs = siblings[nextNode]!!
             }
-            val nextNode = currentPcs.successor
-            if (nextNode.isEndOfList) {
-                throw ConflictException(
-                    "Reached the end of the child list without finding a predecessor conflict",
-                )
-            }
-            nodes.add(nextNode)
-            currentPcs = siblings[nextNode]!!
         }
     }
 
+    /** Thrown by a speculative walk when it can't build a member without side effects. */
+    private class SpeculationAbandonedException : RuntimeException()
+
     companion object {
         private val LOGGER = LazyLogger(SporkTreeBuilder::class.java)
+
+        // the smallest amount of members of a type that is worth building concurrently
+        private const val MIN_PARTITION_SIZE = 16
+
         private fun <T : ListNode> buildRootToChildren(
             pcses: Set<Pcs<T>>,
         ): Map<T, MutableMap<T, Pcs<T>>> {
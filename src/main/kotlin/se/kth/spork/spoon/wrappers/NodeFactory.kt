@@ -1,6 +1,5 @@
 package se.kth.spork.spoon.wrappers
 
-import se.kth.spork.base3dm.REV
 import se.kth.spork.base3dm.Revision
 import spoon.reflect.declaration.CtElement
 import spoon.reflect.declaration.CtExecutable
@@ -16,16 +15,18 @@ import java.util.Objects
 import java.util.TreeMap
 
 /**
- * Factory for wrapping a Spoon [CtElement] in a [SpoonNode].
+ * Factory for wrapping a Spoon [CtElement] in a [SpoonNode]. The wrappers and revisions of elements are kept in the
+ * [NodeTable] that is bound to the current thread, and wrapping an element on a thread without a bound table is an
+ * error.
+ *
+ * Wrapping is thread-safe: each element gets exactly one wrapper, even if it is wrapped by several threads at
+ * the same time.
  *
  * @author Simon Larsén
  */
 object NodeFactory {
     val virtualRoot: SpoonNode = Root
 
-    const val WRAPPER_METADATA = "spork_wrapper"
-    private var currentKey: Long = 0
-
     // These are roles that are present in the EXPLODED_TYPES types, but are either not structural
     // or are always present as a single node (such as a method body)
     private val IGNORED_ROLES = setOf( /* START NON-STRUCTURAL ROLES */
@@ -56,7 +57,7 @@ object NodeFactory {
     }.toMap()
 
     /**
-     * Wrap a CtElement in a CtWrapper. The wrapper is stored in the CtElement's metadata. If a CtElement that has
+     * Wrap a CtElement in a CtWrapper. The wrapper is stored in the current node table. If a CtElement that has
      * already been wrapped is passed in, then its existing wrapper is returned. In other words, each CtElement gets
      * a single unique CtWrapper.
      *
@@ -79,20 +80,22 @@ object NodeFactory {
      */
     @JvmStatic
     fun forceWrap(elem: CtElement, parent: SpoonNode): SpoonNode {
-        return initializeWrapper(elem, parent)
+        val table = currentTable()
+        synchronized(table) {
+            return initializeWrapper(table, elem, parent)
+        }
     }
 
     /**
-     * Clear all non-revision metadata from this element.
+     * Clear all metadata and the wrapper of this element, such that it is wrapped anew the next time it is wrapped.
+     * The revision of the element is retained.
      *
      * @param elem An element.
      */
     @JvmStatic
     fun clearNonRevisionMetadata(elem: CtElement) {
-        val rev = elem.getMetadata(REV) as Revision
-        val metadata: MutableMap<String, Any> = TreeMap()
-        metadata[REV] = rev
-        elem.setAllMetadata<CtElement>(metadata)
+        elem.setAllMetadata<CtElement>(emptyMap())
+        currentTable().setWrapper(elem, null)
     }
 
     /**
@@ -103,31 +106,60 @@ object NodeFactory {
      */
     @JvmStatic
     fun setRevisionIfUnset(elem: CtElement, revision: Revision?) {
-        if (elem.getMetadata(REV) == null) {
-            elem.putMetadata<CtElement>(REV, revision)
+        currentTable().setRevisionIfUnset(elem, revision)
+    }
+
+    /**
+     * Set the revisions of a copy of a tree to those of the original tree. The trees must be structurally identical.
+     *
+     * @param original The original tree.
+     * @param copy A copy of the original tree.
+     * @param deep Whether to copy the revisions of all descendants, or only of the root.
+     */
+    @JvmStatic
+    fun copyRevisions(original: CtElement, copy: CtElement, deep: Boolean) {
+        val table = currentTable()
+        table.getRevision(original)?.let { table.setRevisionIfUnset(copy, it) }
+        if (deep) {
+            val copies = copy.descendantIterator()
+            original.descendantIterator().forEach { descendant ->
+                val descendantCopy = copies.next()
+                table.getRevision(descendant)?.let { table.setRevisionIfUnset(descendantCopy, it) }
+            }
         }
     }
 
+    private fun currentTable(): NodeTable =
+        NodeTable.current ?: throw IllegalStateException("No node table is bound to the current thread")
+
     private fun wrapInternal(elem: CtElement): Node {
-        val wrapper = elem.getMetadata(WRAPPER_METADATA) ?: return initializeWrapper(elem)
-        return wrapper as Node
+        val table = currentTable()
+        // most elements are all ready wrapped, and looking up their wrappers takes no lock
+        (table.getWrapper(elem) as? Node)?.let { return it }
+        synchronized(table) {
+            return wrapInternal(table, elem)
+        }
+    }
+
+    private fun wrapInternal(table: NodeTable, elem: CtElement): Node {
+        return table.getWrapper(elem) as? Node ?: initializeWrapper(table, elem)
     }
 
-    private fun initializeWrapper(elem: CtElement): Node {
+    private fun initializeWrapper(table: NodeTable, elem: CtElement): Node {
         if (elem is CtUnnamedModule) {
-            return initializeWrapper(elem, virtualRoot)
+            return initializeWrapper(table, elem, virtualRoot)
         }
         val spoonParent = elem.parent
         val roleInParent = elem.roleInParent
-        val actualParent = wrapInternal(spoonParent)
+        val actualParent = wrapInternal(table, spoonParent)
         val effectiveParent: SpoonNode = if (actualParent.hasRoleNodeFor(roleInParent)) actualParent.getRoleNode(roleInParent) else actualParent
-        return initializeWrapper(elem, effectiveParent)
+        return initializeWrapper(table, elem, effectiveParent)
     }
 
-    private fun initializeWrapper(elem: CtElement, parent: SpoonNode): Node {
+    private fun initializeWrapper(table: NodeTable, elem: CtElement, parent: SpoonNode): Node {
         val availableChildRoles = getVirtualNodeChildRoles(elem)
-        val node = Node(elem, parent, currentKey++, availableChildRoles)
-        elem.putMetadata<CtElement>(WRAPPER_METADATA, node)
+        val node = Node(elem, parent, table, table.nextKey(), availableChildRoles)
+        table.setWrapper(elem, node)
         return node
     }
 
@@ -189,7 +221,13 @@ object NodeFactory {
      *
      * This class should only be instantiated by [.wrap].
      */
-    private class Node internal constructor(override val element: CtElement, override val parent: SpoonNode, private val key: Long, virtualNodeChildRoles: List<CtRole>?) : ParentSpoonNode() {
+    private class Node internal constructor(
+        override val element: CtElement,
+        override val parent: SpoonNode,
+        private val table: NodeTable,
+        private val key: Long,
+        virtualNodeChildRoles: List<CtRole>?,
+    ) : ParentSpoonNode() {
         private val virtualRoleChildNodes: MutableMap<CtRole, RoleNode>
         private val role: CtRole
 
@@ -199,12 +237,7 @@ object NodeFactory {
         override val isVirtual: Boolean = false
 
         override val revision: Revision
-            get() {
-                if (element.getMetadata(REV) == null) {
-                    return Revision.BASE
-                }
-                return element.getMetadata(REV) as Revision
-            }
+            get() = table.getRevision(element) ?: Revision.BASE
 
         override fun toString(): String {
             val longRep = element.toString()
@@ -0,0 +1,175 @@
+package se.kth.spork.spoon.wrappers
+
+import se.kth.spork.base3dm.Revision
+import spoon.reflect.declaration.CtElement
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * A side table that holds the [SpoonNode] wrappers and the revisions of the Spoon elements that take part in a
+ * merge. Each element is assigned a dense id the first time it is seen, which for the input trees is the order in
+ * which they are traversed when building PCS triples, and the wrappers and revisions are stored in arrays indexed by
+ * id. Elements are mapped to their ids by identity, with an open addressing hash table.
+ *
+ * Keeping the wrappers and revisions in the elements' metadata would instead allocate a hash map per element, and
+ * make every lookup a hash of a string key.
+ *
+ * A table is bound to the threads that run a merge with [use], and [NodeFactory] wraps elements in the table that is
+ * bound to the current thread. All methods are thread safe. Writes are serialized on the table's lock, whereas reads
+ * take no lock, as the wrappers and revisions are read far more often than they are written, and by all threads of a
+ * merge.
+ */
+class NodeTable {
+    // the arrays are only ever written with the table's lock held, and are replaced rather than written when they
+    // grow, so a reader sees every write that happens before its read without taking the lock
+    @Volatile
+    private var slots = Slots(INITIAL_CAPACITY * 2)
+
+    @Volatile
+    private var wrappers = AtomicReferenceArray<SpoonNode?>(INITIAL_CAPACITY)
+
+    @Volatile
+    private var revisions = AtomicReferenceArray<Revision?>(INITIAL_CAPACITY)
+
+    private val nextKey = AtomicLong()
+
+    /** The amount of elements in the table. */
+    @Volatile
+    var size: Int = 0
+        private set
+
+    /**
+     * Run the computation with this table bound to the current thread, and restore the previously bound table
+     * afterwards.
+     *
+     * @param computation The computation to run.
+     * @return The result of the computation.
+     */
+    fun <T> use(computation: () -> T): T {
+        val previous = CURRENT.get()
+        CURRENT.set(this)
+        try {
+            return computation()
+        } finally {
+            if (previous == null) CURRENT.remove() else CURRENT.set(previous)
+        }
+    }
+
+    internal fun getWrapper(element: CtElement): SpoonNode? {
+        val id = find(element)
+        return if (id == -1) null else wrappers[id]
+    }
+
+    @Synchronized
+    internal fun setWrapper(element: CtElement, wrapper: SpoonNode?) {
+        // the id must be assigned before the array is read, as assigning it may grow the array
+        val id = idOf(element)
+        wrappers[id] = wrapper
+    }
+
+    internal fun getRevision(element: CtElement): Revision? {
+        val id = find(element)
+        return if (id == -1) null else revisions[id]
+    }
+
+    @Synchronized
+    internal fun setRevisionIfUnset(element: CtElement, revision: Revision?) {
+        val id = idOf(element)
+        if (revisions[id] == null) {
+            revisions[id] = revision
+        }
+    }
+
+    /**
+     * @return A key that is unique within this table, for a new wrapper.
+     */
+    internal fun nextKey(): Long = nextKey.getAndIncrement()
+
+    private fun find(element: CtElement): Int {
+        val slots = slots
+        val mask = slots.capacity - 1
+        var slot = hash(element) and mask
+        while (true) {
+            val candidate = slots.elements[slot] ?: return -1
+            if (candidate === element) {
+                return slots.ids[slot]
+            }
+            slot = (slot + 1) and mask
+        }
+    }
+
+    private fun idOf(element: CtElement): Int {
+        val mask = slots.capacity - 1
+        var slot = hash(element) and mask
+        while (true) {
+            val candidate = slots.elements[slot]
+            if (candidate === element) {
+                return slots.ids[slot]
+            } else if (candidate == null) {
+                break
+            }
+            slot = (slot + 1) and mask
+        }
+
+        val id = size
+        if (id == wrappers.length()) {
+            wrappers = copyOf(wrappers, id * 2)
+            revisions = copyOf(revisions, id * 2)
+        }
+        // the id is written before the element, such that a reader that finds the element also finds its id
+        slots.ids[slot] = id
+        slots.elements[slot] = element
+        size = id + 1
+        if (size * 2 > slots.capacity) {
+            rehash()
+        }
+        return id
+    }
+
+    private fun rehash() {
+        val oldSlots = slots
+        val newSlots = Slots(oldSlots.capacity * 2)
+        val mask = newSlots.capacity - 1
+        for (i in 0 until oldSlots.capacity) {
+            val element = oldSlots.elements[i] ?: continue
+            var slot = hash(element) and mask
+            while (newSlots.elements[slot] != null) {
+                slot = (slot + 1) and mask
+            }
+            newSlots.ids[slot] = oldSlots.ids[i]
+            newSlots.elements[slot] = element
+        }
+        slots = newSlots
+    }
+
+    /** An open addressing hash table from elements to their ids. */
+    private class Slots(val capacity: Int) {
+        val elements = AtomicReferenceArray<CtElement?>(capacity)
+        val ids = IntArray(capacity)
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 1024
+
+        private val CURRENT = ThreadLocal<NodeTable>()
+
+        /** The table that is bound to the current thread, or null if there is none. */
+        @JvmStatic
+        val current: NodeTable?
+            get() = CURRENT.get()
+
+        private fun <T> copyOf(array: AtomicReferenceArray<T?>, capacity: Int): AtomicReferenceArray<T?> {
+            val copy = AtomicReferenceArray<T?>(capacity)
+            for (i in 0 until array.length()) {
+                copy.lazySet(i, array[i])
+            }
+            return copy
+        }
+
+        // identity hash codes have poor low bits, so they are spread before masking
+        private fun hash(element: CtElement): Int {
+            val h = System.identityHashCode(element) * -0x61c88647
+            return h xor (h ushr 16)
+        }
+    }
+}
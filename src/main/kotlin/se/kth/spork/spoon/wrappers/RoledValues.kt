@@ -3,22 +3,46 @@ package se.kth.spork.spoon.wrappers
 import spoon.reflect.declaration.CtElement
 import spoon.reflect.path.CtRole
 import java.util.ArrayList
+import java.util.RandomAccess
 
 /**
  * Class representing some form of value in a Spoon node, along with the role the value has. This is for
  * example the name of a method, or the value in a literal.
  *
+ * Copies are copy-on-write: a copy shares the element and the values of the original, and the values are copied
+ * only once either of them is modified.
+ *
  * @author Simon Larsén
  */
-class RoledValues : ArrayList<RoledValue> {
-    val element: CtElement
+class RoledValues private constructor(
+    val element: CtElement,
+    private var values: MutableList<RoledValue>,
+    // whether the values may be shared with a copy, and must be copied before they are modified
+    private var shared: Boolean,
+) : AbstractMutableList<RoledValue>(), RandomAccess {
+
+    constructor(element: CtElement) : this(element, ArrayList(), false)
 
-    constructor(element: CtElement) : super() {
-        this.element = element
+    constructor(other: RoledValues) : this(other.element, other.values, true) {
+        other.shared = true
     }
 
-    constructor(other: RoledValues) : super(other) {
-        element = other.element.clone()
+    override val size: Int
+        get() = values.size
+
+    override fun get(index: Int): RoledValue = values[index]
+
+    override fun set(index: Int, element: RoledValue): RoledValue = writableValues().set(index, element)
+
+    override fun add(index: Int, element: RoledValue) {
+        writableValues().add(index, element)
+        modCount++
+    }
+
+    override fun removeAt(index: Int): RoledValue {
+        val removed = writableValues().removeAt(index)
+        modCount++
+        return removed
     }
 
     fun add(role: CtRole, value: Any?) {
@@ -28,4 +52,12 @@ class RoledValues : ArrayList<RoledValue> {
     operator fun set(i: Int, role: CtRole, value: Any): RoledValue {
         return set(i, RoledValue(role, value))
     }
+
+    private fun writableValues(): MutableList<RoledValue> {
+        if (shared) {
+            values = ArrayList(values)
+            shared = false
+        }
+        return values
+    }
 }
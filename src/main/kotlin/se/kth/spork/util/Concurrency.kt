@@ -0,0 +1,60 @@
+package se.kth.spork.util
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * Run the given computation asynchronously on the executor.
+ *
+ * @param executor The executor to run the computation on.
+ * @param computation The computation to run.
+ * @return A future holding the result of the computation.
+ */
+fun <T> runAsync(executor: Executor, computation: () -> T): CompletableFuture<T> =
+    CompletableFuture.supplyAsync(computation, executor)
+
+/**
+ * Wait for the future to complete and return its result. Unlike [CompletableFuture.join], an exception thrown
+ * by the computation is rethrown as is, instead of being wrapped in a [CompletionException]. This keeps the
+ * exceptions thrown by concurrent phases identical to those thrown when running sequentially.
+ *
+ * @return The result of the computation.
+ */
+fun <T> CompletableFuture<T>.await(): T {
+    return try {
+        join()
+    } catch (e: CompletionException) {
+        throw e.cause ?: e
+    }
+}
+
+/**
+ * Split the items into contiguous partitions, transform each partition on the executor, and return the results in the
+ * order of the partitions. There are at most as many partitions as the parallelism of the executor, if it is a
+ * [ForkJoinPool], or as there are available processors otherwise, and each partition has at least
+ * [minPartitionSize] items. The last partition is transformed on the calling thread, so
+ * lists that are too small to be split are transformed without involving the executor at all.
+ *
+ * @param items The items to partition.
+ * @param minPartitionSize The smallest amount of items that is worth transforming concurrently.
+ * @param executor The executor to transform all but the last partition on.
+ * @param transform The transformation of a partition.
+ * @return The transformed partitions, in order.
+ */
+fun <E, R> mapPartitions(
+    items: List<E>,
+    minPartitionSize: Int,
+    executor: Executor,
+    transform: (List<E>) -> R,
+): List<R> {
+    val parallelism = (executor as? ForkJoinPool)?.parallelism ?: Runtime.getRuntime().availableProcessors()
+    val numPartitions = minOf(parallelism, items.size / minPartitionSize).coerceAtLeast(1)
+    val partitions = (0 until numPartitions).map {
+        items.subList(it * items.size / numPartitions, (it + 1) * items.size / numPartitions)
+    }
+    val futures = partitions.dropLast(1).map { runAsync(executor) { transform(it) } }
+    val last = transform(partitions.last())
+    return futures.map { it.await() } + last
+}
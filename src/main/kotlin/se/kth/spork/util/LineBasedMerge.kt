@@ -26,12 +26,25 @@ fun lineBasedMerge(base: String, left: String, right: String): Pair<String, Int>
         return Pair(if (left.isEmpty()) right else left, 0)
     }
 
+    return formatLineBasedMerge(lineBasedMergeResult(base, left, right))
+}
+
+/**
+ * Line-based merge implementation using JGit, that returns the raw merge result. The sequences of the result are
+ * the base, left and right revisions, in that order.
+ *
+ * @param base The base revision.
+ * @param left The left revision.
+ * @param right The right revision.
+ * @return The merge result, divided into chunks.
+ */
+fun lineBasedMergeResult(base: String, left: String, right: String): MergeResult<RawText> {
     val baseRaw = RawText(base.toByteArray())
     val leftRaw = RawText(left.toByteArray())
     val rightRaw = RawText(right.toByteArray())
 
     val merge = MergeAlgorithm()
-    val res: MergeResult<RawText> = merge.merge(
+    return merge.merge(
         object : SequenceComparator<RawText>() {
             override fun equals(lhs: RawText, lhsIdx: Int, rhs: RawText, rhsIdx: Int) =
                 lhs.getString(lhsIdx) == rhs.getString(rhsIdx)
@@ -42,7 +55,15 @@ fun lineBasedMerge(base: String, left: String, right: String): Pair<String, Int>
         leftRaw,
         rightRaw,
     )
+}
 
+/**
+ * Format a line-based merge result, with Spork's conflict markers around conflicting chunks.
+ *
+ * @param res A merge result.
+ * @return A pair containing the merge and the amount of conflicts.
+ */
+fun formatLineBasedMerge(res: MergeResult<RawText>): Pair<String, Int> {
     val it: Iterator<MergeChunk> = res.iterator()
     val lines: MutableList<String> = ArrayList()
     var inConflict = false
@@ -0,0 +1,37 @@
+package se.kth.spork.util
+
+private val WHITESPACE = Regex("\\s+")
+
+/**
+ * Merge the revisions without parsing them, if the merge can be determined from the contents alone.
+ * That is the case when the left and right revisions are equal, in which case either is the merge, or
+ * when one of them is equal to the base revision, in which case the other one is the merge.
+ *
+ * @param base The base revision.
+ * @param left The left revision.
+ * @param right The right revision.
+ * @param ignoreSpaceChange If true, revisions that differ only in the amount of whitespace are also
+ * considered equal, in the same way as Git's --ignore-space-change. Trailing whitespace on a line is
+ * ignored, and all other sequences of whitespace are considered equivalent. Exact equality takes
+ * precedence, so whitespace changes are only discarded if there is no exact trivial merge.
+ * @return The merge, or null if the merge is not trivial.
+ */
+fun trivialMerge(base: String, left: String, right: String, ignoreSpaceChange: Boolean = false): String? {
+    return trivialMerge(base, left, right, left, right) ?: if (ignoreSpaceChange) {
+        trivialMerge(normalizeSpace(base), normalizeSpace(left), normalizeSpace(right), left, right)
+    } else {
+        null
+    }
+}
+
+private fun trivialMerge(base: String, left: String, right: String, leftResult: String, rightResult: String): String? {
+    return when {
+        left == right -> leftResult
+        left == base -> rightResult
+        right == base -> leftResult
+        else -> null
+    }
+}
+
+private fun normalizeSpace(content: String): String =
+    content.lines().joinToString("\n") { it.trimEnd().replace(WHITESPACE, " ") }
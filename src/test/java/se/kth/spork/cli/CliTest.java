@@ -2,12 +2,26 @@ package se.kth.spork.cli;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import kotlin.Pair;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -15,8 +29,14 @@ import org.junit.jupiter.params.provider.ArgumentsSource;
 import picocli.CommandLine;
 import se.kth.spork.Util;
 import se.kth.spork.exception.MergeException;
+import se.kth.spork.git.SporkMerger;
+import se.kth.spork.spoon.MergeBudget;
+import se.kth.spork.spoon.MergeReport;
+import se.kth.spork.spoon.MergeSession;
+import se.kth.spork.spoon.ParseCache;
 import se.kth.spork.spoon.Parser;
 import se.kth.spork.spoon.Spoon3dmMerge;
+import se.kth.spork.spoon.matching.MatcherAlgorithm;
 import spoon.reflect.declaration.CtModule;
 
 class CliTest {
@@ -70,6 +90,467 @@ class CliTest {
         assertEquals(expected, merge.getFirst());
     }
 
+    @ParameterizedTest
+    @ArgumentsSource(Util.ConflictSourceProvider.class)
+    void merge_shouldEqualLocalMerge_whenDelegatedToServer(
+            Util.TestSources sources, @TempDir Path tempDir) throws Exception {
+        Pair<String, Integer> expected =
+                Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ false);
+
+        Path socket = tempDir.resolve("spork.sock");
+        try (MergeServer server = new MergeServer(socket)) {
+            Thread serverThread =
+                    new Thread(
+                            () -> {
+                                try {
+                                    server.serve();
+                                } catch (IOException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            });
+            serverThread.start();
+
+            Pair<String, Integer> merge =
+                    MergeClient.merge(
+                            socket,
+                            sources.base,
+                            sources.left,
+                            sources.right,
+                            /* exitOnError= */ false,
+                            /* ignoreSpaceChange= */ false,
+                            Cli.Strategy.structured,
+                            Cli.MatcherSelection.adaptive,
+                            MergeBudget.UNLIMITED);
+
+            assertEquals(expected, merge);
+        }
+    }
+
+    @Test
+    void merge_shouldMergeInProcess_whenRuntimeDoesNotSupportSockets(@TempDir Path tempDir)
+            throws Exception {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.BOTH_MODIFIED_DIRPATH.resolve("simple_root_conflict").toFile());
+        Path socket = tempDir.resolve("spork.sock");
+        Path out = tempDir.resolve("Merged.java");
+        int javaVersion = SocketRuntime.javaVersion;
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream systemErr = System.err;
+
+        // a merge delegated to the running server would not print any statistics
+        try (MergeServer server = new MergeServer(socket)) {
+            new Thread(
+                            () -> {
+                                try {
+                                    server.serve();
+                                } catch (IOException e) {
+                                    throw new RuntimeException(e);
+                                }
+                            })
+                    .start();
+            SocketRuntime.javaVersion = 11;
+            System.setErr(new PrintStream(err, true, StandardCharsets.UTF_8));
+
+            int exitCode =
+                    new CommandLine(new Cli.Merge())
+                            .execute(
+                                    "--socket=" + socket,
+                                    "--stats=json",
+                                    "--output=" + out,
+                                    sources.left.toString(),
+                                    sources.base.toString(),
+                                    sources.right.toString());
+
+            assertEquals(0, exitCode);
+        } finally {
+            System.setErr(systemErr);
+            SocketRuntime.javaVersion = javaVersion;
+        }
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("\"numConflicts\""));
+        assertEquals(
+                Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ false)
+                        .getFirst()
+                        .trim(),
+                Files.readString(out).trim());
+    }
+
+    @Test
+    void server_shouldExitWithError_whenRuntimeDoesNotSupportSockets(@TempDir Path tempDir) {
+        Path socket = tempDir.resolve("spork.sock");
+        StringWriter err = new StringWriter();
+        int javaVersion = SocketRuntime.javaVersion;
+        SocketRuntime.javaVersion = 11;
+
+        try {
+            int exitCode =
+                    new CommandLine(new Cli.Server())
+                            .setErr(new PrintWriter(err, true))
+                            .execute("--socket=" + socket);
+
+            assertEquals(1, exitCode);
+            assertEquals(SocketRuntime.unsupportedMessage(), err.toString().trim());
+            assertFalse(Files.exists(socket));
+        } finally {
+            SocketRuntime.javaVersion = javaVersion;
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(Util.ConflictSourceProvider.class)
+    void merge_shouldReportConflicts_onConflict(Util.TestSources sources) {
+        MergeReport report = new MergeReport();
+
+        Pair<String, Integer> merge =
+                Cli.merge(
+                        sources.base,
+                        sources.left,
+                        sources.right,
+                        /* exitOnError= */ false,
+                        /* ignoreSpaceChange= */ false,
+                        report);
+
+        assertEquals(merge.getSecond(), report.getNumConflicts());
+        assertFalse(report.getLineBasedFallback());
+        assertEquals(
+                report.getNumConflicts(),
+                report.getStructuralConflicts() + report.getContentConflicts());
+        assertTrue(report.getBaseNodes() > 0);
+        assertTrue(report.getPhaseDurations().containsKey(MergeReport.Phase.PRETTY_PRINT));
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(Util.LeftModifiedSourceProvider.class)
+    void merge_shouldReturnLeftWithoutParsing_whenRightEqualsBase(Util.TestSources sources) {
+        MergeReport report = new MergeReport();
+        String left = Parser.INSTANCE.read(sources.left);
+
+        Pair<String, Integer> merge =
+                Cli.merge(
+                        sources.base,
+                        sources.left,
+                        sources.base,
+                        /* exitOnError= */ true,
+                        /* ignoreSpaceChange= */ false,
+                        report);
+
+        assertEquals(new Pair<>(left, 0), merge);
+        assertTrue(report.getTrivialMerge());
+        assertFalse(report.getPhaseDurations().containsKey(MergeReport.Phase.PARSE));
+    }
+
+    @Test
+    void merge_shouldOnlyMergeConflictingMember_withHybridStrategy() throws IOException {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.CONFLICT_DIRPATH.resolve("simple_delete_delete").toFile());
+        MergeReport report = new MergeReport();
+
+        Pair<String, Integer> merge =
+                Cli.merge(
+                        sources.base,
+                        sources.left,
+                        sources.right,
+                        /* exitOnError= */ true,
+                        /* ignoreSpaceChange= */ false,
+                        Cli.Strategy.hybrid,
+                        Cli.MatcherSelection.adaptive,
+                        report);
+
+        assertEquals(1, merge.getSecond());
+        assertEquals(1, report.getHybridMembers());
+        assertEquals(Util.parseConflicts(sources.expected), Util.parseConflicts(merge.getFirst()));
+    }
+
+    @Test
+    void merge_shouldSkipLeftRightMatching_whenRevisionsInsertInDifferentMembers() {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.BOTH_MODIFIED_DIRPATH.resolve("add_parameter").toFile());
+        MergeReport report = new MergeReport();
+
+        Pair<String, Integer> merge =
+                Cli.merge(
+                        sources.base,
+                        sources.left,
+                        sources.right,
+                        /* exitOnError= */ true,
+                        /* ignoreSpaceChange= */ false,
+                        Cli.Strategy.structured,
+                        Cli.MatcherSelection.adaptive,
+                        report);
+
+        assertNull(report.getLeftRightMatcher());
+        assertEquals(0, merge.getSecond());
+    }
+
+    @Test
+    void merge_shouldRecordSelectedMatchers_withMatcherSelection() {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.BOTH_MODIFIED_DIRPATH.resolve("add_similar_methods").toFile());
+        MergeReport adaptiveReport = new MergeReport();
+        MergeReport topDownReport = new MergeReport();
+
+        Pair<String, Integer> adaptiveMerge =
+                Cli.merge(
+                        sources.base,
+                        sources.left,
+                        sources.right,
+                        /* exitOnError= */ true,
+                        /* ignoreSpaceChange= */ false,
+                        Cli.Strategy.structured,
+                        Cli.MatcherSelection.adaptive,
+                        adaptiveReport);
+        Pair<String, Integer> topDownMerge =
+                Cli.merge(
+                        sources.base,
+                        sources.left,
+                        sources.right,
+                        /* exitOnError= */ true,
+                        /* ignoreSpaceChange= */ false,
+                        Cli.Strategy.structured,
+                        Cli.MatcherSelection.topdown,
+                        topDownReport);
+
+        assertEquals(MatcherAlgorithm.GUMTREE, adaptiveReport.getBaseLeftMatcher());
+        assertEquals(MatcherAlgorithm.GUMTREE, adaptiveReport.getBaseRightMatcher());
+        assertEquals(MatcherAlgorithm.XY, adaptiveReport.getLeftRightMatcher());
+        assertEquals(MatcherAlgorithm.TOP_DOWN, topDownReport.getBaseLeftMatcher());
+        assertEquals(MatcherAlgorithm.TOP_DOWN, topDownReport.getBaseRightMatcher());
+        assertEquals(MatcherAlgorithm.TOP_DOWN, topDownReport.getLeftRightMatcher());
+        assertEquals(0, adaptiveMerge.getSecond());
+        assertEquals(0, topDownMerge.getSecond());
+    }
+
+    @Test
+    void merge_shouldPrintOriginalSource_ofUnmodifiedStatements() {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.BOTH_MODIFIED_DIRPATH
+                                .resolve("root_conflict_with_edits_in_left")
+                                .toFile());
+
+        Pair<String, Integer> merge =
+                Cli.merge(
+                        sources.base,
+                        sources.left,
+                        sources.right,
+                        /* exitOnError= */ true,
+                        /* ignoreSpaceChange= */ false,
+                        Cli.Strategy.structured,
+                        Cli.MatcherSelection.adaptive,
+                        new MergeReport());
+
+        assertEquals(0, merge.getSecond());
+        assertTrue(merge.getFirst().contains("int sqrt = (int) Math.floor(Math.sqrt(number));"));
+        assertTrue(merge.getFirst().contains("for (int j = i*2; j < prime.length; j+=i) {"));
+    }
+
+    @Test
+    void merge_shouldDegradeConflictingMembers_whenBudgetIsExceeded() {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.CONFLICT_DIRPATH.resolve("simple_delete_delete").toFile());
+        MergeReport report = new MergeReport();
+
+        Pair<String, Integer> merge =
+                Cli.merge(
+                        sources.base,
+                        sources.left,
+                        sources.right,
+                        /* exitOnError= */ true,
+                        /* ignoreSpaceChange= */ false,
+                        Cli.Strategy.structured,
+                        Cli.MatcherSelection.adaptive,
+                        new MergeBudget(null, 1),
+                        report);
+
+        assertTrue(report.getBudgetExceeded());
+        assertTrue(report.getDegradedMembers() > 0);
+        assertTrue(merge.getSecond() > 0);
+    }
+
+    @Test
+    void merge_shouldEqualUncachedMerge_whenParseCacheIsEnabled(@TempDir Path tempDir) {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.CONFLICT_DIRPATH.resolve("simple_delete_delete").toFile());
+        Pair<String, Integer> expected =
+                Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+        try {
+            ParseCache cache = new ParseCache("test", tempDir);
+            Parser.setCache(cache);
+            Pair<String, Integer> parsed =
+                    Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+            Pair<String, Integer> fromMemory =
+                    Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+            ParseCache diskCache = new ParseCache("test", tempDir);
+            Parser.setCache(diskCache);
+            Pair<String, Integer> fromDisk =
+                    Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+            assertEquals(3, cache.getMisses());
+            assertEquals(3, cache.getMemoryHits());
+            assertEquals(3, diskCache.getDiskHits());
+            assertEquals(0, diskCache.getMisses());
+            assertEquals(expected, parsed);
+            assertEquals(expected, fromMemory);
+            assertEquals(expected, fromDisk);
+        } finally {
+            Parser.setCache(null);
+        }
+    }
+
+    @Test
+    void merge_shouldNotDeserializeForeignClasses_whenDiskCacheIsTamperedWith(@TempDir Path tempDir)
+            throws IOException {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.CONFLICT_DIRPATH.resolve("simple_delete_delete").toFile());
+        Pair<String, Integer> expected =
+                Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+        try {
+            Parser.setCache(new ParseCache("test", tempDir));
+            Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(payload)) {
+                out.writeObject(new ForeignObject());
+            }
+            try (Stream<Path> entries = Files.list(tempDir)) {
+                for (Path entry : entries.collect(Collectors.toList())) {
+                    Files.write(entry, payload.toByteArray());
+                }
+            }
+
+            ParseCache tamperedCache = new ParseCache("test", tempDir);
+            Parser.setCache(tamperedCache);
+            Pair<String, Integer> merged =
+                    Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+            assertFalse(ForeignObject.deserialized);
+            assertEquals(3, tamperedCache.getMisses());
+            assertEquals(expected, merged);
+        } finally {
+            Parser.setCache(null);
+        }
+    }
+
+    @Test
+    void merge_shouldNotLeaveTemporaryFiles_whenDiskCacheEntriesCannotBeWritten(
+            @TempDir Path tempDir) throws IOException {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.CONFLICT_DIRPATH.resolve("simple_delete_delete").toFile());
+        Pair<String, Integer> expected =
+                Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+        try {
+            Parser.setCache(new ParseCache("test", tempDir));
+            Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+            // entries can't be moved onto non-empty directories
+            try (Stream<Path> entries = Files.list(tempDir)) {
+                for (Path entry : entries.collect(Collectors.toList())) {
+                    Files.delete(entry);
+                    Files.createFile(Files.createDirectory(entry).resolve("blocker"));
+                }
+            }
+
+            ParseCache blockedCache = new ParseCache("test", tempDir);
+            Parser.setCache(blockedCache);
+            Pair<String, Integer> merged =
+                    Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+            assertEquals(3, blockedCache.getMisses());
+            assertEquals(expected, merged);
+            try (Stream<Path> entries = Files.list(tempDir)) {
+                assertTrue(entries.noneMatch(entry -> entry.toString().endsWith(".tmp")));
+            }
+        } finally {
+            Parser.setCache(null);
+        }
+    }
+
+    /** An object that records whether it has ever been deserialized. */
+    static class ForeignObject implements Serializable {
+        static volatile boolean deserialized = false;
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            deserialized = true;
+        }
+    }
+
+    @Test
+    void merge_shouldEqualMergeInDefaultSession_whenRunInNewSession() {
+        Util.TestSources sources =
+                Util.TestSources.fromTestDirectory(
+                        Util.CONFLICT_DIRPATH.resolve("simple_delete_delete").toFile());
+        Pair<String, Integer> expected =
+                Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+        try (MergeSession session = new MergeSession()) {
+            Parser.setSession(session);
+            Pair<String, Integer> first =
+                    Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+            Pair<String, Integer> second =
+                    Cli.merge(sources.base, sources.left, sources.right, /* exitOnError= */ true);
+
+            assertEquals(expected, first);
+            assertEquals(expected, second);
+        } finally {
+            Parser.setSession(null);
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(Util.ConflictSourceProvider.class)
+    void mergeCommits_shouldWriteConflictStages_onConflict(
+            Util.TestSources sources, @TempDir Path tempDir) throws Exception {
+        String base = Parser.INSTANCE.read(sources.base);
+        String left = Parser.INSTANCE.read(sources.left);
+        String right = Parser.INSTANCE.read(sources.right);
+        Pair<String, Integer> expected = Cli.merge(base, left, right, /* exitOnError= */ false);
+
+        try (Git git = Git.init().setDirectory(tempDir.toFile()).call()) {
+            RevCommit baseCommit = commitFile(git, tempDir, base);
+            RevCommit leftCommit = commitFile(git, tempDir, left);
+            git.checkout().setName(baseCommit.name()).call();
+            RevCommit rightCommit = commitFile(git, tempDir, right);
+
+            SporkMerger merger =
+                    new SporkMerger(git.getRepository(), Runnable::run, /* exitOnError= */ false);
+            boolean clean = merger.merge(leftCommit, rightCommit);
+
+            assertFalse(clean);
+            assertEquals(List.of("Main.java"), merger.getConflicts());
+            DirCache index = merger.getIndex();
+            assertEquals(3, index.getEntryCount());
+            for (int i = 0; i < index.getEntryCount(); i++) {
+                assertEquals(i + 1, index.getEntry(i).getStage());
+            }
+            try (TreeWalk treeWalk =
+                    TreeWalk.forPath(git.getRepository(), "Main.java", merger.getResultTreeId())) {
+                String merged =
+                        new String(
+                                git.getRepository().open(treeWalk.getObjectId(0)).getBytes(),
+                                StandardCharsets.UTF_8);
+                assertEquals(expected.getFirst() + "\n", merged);
+            }
+        }
+    }
+
+    private static RevCommit commitFile(Git git, Path repoDir, String content) throws Exception {
+        Files.write(repoDir.resolve("Main.java"), content.getBytes(StandardCharsets.UTF_8));
+        git.add().addFilepattern("Main.java").call();
+        return git.commit().setMessage("commit").setSign(false).call();
+    }
+
     @ParameterizedTest
     @ArgumentsSource(Util.LeftModifiedSourceProvider.class)
     void mergeTreeShouldEqualReParsedPrettyPrint_whenLeftIsModified(
@@ -2,16 +2,40 @@ package se.kth.spork.spoon;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import com.github.gumtreediff.tree.ITree;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
 import kotlin.Pair;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ArgumentsSource;
+import org.junit.jupiter.params.provider.ValueSource;
 import se.kth.spork.Util;
+import se.kth.spork.base3dm.ChangeSet;
+import se.kth.spork.base3dm.Pcs;
+import se.kth.spork.base3dm.Revision;
+import se.kth.spork.base3dm.TdmMergeKt;
 import se.kth.spork.cli.Cli;
 import se.kth.spork.exception.ConflictException;
+import se.kth.spork.spoon.conflict.StructuralConflict;
+import se.kth.spork.spoon.matching.ClassRepresentativesKt;
+import se.kth.spork.spoon.matching.LeftRightMatchingKt;
+import se.kth.spork.spoon.matching.MappingRemover;
+import se.kth.spork.spoon.matching.MatcherAlgorithm;
+import se.kth.spork.spoon.matching.MatcherPolicy;
+import se.kth.spork.spoon.matching.SpoonMapping;
+import se.kth.spork.spoon.matching.UnchangedMembersKt;
+import se.kth.spork.spoon.wrappers.NodeTable;
+import se.kth.spork.spoon.wrappers.RoledValues;
+import se.kth.spork.spoon.wrappers.SpoonNode;
 import spoon.reflect.declaration.*;
 
 class Spoon3dmMergeTest {
@@ -55,6 +79,246 @@ class Spoon3dmMergeTest {
                 () -> Spoon3dmMerge.INSTANCE.merge(sources.base, sources.left, sources.right));
     }
 
+    @Test
+    void merge_shouldKeepRightEdits_whenMostMembersOfLargeClassAreUnchanged() {
+        // with the bodies of the unchanged members pruned, GumTree alone does not match the class
+        int methods = 1200;
+        String base = generateClass(methods, i -> "", i -> "+");
+        String left = generateClass(methods, i -> i == 3 ? "x3 *= 2;" : "", i -> "+");
+        String right =
+                generateClass(methods, i -> i % 400 == 7 ? "x" + i + " -= 1;" : "", i -> "+");
+
+        Pair<CtModule, Integer> merge =
+                Spoon3dmMerge.INSTANCE.merge(
+                        Parser.INSTANCE.parse(base),
+                        Parser.INSTANCE.parse(left),
+                        Parser.INSTANCE.parse(right),
+                        MatcherPolicy.ADAPTIVE);
+
+        String merged = Cli.prettyPrint(merge.getFirst());
+        assertEquals(0, merge.getSecond());
+        assertTrue(merged.contains("x3 *= 2;"));
+        for (int i = 7; i < methods; i += 400) {
+            assertTrue(merged.contains("x" + i + " -= 1;"), "missing right edit in method" + i);
+        }
+    }
+
+    @ParameterizedTest
+    @ArgumentsSource(Util.BothModifiedSourceProvider.class)
+    @SuppressWarnings("deprecation")
+    void merge_shouldEqualClassicPolicy_whenGivenMatcherFunctions(Util.TestSources sources) {
+        Pair<CtModule, Integer> functionMerge =
+                Spoon3dmMerge.INSTANCE.merge(
+                        Parser.INSTANCE.parse(sources.base),
+                        Parser.INSTANCE.parse(sources.left),
+                        Parser.INSTANCE.parse(sources.right),
+                        (src, dst) -> MatcherAlgorithm.GUMTREE.match(src, dst),
+                        (src, dst) -> MatcherAlgorithm.XY.match(src, dst));
+        Pair<CtModule, Integer> policyMerge =
+                Spoon3dmMerge.INSTANCE.merge(
+                        Parser.INSTANCE.parse(sources.base),
+                        Parser.INSTANCE.parse(sources.left),
+                        Parser.INSTANCE.parse(sources.right),
+                        MatcherPolicy.CLASSIC);
+
+        assertEquals(policyMerge.getSecond(), functionMerge.getSecond());
+        assertEquals(
+                Cli.prettyPrint(policyMerge.getFirst()), Cli.prettyPrint(functionMerge.getFirst()));
+    }
+
+    @Test
+    void merge_shouldPrintCommentOnce_whenCommentedNestedTypeIsUnchanged() {
+        String template =
+                "class Outer {\n"
+                        + "    void a() {\n"
+                        + "        int x = %d;\n"
+                        + "    }\n\n"
+                        + "    void b() {\n"
+                        + "        int y = %d;\n"
+                        + "    }\n\n"
+                        + "    // the nested type\n"
+                        + "    static class Nested {\n"
+                        + "    }\n"
+                        + "}\n";
+        String base = String.format(template, 1, 1);
+        String left = String.format(template, 2, 1);
+        String right = String.format(template, 1, 2);
+
+        Pair<CtModule, Integer> merge =
+                Spoon3dmMerge.INSTANCE.merge(
+                        Parser.INSTANCE.parse(base),
+                        Parser.INSTANCE.parse(left),
+                        Parser.INSTANCE.parse(right),
+                        MatcherPolicy.ADAPTIVE);
+
+        String merged = Cli.prettyPrint(merge.getFirst());
+        assertEquals(0, merge.getSecond());
+        assertEquals(1, merged.split("// the nested type", -1).length - 1, merged);
+    }
+
+    @Test
+    void merge_shouldEqualSequentialMerge_whenResolvedConcurrently() {
+        int methods = 60;
+        String base = generateClass(methods, i -> "", i -> "+");
+        String left = generateClass(methods, i -> "x" + i + " *= 2;", i -> "+");
+        String right =
+                generateClass(
+                        methods,
+                        i -> i % 2 == 0 ? "x" + i + " -= 1;" : "",
+                        i -> i % 2 == 0 ? "+" : "-");
+
+        int numConflicts = assertConcurrentEqualsSequential(base, left, right);
+
+        assertEquals(methods / 2, numConflicts);
+    }
+
+    @Test
+    void merge_shouldEqualSequentialMerge_whenMembersAreInterpretedConcurrently() {
+        // both revisions move the same statement out of the first method, into different methods
+        int methods = 60;
+        String moved = "if (a > 0) { System.out.println(\"moved\" + a * 2); }";
+        String base = generateClass(methods, i -> i == 0 ? moved : "", i -> "+");
+        String left = generateClass(methods, i -> i == 1 ? moved : "", i -> "+");
+        String right = generateClass(methods, i -> i == methods - 1 ? moved : "", i -> "+");
+
+        assertConcurrentEqualsSequential(base, left, right);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"simple_root_conflict", "root_conflict_with_edits_in_left"})
+    void updateRawMerge_shouldEqualRebuiltRawMerge_whenRootConflictsAreRemoved(String scenario) {
+        Path dir = Util.BOTH_MODIFIED_DIRPATH.resolve(scenario);
+        CtModule base = Parser.INSTANCE.parse(dir.resolve("Base.java"));
+        CtModule left = Parser.INSTANCE.parse(dir.resolve("Left.java"));
+        CtModule right = Parser.INSTANCE.parse(dir.resolve("Right.java"));
+
+        new NodeTable()
+                .use(
+                        () -> {
+                            assertIncrementalUpdateEqualsRebuild(base, left, right);
+                            return null;
+                        });
+    }
+
+    /**
+     * Run the 3DM phase of a merge up until the root conflicts are removed, and assert that
+     * updating the raw merge gives the same result as rebuilding it from scratch.
+     */
+    private static void assertIncrementalUpdateEqualsRebuild(
+            CtModule base, CtModule left, CtModule right) {
+        Set<Pcs<SpoonNode>> t0 = PcsBuilder.fromSpoon(base, Revision.BASE);
+        Set<Pcs<SpoonNode>> t1 = PcsBuilder.fromSpoon(left, Revision.LEFT);
+        Set<Pcs<SpoonNode>> t2 = PcsBuilder.fromSpoon(right, Revision.RIGHT);
+        ITree baseGumtree = UnchangedMembersKt.buildPrunedGumTree(base, List.of());
+        ITree leftGumtree = UnchangedMembersKt.buildPrunedGumTree(left, List.of());
+        ITree rightGumtree = UnchangedMembersKt.buildPrunedGumTree(right, List.of());
+        SpoonMapping baseLeft = match(baseGumtree, leftGumtree);
+        SpoonMapping baseRight = match(baseGumtree, rightGumtree);
+        SpoonMapping leftRight =
+                LeftRightMatchingKt.matchLeftRight(
+                                leftGumtree,
+                                rightGumtree,
+                                baseLeft,
+                                baseRight,
+                                MatcherPolicy.ADAPTIVE,
+                                MergeBudget.UNLIMITED)
+                        .getFirst();
+
+        Map<SpoonNode, SpoonNode> classRepMap =
+                ClassRepresentativesKt.createClassRepresentativesMapping(
+                        base, left, right, baseLeft, baseRight, leftRight);
+        ChangeSet<SpoonNode, RoledValues> t0Star =
+                new ChangeSet<>(classRepMap, ContentResolverKt::getContent, t0);
+        ChangeSet<SpoonNode, RoledValues> updated =
+                new ChangeSet<>(classRepMap, ContentResolverKt::getContent, t0, t1, t2);
+        TdmMergeKt.resolveRawMerge(t0Star, updated);
+        Set<SpoonNode> rootConflictingNodes =
+                StructuralConflict.Companion.extractRootConflictingNodes(
+                        updated.getStructuralConflicts());
+        assertFalse(rootConflictingNodes.isEmpty());
+        Set<SpoonNode> unmatchedNodes =
+                MappingRemover.Companion.removeFromMappings(
+                        rootConflictingNodes, baseLeft, baseRight, leftRight);
+
+        // the rebuild only reads the matchings, so it can be done before they are used for the
+        // update
+        Map<SpoonNode, SpoonNode> rebuiltClassRepMap =
+                ClassRepresentativesKt.createClassRepresentativesMapping(
+                        base, left, right, baseLeft, baseRight, leftRight);
+        ChangeSet<SpoonNode, RoledValues> rebuilt =
+                new ChangeSet<>(rebuiltClassRepMap, ContentResolverKt::getContent, t0, t1, t2);
+        TdmMergeKt.resolveRawMerge(t0Star, rebuilt);
+
+        Map<SpoonNode, SpoonNode> previousClassReps =
+                ClassRepresentativesKt.updateClassRepresentativesMapping(
+                        classRepMap, unmatchedNodes, baseLeft, baseRight, leftRight);
+        List<Pcs<SpoonNode>> updatedPcses =
+                updated.update(previousClassReps, ContentResolverKt::getContent, t0, t1, t2);
+        TdmMergeKt.resolveRawMerge(t0Star, updated, updatedPcses);
+
+        assertEquals(rebuiltClassRepMap, classRepMap);
+        assertEquals(rebuilt.getPcsSet(), updated.getPcsSet());
+        assertEquals(rebuilt.getStructuralConflicts(), updated.getStructuralConflicts());
+        assertEquals(rebuilt.getContents(), updated.getContents());
+    }
+
+    private static SpoonMapping match(ITree src, ITree dst) {
+        return SpoonMapping.Companion.fromGumTreeMapping(
+                MatcherPolicy.ADAPTIVE
+                        .select(src, dst, true)
+                        .match(src, dst, MergeBudget.UNLIMITED)
+                        .getMappings());
+    }
+
+    /**
+     * Assert that merging on a pool of threads gives the same result as merging sequentially.
+     *
+     * @return The amount of conflicts in the merge.
+     */
+    private static int assertConcurrentEqualsSequential(String base, String left, String right) {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Pair<CtModule, Integer> sequential = merge(base, left, right, Runnable::run);
+            Pair<CtModule, Integer> concurrent = merge(base, left, right, pool);
+
+            assertEquals(sequential.getSecond(), concurrent.getSecond());
+            assertEquals(
+                    Cli.prettyPrint(sequential.getFirst()), Cli.prettyPrint(concurrent.getFirst()));
+            return sequential.getSecond();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Pair<CtModule, Integer> merge(
+            String base, String left, String right, Executor executor) {
+        return Spoon3dmMerge.INSTANCE.merge(
+                Parser.INSTANCE.parse(base),
+                Parser.INSTANCE.parse(left),
+                Parser.INSTANCE.parse(right),
+                MatcherPolicy.ADAPTIVE,
+                new MergeReport(),
+                MergeBudget.UNLIMITED,
+                executor);
+    }
+
+    /**
+     * Generate a class in which every method inserts a statement before its return statement, and
+     * adds or subtracts its index from its parameter.
+     */
+    private static String generateClass(
+            int methods, IntFunction<String> insertedStatement, IntFunction<String> operator) {
+        StringBuilder sb = new StringBuilder("public class Generated {\n");
+        for (int i = 0; i < methods; i++) {
+            sb.append("    public int method" + i + "(int a) {\n")
+                    .append("        int x" + i + " = a " + operator.apply(i) + " " + i + ";\n")
+                    .append("        " + insertedStatement.apply(i) + "\n")
+                    .append("        return x" + i + ";\n")
+                    .append("    }\n");
+        }
+        return sb.append("}\n").toString();
+    }
+
     private static void runTestMerge(Util.TestSources sources) {
         CtModule expected = Parser.INSTANCE.parse(sources.expected);
         Object expectedImports = expected.getMetadata(Parser.IMPORT_STATEMENTS);